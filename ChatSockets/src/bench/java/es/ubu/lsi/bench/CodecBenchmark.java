@@ -0,0 +1,167 @@
+package es.ubu.lsi.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+
+/**
+ * Coste de codificar y decodificar un {@link ChatMessage} con la
+ * serialización de Java y con {@link ChatMessageCodec}.
+ *
+ * La serialización se codifica como en el cliente: un único
+ * ObjectOutputStream por conexión, con reset tras cada mensaje. Para
+ * decodificar se lee un flujo completo (cabecera y objeto) por mensaje, ya
+ * que un ObjectInputStream no se puede rebobinar.
+ *
+ * Las variantes comprimidas solo comprimen a partir del umbral de
+ * compresión; por debajo miden lo mismo que las binarias.
+ *
+ * @author Ivan Nebreda Camara
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CodecBenchmark {
+
+	/** Longitud del texto del mensaje. */
+	@Param({ "16", "256", "4096" })
+	int length;
+
+	/** Mensaje de prueba. */
+	private ChatMessage message;
+	/** Trama binaria del mensaje. */
+	private byte[] frame;
+	/** Trama binaria comprimida del mensaje. */
+	private byte[] packed;
+	/** Flujo serializado completo del mensaje. */
+	private byte[] serialized;
+	/** Destino de la serialización, reutilizado entre mensajes. */
+	private ByteArrayOutputStream bytes;
+	/** Flujo de objetos de la "conexión". */
+	private ObjectOutputStream objects;
+
+	/**
+	 * Prepara el mensaje y sus codificaciones.
+	 *
+	 * @throws IOException si falla la serialización.
+	 */
+	@Setup
+	public void setup() throws IOException {
+
+		char[] text = new char[length];
+		Arrays.fill(text, 'a');
+		text[0] = 'ñ';
+		message = new ChatMessage(42, ChatMessage.MessageType.MESSAGE, "usuario: " + new String(text));
+		frame = ChatMessageCodec.encode(message);
+		packed = ChatMessageCodec.encode(message, true);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(stream)) {
+			out.writeObject(message);
+		}
+		serialized = stream.toByteArray();
+
+		bytes = new ByteArrayOutputStream(length * 2 + 256);
+		objects = new ObjectOutputStream(bytes);
+	}
+
+	/**
+	 * Codifica una trama binaria.
+	 *
+	 * @return Trama.
+	 */
+	@Benchmark
+	public byte[] binaryEncode() {
+
+		return ChatMessageCodec.encode(message);
+	}
+
+	/**
+	 * Decodifica una trama binaria.
+	 *
+	 * @return Mensaje.
+	 * @throws IOException si la trama no es válida.
+	 */
+	@Benchmark
+	public ChatMessage binaryDecode() throws IOException {
+
+		return ChatMessageCodec.decode(ByteBuffer.wrap(frame));
+	}
+
+	/**
+	 * Codifica una trama binaria comprimida.
+	 *
+	 * @return Trama.
+	 */
+	@Benchmark
+	public byte[] compressedEncode() {
+
+		return ChatMessageCodec.encode(message, true);
+	}
+
+	/**
+	 * Decodifica una trama binaria comprimida.
+	 *
+	 * @return Mensaje.
+	 * @throws IOException si la trama no es válida.
+	 */
+	@Benchmark
+	public ChatMessage compressedDecode() throws IOException {
+
+		return ChatMessageCodec.decode(ByteBuffer.wrap(packed));
+	}
+
+	/**
+	 * Serializa un mensaje en el flujo de la conexión.
+	 *
+	 * @return Bytes escritos.
+	 * @throws IOException si falla la serialización.
+	 */
+	@Benchmark
+	public int serializedEncode() throws IOException {
+
+		bytes.reset();
+		objects.writeObject(message);
+		objects.reset();
+		objects.flush();
+		return bytes.size();
+	}
+
+	/**
+	 * Deserializa un mensaje.
+	 *
+	 * @return Mensaje.
+	 * @throws IOException si el flujo no es válido.
+	 * @throws ClassNotFoundException si falta la clase.
+	 */
+	@Benchmark
+	public ChatMessage serializedDecode() throws IOException, ClassNotFoundException {
+
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+			return (ChatMessage) in.readObject();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package es.ubu.lsi.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+
+/**
+ * Difusión de un mensaje a todos los clientes de una sala, sobre loopback.
+ *
+ * Cada operación envía un mensaje desde uno de los clientes y termina cuando
+ * todos (también el remitente) lo han recibido entero, así que mide el
+ * recorrido completo: lectura, difusión, colas de salida y escritura en los
+ * sockets. Los clientes se leen desde un único Selector del propio benchmark.
+ *
+ * Con 10.000 clientes el proceso abre unos 20.000 descriptores (los dos
+ * extremos de cada conexión): hay que subir antes el límite con ulimit -n.
+ *
+ * @author Ivan Nebreda Camara
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FanOutBenchmark {
+
+	/** Texto del mensaje difundido. */
+	private static final String TEXT = "hola a todos";
+	/** Espera máxima (ms) a una ronda de comprobación durante la preparación. */
+	private static final long PROBE_MILLIS = 500;
+
+	/** Clientes en la sala. */
+	@Param({ "10", "100", "1000", "10000" })
+	int clients;
+
+	/** Motor del servidor. */
+	@Param({ "threads", "nio" })
+	String engine;
+
+	/** Servidor en loopback. */
+	private Loopback.Server server;
+	/** Conexiones de los clientes. */
+	private SocketChannel[] channels;
+	/** Selector con todas las conexiones. */
+	private Selector selector;
+	/** Trama que envía el remitente. */
+	private ByteBuffer outgoing;
+	/** Bytes que deben llegar entre todos los clientes por cada mensaje. */
+	private long expected;
+	/** Búfer de lectura compartido (solo se cuentan los bytes). */
+	private final ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+
+	/**
+	 * Arranca el servidor, conecta los clientes y espera a que todos estén en la sala.
+	 *
+	 * @throws IOException si falla alguna conexión.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+
+		server = Loopback.start(engine);
+		channels = new SocketChannel[clients];
+		selector = Selector.open();
+
+		int senderId = 0;
+		for (int i = 0; i < clients; i++) {
+
+			Loopback.Connection connection = Loopback.connect(server.port, "c" + i);
+			channels[i] = connection.channel;
+			channels[i].configureBlocking(false);
+			channels[i].register(selector, SelectionKey.OP_READ);
+			if (i == 0) {
+				senderId = connection.id;
+			}
+		}
+
+		outgoing = ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(senderId, ChatMessage.MessageType.MESSAGE, TEXT)));
+		expected = (long) clients
+				* ChatMessageCodec.encode(new ChatMessage(senderId, ChatMessage.MessageType.MESSAGE, "c0: " + TEXT)).length;
+
+		// Las identificaciones se procesan en paralelo: repetir hasta que un mensaje llegue a todos
+		while (true) {
+
+			send();
+			long received = receive(PROBE_MILLIS);
+			if (received == expected) {
+				break;
+			}
+			drain();
+		}
+	}
+
+	/**
+	 * Cierra los clientes y apaga el servidor.
+	 *
+	 * @throws IOException si falla el cierre.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		for (SocketChannel channel : channels) {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+		selector.close();
+		server.stop();
+	}
+
+	/**
+	 * Difunde un mensaje y espera a que llegue a todos.
+	 *
+	 * @return Bytes recibidos.
+	 * @throws IOException si falla una conexión.
+	 */
+	@Benchmark
+	public long broadcast() throws IOException {
+
+		send();
+		return receive(0);
+	}
+
+	/**
+	 * Envía el mensaje desde el primer cliente.
+	 */
+	private void send() throws IOException {
+
+		outgoing.rewind();
+		Loopback.writeFully(channels[0], outgoing);
+	}
+
+	/**
+	 * Lee de los clientes hasta recibir los bytes de un mensaje por cliente.
+	 *
+	 * @param timeoutMillis Espera máxima, o 0 para esperar sin límite.
+	 * @return Bytes recibidos.
+	 */
+	private long receive(long timeoutMillis) throws IOException {
+
+		long received = 0;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		while (received < expected) {
+
+			long wait = (timeoutMillis == 0) ? 0 : deadline - System.currentTimeMillis();
+			if (timeoutMillis != 0 && wait <= 0) {
+				break;
+			}
+			selector.select(wait);
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+
+				SelectionKey key = keys.next();
+				keys.remove();
+				int n;
+				do {
+					sink.clear();
+					n = ((SocketChannel) key.channel()).read(sink);
+					received += Math.max(n, 0);
+				} while (n > 0);
+				if (n < 0) {
+					throw new IOException("El servidor ha cerrado una conexión");
+				}
+			}
+		}
+		return received;
+	}
+
+	/**
+	 * Descarta lo que quede por llegar de una ronda incompleta.
+	 */
+	private void drain() throws IOException {
+
+		while (receive(PROBE_MILLIS) > 0) {
+			// Seguir descartando
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package es.ubu.lsi.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+
+/**
+ * Basura que generan, por mensaje, la recepción en el cliente y la
+ * codificación de una difusión en el servidor, con el remitente dentro del
+ * texto ("nombre: texto", como antes) y en su propio campo.
+ *
+ * Lo que interesa es la memoria reservada por operación, así que hay que
+ * lanzarlo con el perfilador de memoria de JMH y mirar gc.alloc.rate.norm:
+ * <pre>
+ *   java -jar target/benchmarks.jar GcPressure -prof gc
+ * </pre>
+ *
+ * La recepción lee de un flujo en memoria que repite la misma trama sin
+ * fin, para no medir la red. La variante antigua lee cada trama en un array
+ * nuevo y saca el remitente del texto como hacía el cliente; la nueva usa un
+ * {@link ChatMessageCodec.Reader} y el remitente ya convertido.
+ *
+ * @author Ivan Nebreda Camara
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GcPressureBenchmark {
+
+	/** Remitente de los mensajes. */
+	private static final String SENDER = "usuario";
+
+	/** Longitud del texto del mensaje. */
+	@Param({ "16", "256" })
+	int length;
+
+	/** Texto del mensaje. */
+	private String text;
+	/** Flujo con tramas con el remitente delante del texto. */
+	private InputStream legacyFrames;
+	/** Lector de tramas con el remitente aparte. */
+	private ChatMessageCodec.Reader structuredFrames;
+
+	/**
+	 * Prepara el texto y los flujos de tramas.
+	 */
+	@Setup
+	public void setup() {
+
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		text = builder.toString();
+
+		ChatMessage message = new ChatMessage(42, ChatMessage.MessageType.MESSAGE, text, 7, SENDER);
+		legacyFrames = new RepeatingInputStream(ChatMessageCodec.encode(message, true, false, false));
+		structuredFrames = new ChatMessageCodec.Reader(
+				new RepeatingInputStream(ChatMessageCodec.encode(message, true, false, true)));
+	}
+
+	/**
+	 * Recibe un mensaje y saca el remitente del texto.
+	 *
+	 * @param bh Sumidero de JMH.
+	 * @throws IOException si la trama no es válida.
+	 */
+	@Benchmark
+	public void receiveLegacy(Blackhole bh) throws IOException {
+
+		ChatMessage msg = ChatMessageCodec.read(legacyFrames);
+		String[] parts = msg.getMessage().split(":", 2);
+		bh.consume(msg);
+		bh.consume(parts[0].trim());
+	}
+
+	/**
+	 * Recibe un mensaje con el remitente aparte.
+	 *
+	 * @param bh Sumidero de JMH.
+	 * @throws IOException si la trama no es válida.
+	 */
+	@Benchmark
+	public void receiveStructured(Blackhole bh) throws IOException {
+
+		ChatMessage msg = structuredFrames.read();
+		bh.consume(msg);
+		bh.consume(msg.getSender());
+	}
+
+	/**
+	 * Prepara y codifica una difusión juntando remitente y texto, como antes.
+	 *
+	 * @return Trama.
+	 */
+	@Benchmark
+	public byte[] broadcastLegacy() {
+
+		return ChatMessageCodec.encode(new ChatMessage(42, ChatMessage.MessageType.MESSAGE, SENDER + ": " + text, 7));
+	}
+
+	/**
+	 * Prepara y codifica una difusión con el remitente aparte.
+	 *
+	 * @return Trama.
+	 */
+	@Benchmark
+	public byte[] broadcastStructured() {
+
+		return ChatMessageCodec.encode(new ChatMessage(42, ChatMessage.MessageType.MESSAGE, text, 7, SENDER),
+				true, false, true);
+	}
+
+	/**
+	 * Flujo que repite una y otra vez los mismos bytes, sin reservar memoria al leer.
+	 */
+	private static final class RepeatingInputStream extends InputStream {
+
+		/** Bytes que se repiten. */
+		private final byte[] bytes;
+		/** Posición de la siguiente lectura. */
+		private int pos;
+
+		RepeatingInputStream(byte[] bytes) {
+
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+
+			int b = bytes[pos] & 0xFF;
+			pos = (pos + 1) % bytes.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] dst, int off, int len) {
+
+			int n = Math.min(len, bytes.length - pos);
+			System.arraycopy(bytes, pos, dst, off, n);
+			pos = (pos + n) % bytes.length;
+			return n;
+		}
+	}
+}
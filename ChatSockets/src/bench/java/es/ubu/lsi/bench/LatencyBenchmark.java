@@ -0,0 +1,140 @@
+package es.ubu.lsi.bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Latencia de extremo a extremo entre dos clientes, sobre loopback: desde que
+ * el remitente escribe el mensaje hasta que el destinatario lo ha leído.
+ *
+ * Se muestrea cada operación, así que el resultado incluye los percentiles
+ * (p50, p90, p99, p99.9...). Lo que el remitente recibe de vuelta se descarta
+ * desde otro hilo para que su cola no se llene.
+ *
+ * La espera de los lotes de salida del servidor (chat.batch.linger) forma
+ * parte de la latencia; se puede comparar pasándola con -jvmArgsAppend.
+ *
+ * @author Ivan Nebreda Camara
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LatencyBenchmark {
+
+	/** Motor del servidor. */
+	@Param({ "threads", "nio" })
+	String engine;
+
+	/** Servidor en loopback. */
+	private Loopback.Server server;
+	/** Cliente que envía. */
+	private Loopback.Connection sender;
+	/** Cliente que recibe. */
+	private Loopback.Connection receiver;
+	/** Entrada del cliente que recibe. */
+	private InputStream in;
+	/** Trama que envía el remitente. */
+	private ByteBuffer outgoing;
+
+	/**
+	 * Arranca el servidor y conecta los dos clientes.
+	 *
+	 * @throws IOException si falla alguna conexión.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+
+		server = Loopback.start(engine);
+		sender = Loopback.connect(server.port, "emisor");
+		receiver = Loopback.connect(server.port, "receptor");
+		in = new BufferedInputStream(receiver.channel.socket().getInputStream());
+		outgoing = ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(sender.id, ChatMessage.MessageType.MESSAGE, "ping")));
+
+		final InputStream echo = sender.channel.socket().getInputStream();
+		Threads.factory("bench-discard", false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[8192];
+				try {
+					while (echo.read(buffer) >= 0) {
+						// Descartar
+					}
+				} catch (IOException e) {
+					// Conexión cerrada al terminar
+				}
+			}
+		}).start();
+
+		// Esperar a que los dos estén identificados y en la sala
+		while (true) {
+
+			send();
+			receiver.channel.socket().setSoTimeout(500);
+			try {
+				ChatMessageCodec.read(in);
+				break;
+			} catch (SocketTimeoutException e) {
+				// El receptor aún no estaba en la sala
+			} finally {
+				receiver.channel.socket().setSoTimeout(0);
+			}
+		}
+	}
+
+	/**
+	 * Desconecta los clientes y apaga el servidor.
+	 *
+	 * @throws IOException si falla el cierre.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		sender.channel.close();
+		receiver.channel.close();
+		server.stop();
+	}
+
+	/**
+	 * Envía un mensaje y espera a que el otro cliente lo lea.
+	 *
+	 * @return Mensaje recibido.
+	 * @throws IOException si falla una conexión.
+	 */
+	@Benchmark
+	public ChatMessage clientToClient() throws IOException {
+
+		send();
+		return ChatMessageCodec.read(in);
+	}
+
+	private void send() throws IOException {
+
+		outgoing.rewind();
+		Loopback.writeFully(sender.channel, outgoing);
+	}
+}
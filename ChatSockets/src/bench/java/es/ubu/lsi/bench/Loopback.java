@@ -0,0 +1,193 @@
+package es.ubu.lsi.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.server.AbstractChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+
+/**
+ * Utilidades de los benchmarks que levantan un servidor real en la interfaz
+ * de loopback y se conectan a él con el protocolo binario.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class Loopback {
+
+	/** Espera máxima (ms) a que el servidor empiece a aceptar conexiones. */
+	private static final long STARTUP_MILLIS = 10000;
+
+	private Loopback() {
+	}
+
+	/**
+	 * Arranca un servidor en un puerto libre, en un hilo propio, y espera a
+	 * que acepte conexiones. El log del servidor se descarta, para no medir
+	 * la escritura en el terminal, y sin -Dchat.rate.session no se limita el
+	 * ritmo de las sesiones.
+	 *
+	 * @param engine Motor: "threads", "virtual" o "nio".
+	 * @return Servidor arrancado.
+	 * @throws IOException si no arranca a tiempo.
+	 */
+	static Server start(String engine) throws IOException {
+
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		// Los benchmarks envían tan rápido como pueden desde una sola sesión
+		if (System.getProperty("chat.rate.session") == null) {
+			System.setProperty("chat.rate.session", "0");
+		}
+
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+
+		final AbstractChatServer server;
+		if ("nio".equals(engine)) {
+			server = new ChatServerNioImpl(port);
+		} else {
+			server = new ChatServerImpl(port, "virtual".equals(engine));
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.startup();
+			}
+		}, "bench-server");
+		thread.setDaemon(true);
+		thread.start();
+
+		long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+		while (true) {
+
+			try {
+				// Acepta conexiones; la sesión de prueba se cierra sin identificarse
+				new Socket("localhost", port).close();
+				return new Server(server, port);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * Abre una conexión bloqueante, negocia el protocolo binario y se identifica.
+	 *
+	 * @param port Puerto del servidor.
+	 * @param username Nombre de usuario.
+	 * @return Canal conectado (bloqueante) con el ID asignado.
+	 * @throws IOException si falla la conexión.
+	 */
+	static Connection connect(int port, String username) throws IOException {
+
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+		channel.socket().setTcpNoDelay(true);
+		writeFully(channel, ByteBuffer.wrap(ChatMessageCodec.MAGIC));
+
+		InputStream in = channel.socket().getInputStream();
+		for (byte b : ChatMessageCodec.MAGIC) {
+			if (in.read() != (b & 0xFF)) {
+				throw new StreamCorruptedException("Respuesta del servidor no válida");
+			}
+		}
+		int id = ChatMessageCodec.readHandshakeId(in);
+
+		writeFully(channel, ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, username))));
+		return new Connection(channel, id);
+	}
+
+	/**
+	 * Escribe un búfer entero, también en un canal no bloqueante.
+	 *
+	 * @param channel Canal.
+	 * @param buffer Bytes a escribir.
+	 * @throws IOException si falla la escritura.
+	 */
+	static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Espera sin propagar la interrupción como excepción.
+	 *
+	 * @param millis Milisegundos.
+	 */
+	static void sleep(long millis) {
+
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Servidor arrancado en loopback.
+	 */
+	static final class Server {
+
+		/** Servidor. */
+		final AbstractChatServer server;
+		/** Puerto en el que escucha. */
+		final int port;
+
+		Server(AbstractChatServer server, int port) {
+
+			this.server = server;
+			this.port = port;
+		}
+
+		/**
+		 * Apaga el servidor.
+		 */
+		void stop() {
+
+			server.shutdown();
+		}
+	}
+
+	/**
+	 * Conexión de un cliente de prueba.
+	 */
+	static final class Connection {
+
+		/** Canal del cliente. */
+		final SocketChannel channel;
+		/** ID asignado por el servidor. */
+		final int id;
+
+		Connection(SocketChannel channel, int id) {
+
+			this.channel = channel;
+			this.id = id;
+		}
+	}
+}
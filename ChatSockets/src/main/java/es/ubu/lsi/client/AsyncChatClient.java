@@ -0,0 +1,824 @@
+package es.ubu.lsi.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import es.ubu.lsi.common.Batching;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.Presence;
+
+/**
+ * Cliente de chat sin consola, para integrarlo en otras aplicaciones (bots,
+ * pasarelas, pruebas de carga). Habla el protocolo binario de
+ * {@link ChatMessageCodec} sobre un canal no bloqueante que atiende uno de
+ * los hilos de un {@link ClientIoGroup}, compartido con otros clientes.
+ *
+ * Nada bloquea a quien lo usa: los envíos devuelven un
+ * {@link CompletableFuture} que se completa cuando la trama entera se ha
+ * pasado al socket, o con error si la conexión se cierra antes. Los envíos
+ * se encolan y el hilo de E/S escribe todos los pendientes con una sola
+ * escritura agrupada, así que se pueden encadenar sin esperar a cada uno.
+ * Los futuros se completan en orden, y en el hilo de E/S. Para que un
+ * emisor más rápido que el socket no llene la memoria, los envíos que
+ * superan -Dchat.client.pending bytes pendientes (1 MB por defecto) fallan
+ * enseguida con {@link IllegalStateException}; {@link #getPendingBytes()}
+ * permite esperar antes de seguir enviando.
+ *
+ * Los mensajes recibidos y los cambios de estado llegan a los
+ * {@link ChatListener} registrados. Los latidos los envía y contesta el
+ * propio cliente (cada -Dchat.heartbeat segundos, como el de consola) y, si
+ * el servidor deja de responder, la conexión se cierra. Tampoco se reconecta
+ * solo: quien lo usa ve el estado {@link State#CLOSED} y decide.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public class AsyncChatClient {
+
+	/**
+	 * Estado de la conexión.
+	 */
+	public enum State {
+
+		/** Creado, sin conectar. */
+		NEW,
+		/** Conectando y negociando el protocolo. */
+		CONNECTING,
+		/** Identificado en el servidor: se pueden enviar mensajes. */
+		CONNECTED,
+		/** Desconectando: se envía lo pendiente y el LOGOUT. */
+		CLOSING,
+		/** Conexión cerrada. */
+		CLOSED
+	}
+
+	/** Intervalo (ns) entre latidos (0 sin latidos). */
+	private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat", 15));
+	/** Latidos seguidos sin recibir nada tras los que se da la conexión por muerta. */
+	private static final int HEARTBEAT_MISSES = 3;
+	/** Espera máxima (ns) a que el servidor confirme la conexión. */
+	private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/** Indica si se pide compresión al servidor. */
+	private static final boolean COMPRESSION = !"none".equalsIgnoreCase(
+			System.getProperty("chat.compression", ChatMessageCodec.DEFLATE));
+	/** Bytes encolados sin escribir a partir de los que se rechazan los envíos. */
+	private static final long MAX_PENDING_BYTES = Math.max(1, Long.getLong("chat.client.pending", 1024 * 1024));
+	/** Tamaño inicial del búfer de lectura de cada conexión. */
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	/**
+	 * Trama pendiente de escribir y el futuro de quien la envió.
+	 */
+	private static final class Pending {
+
+		/** Bytes de la trama. */
+		final ByteBuffer bytes;
+		/** Futuro que se completa al escribirla. */
+		final CompletableFuture<Void> future;
+
+		Pending(ByteBuffer bytes, CompletableFuture<Void> future) {
+
+			this.bytes = bytes;
+			this.future = future;
+		}
+	}
+
+	/** Dirección del servidor. */
+	private final InetSocketAddress address;
+	/** Nombre de usuario. */
+	private final String username;
+	/** Bucle de E/S que atiende la conexión. */
+	private final ClientIoGroup.Loop loop;
+	/** Oyentes registrados. */
+	private final List<ChatListener> listeners = new CopyOnWriteArrayList<>();
+	/** Usuarios conectados, según los mensajes de presencia (vacío si no se ha pedido). */
+	private final Set<String> onlineUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Estado de la conexión. */
+	private final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+	/** Se completa con el ID asignado al identificarse. */
+	private final CompletableFuture<Integer> connected = new CompletableFuture<>();
+	/** Se completa al cerrarse la conexión. */
+	private final CompletableFuture<Void> closed = new CompletableFuture<>();
+	/** Tramas encoladas por cualquier hilo. */
+	private final Queue<Pending> outbound = new ConcurrentLinkedQueue<>();
+	/** Bytes de las tramas de la cola. */
+	private final AtomicLong pendingBytes = new AtomicLong();
+	/** Indica que hay una escritura encargada al bucle o esperando al socket. */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	/** Tarea que escribe lo encolado. */
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	/** Tramas sacadas de la cola y aún no escritas del todo (solo en el hilo del bucle). */
+	private final ArrayDeque<Pending> inflight = new ArrayDeque<>();
+	/** Búferes de una escritura agrupada (solo en el hilo del bucle). */
+	private final ByteBuffer[] gather = new ByteBuffer[Batching.MAX_MESSAGES];
+
+	/** Canal de la conexión (null hasta conectar). */
+	private SocketChannel channel;
+	/** Registro del canal en el selector del bucle. */
+	private SelectionKey key;
+	/** Datos recibidos aún sin decodificar (solo en el hilo del bucle). */
+	private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	/** ID asignado por el servidor (-1 hasta la confirmación). */
+	private volatile int id = -1;
+	/** Indica si el servidor ha aceptado la compresión. */
+	private volatile boolean compress;
+	/** Instante (nanoTime) del inicio de la conexión. */
+	private long startedAt;
+	/** Instante (nanoTime) en el que se recibió algo por última vez. */
+	private long lastReceived;
+	/** Instante (nanoTime) del último latido enviado. */
+	private long lastPing;
+
+	/**
+	 * Crea un cliente que usa el grupo de E/S compartido por defecto.
+	 *
+	 * @param server Dirección o nombre del servidor.
+	 * @param port Puerto del servidor.
+	 * @param username Nombre de usuario.
+	 * @throws IOException si no se puede crear el grupo compartido.
+	 */
+	public AsyncChatClient(String server, int port, String username) throws IOException {
+
+		this(server, port, username, ClientIoGroup.shared());
+	}
+
+	/**
+	 * Crea un cliente.
+	 *
+	 * @param server Dirección o nombre del servidor.
+	 * @param port Puerto del servidor.
+	 * @param username Nombre de usuario.
+	 * @param group Grupo de E/S que atenderá la conexión.
+	 */
+	public AsyncChatClient(String server, int port, String username, ClientIoGroup group) {
+
+		this.address = new InetSocketAddress((server != null) ? server : "localhost", port);
+		this.username = username;
+		this.loop = group.next();
+	}
+
+	/**
+	 * Registra un oyente.
+	 *
+	 * @param listener Oyente.
+	 */
+	public void addListener(ChatListener listener) {
+
+		listeners.add(listener);
+	}
+
+	/**
+	 * Quita un oyente.
+	 *
+	 * @param listener Oyente.
+	 */
+	public void removeListener(ChatListener listener) {
+
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Devuelve el estado de la conexión.
+	 *
+	 * @return Estado actual.
+	 */
+	public State getState() {
+
+		return state.get();
+	}
+
+	/**
+	 * Devuelve el ID asignado por el servidor.
+	 *
+	 * @return ID, o -1 si aún no se ha conectado.
+	 */
+	public int getId() {
+
+		return id;
+	}
+
+	/**
+	 * Devuelve el nombre de usuario.
+	 *
+	 * @return Nombre de usuario.
+	 */
+	public String getUsername() {
+
+		return username;
+	}
+
+	/**
+	 * Devuelve los bytes encolados que el hilo de E/S aún no ha empezado a
+	 * escribir.
+	 *
+	 * @return Bytes pendientes.
+	 */
+	public long getPendingBytes() {
+
+		return pendingBytes.get();
+	}
+
+	/**
+	 * Devuelve un futuro que se completa al cerrarse la conexión, por
+	 * cualquier motivo.
+	 *
+	 * @return Futuro del cierre.
+	 */
+	public CompletableFuture<Void> closeFuture() {
+
+		return closed;
+	}
+
+	/**
+	 * Conecta con el servidor, negocia el protocolo binario y se identifica.
+	 * Solo se puede llamar una vez.
+	 *
+	 * @return Futuro que se completa con el ID asignado, o con error si no se
+	 *         puede conectar.
+	 */
+	public CompletableFuture<Integer> connect() {
+
+		if (!state.compareAndSet(State.NEW, State.CONNECTING)) {
+			return failed(new IllegalStateException("El cliente ya se ha conectado"));
+		}
+		notifyState(State.CONNECTING);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				open();
+			}
+		});
+		return connected;
+	}
+
+	/**
+	 * Envía un mensaje al servidor. El ID del mensaje lo pone el cliente.
+	 *
+	 * @param type Tipo del mensaje.
+	 * @param text Texto del mensaje.
+	 * @return Futuro que se completa al escribirlo en el socket, o que falla
+	 *         enseguida si hay demasiados bytes pendientes.
+	 */
+	public CompletableFuture<Void> send(MessageType type, String text) {
+
+		if (state.get() != State.CONNECTED) {
+			return failed(new IllegalStateException("El cliente no está conectado"));
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(id, type, text), compress));
+		long pending = pendingBytes.get();
+		// Una trama sola se admite aunque supere el límite, para que siempre se pueda enviar
+		if (pending > 0 && pending + bytes.remaining() > MAX_PENDING_BYTES) {
+			return failed(new IllegalStateException("Cola de envío llena (" + pending + " bytes pendientes)"));
+		}
+		return enqueue(bytes);
+	}
+
+	/**
+	 * Envía un mensaje a la sala actual.
+	 *
+	 * @param text Texto del mensaje.
+	 * @return Futuro que se completa al escribirlo en el socket.
+	 */
+	public CompletableFuture<Void> send(String text) {
+
+		return send(MessageType.MESSAGE, text);
+	}
+
+	/**
+	 * Envía un mensaje privado a un usuario.
+	 *
+	 * @param user Destinatario.
+	 * @param text Texto del mensaje.
+	 * @return Futuro que se completa al escribirlo en el socket.
+	 */
+	public CompletableFuture<Void> sendPrivate(String user, String text) {
+
+		return send(MessageType.PRIVATE, user + ":" + text);
+	}
+
+	/**
+	 * Cambia de sala.
+	 *
+	 * @param room Nombre de la sala.
+	 * @return Futuro que se completa al escribir la petición en el socket.
+	 */
+	public CompletableFuture<Void> joinRoom(String room) {
+
+		return send(MessageType.JOIN, room);
+	}
+
+	/**
+	 * Vuelve a la sala por defecto.
+	 *
+	 * @return Futuro que se completa al escribir la petición en el socket.
+	 */
+	public CompletableFuture<Void> leaveRoom() {
+
+		return send(MessageType.LEAVE, "");
+	}
+
+	/**
+	 * Pide al servidor que no entregue los mensajes de un usuario.
+	 *
+	 * @param user Usuario a bloquear.
+	 * @return Futuro que se completa al escribir la petición en el socket.
+	 */
+	public CompletableFuture<Void> ban(String user) {
+
+		return send(MessageType.BAN, user);
+	}
+
+	/**
+	 * Pide al servidor que vuelva a entregar los mensajes de un usuario.
+	 *
+	 * @param user Usuario a desbloquear.
+	 * @return Futuro que se completa al escribir la petición en el socket.
+	 */
+	public CompletableFuture<Void> unban(String user) {
+
+		return send(MessageType.UNBAN, user);
+	}
+
+	/**
+	 * Se suscribe a la lista de usuarios conectados: el servidor envía la
+	 * lista entera y después solo sus cambios. El cliente la mantiene (ver
+	 * {@link #getOnlineUsers()}) y pasa además cada mensaje de presencia a los
+	 * oyentes.
+	 *
+	 * @return Futuro que se completa al escribir la petición en el socket.
+	 */
+	public CompletableFuture<Void> watchPresence() {
+
+		return send(MessageType.PRESENCE, "");
+	}
+
+	/**
+	 * Devuelve los usuarios conectados, tras {@link #watchPresence()}.
+	 *
+	 * @return Vista de solo lectura, que cambia según llegan los mensajes de presencia.
+	 */
+	public Set<String> getOnlineUsers() {
+
+		return Collections.unmodifiableSet(onlineUsers);
+	}
+
+	/**
+	 * Se despide del servidor con LOGOUT, después de escribir lo pendiente, y
+	 * cierra la conexión. Sin conexión abierta, solo la cierra.
+	 *
+	 * @return Futuro que se completa al cerrarse la conexión.
+	 */
+	public CompletableFuture<Void> disconnect() {
+
+		if (state.compareAndSet(State.CONNECTED, State.CLOSING)) {
+
+			notifyState(State.CLOSING);
+			enqueue(new ChatMessage(id, MessageType.LOGOUT, "logout")).whenComplete(
+					new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void result, Throwable error) {
+							closeLater(null);
+						}
+					});
+
+		} else {
+
+			closeLater(null);
+		}
+		return closed;
+	}
+
+	/**
+	 * Codifica un mensaje y lo encola para el hilo de E/S.
+	 *
+	 * @param msg Mensaje.
+	 * @return Futuro que se completa al escribirlo en el socket.
+	 */
+	private CompletableFuture<Void> enqueue(ChatMessage msg) {
+
+		return enqueue(ByteBuffer.wrap(ChatMessageCodec.encode(msg, compress)));
+	}
+
+	/**
+	 * Encola bytes para el hilo de E/S y le encarga escribirlos si no lo
+	 * tiene ya encargado. Los mensajes de control (saludo, latidos, LOGOUT)
+	 * entran siempre, aunque la cola esté llena.
+	 *
+	 * @param bytes Trama completa.
+	 * @return Futuro que se completa al escribirla en el socket.
+	 */
+	private CompletableFuture<Void> enqueue(ByteBuffer bytes) {
+
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		pendingBytes.addAndGet(bytes.remaining());
+		outbound.add(new Pending(bytes, future));
+		if (state.get() == State.CLOSED) {
+			// Se ha cerrado mientras se encolaba: nadie más vaciará la cola
+			failOutbound(new IOException("Conexión cerrada"));
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			execute(flushTask);
+		}
+		return future;
+	}
+
+	/**
+	 * Abre el canal y empieza a conectar. Solo en el hilo del bucle.
+	 */
+	private void open() {
+
+		try {
+
+			startedAt = System.nanoTime();
+			lastReceived = startedAt;
+			loop.add(this);
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+			if (channel.connect(address)) {
+				onConnectable();
+			}
+
+		} catch (IOException e) {
+
+			fail(e);
+		}
+	}
+
+	/**
+	 * Termina de conectar y pide el protocolo binario. Solo en el hilo del bucle.
+	 */
+	void onConnectable() {
+
+		try {
+
+			if (!channel.finishConnect()) {
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			enqueue(ByteBuffer.wrap(ChatMessageCodec.MAGIC));
+
+		} catch (IOException e) {
+
+			fail(e);
+		}
+	}
+
+	/**
+	 * Lee lo que haya llegado y trata las tramas completas. Solo en el hilo del bucle.
+	 */
+	void onReadable() {
+
+		try {
+
+			if (!inbound.hasRemaining()) {
+				inbound = grow(inbound);
+			}
+			int read = channel.read(inbound);
+			if (read < 0) {
+				fail(new EOFException("El servidor ha cerrado la conexión"));
+				return;
+			}
+			lastReceived = System.nanoTime();
+
+			inbound.flip();
+			try {
+
+				if (id < 0) {
+
+					Integer assigned = ChatMessageCodec.decodeHandshake(inbound);
+					if (assigned == null) {
+						return;
+					}
+					onHandshake(assigned);
+				}
+
+				ChatMessage msg;
+				while (key.isValid() && (msg = ChatMessageCodec.decode(inbound)) != null) {
+					onMessage(msg);
+				}
+
+			} finally {
+
+				inbound.compact();
+			}
+
+		} catch (IOException e) {
+
+			fail(e);
+		}
+	}
+
+	/**
+	 * Amplía el búfer de lectura cuando una trama no cabe en él.
+	 *
+	 * @param buffer Búfer lleno, en modo escritura.
+	 * @return Búfer del doble de tamaño con el mismo contenido.
+	 * @throws IOException si la trama supera el tamaño máximo.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer) throws IOException {
+
+		if (buffer.capacity() > ChatMessageCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("Trama demasiado larga");
+		}
+		ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	/**
+	 * Recibe el ID del servidor: pide compresión y el remitente aparte, se identifica y avisa de
+	 * que ya se pueden enviar mensajes. Solo en el hilo del bucle.
+	 *
+	 * @param assigned ID asignado.
+	 */
+	private void onHandshake(int assigned) {
+
+		id = assigned;
+		if (COMPRESSION) {
+			enqueue(new ChatMessage(id, MessageType.COMPRESS, ChatMessageCodec.DEFLATE));
+		}
+		enqueue(new ChatMessage(id, MessageType.SENDER, ""));
+		enqueue(new ChatMessage(id, MessageType.MESSAGE, username));
+		lastPing = System.nanoTime();
+
+		if (state.compareAndSet(State.CONNECTING, State.CONNECTED)) {
+			notifyState(State.CONNECTED);
+			connected.complete(id);
+		}
+	}
+
+	/**
+	 * Trata un mensaje del servidor: los latidos y la respuesta a la
+	 * compresión aquí, el resto en los oyentes. Los de presencia actualizan
+	 * además la lista de conectados. Solo en el hilo del bucle.
+	 *
+	 * @param msg Mensaje recibido.
+	 */
+	private void onMessage(ChatMessage msg) {
+
+		switch (msg.getType()) {
+
+		case PONG:
+			return;
+
+		case PING:
+			enqueue(new ChatMessage(id, MessageType.PONG, msg.getMessage()));
+			return;
+
+		case COMPRESS:
+			compress = ChatMessageCodec.DEFLATE.equals(msg.getMessage());
+			return;
+
+		case PRESENCE:
+			Presence.apply(onlineUsers, msg.getMessage());
+			notifyMessage(msg);
+			return;
+
+		default:
+			notifyMessage(msg);
+		}
+	}
+
+	/**
+	 * Entrega un mensaje a los oyentes. Solo en el hilo del bucle.
+	 */
+	private void notifyMessage(ChatMessage msg) {
+
+		for (ChatListener listener : listeners) {
+
+			try {
+				listener.onMessage(this, msg);
+			} catch (RuntimeException e) {
+				System.err.println("[ERR] Error en un oyente del cliente " + username + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Escribe lo encolado hasta vaciar la cola o llenar el búfer del socket,
+	 * varias tramas en cada escritura agrupada. Si el socket no admite más,
+	 * espera a que se pueda escribir. Solo en el hilo del bucle.
+	 */
+	void flush() {
+
+		if (key == null || !key.isValid() || !channel.isConnected()) {
+			// Aún conectando: se escribirá al terminar
+			flushScheduled.set(false);
+			if (key != null && !key.isValid()) {
+				failOutbound(new IOException("Conexión cerrada"));
+			}
+			return;
+		}
+
+		try {
+
+			while (true) {
+
+				Pending next;
+				while (inflight.size() < gather.length && (next = outbound.poll()) != null) {
+					pendingBytes.addAndGet(-next.bytes.remaining());
+					inflight.add(next);
+				}
+				if (inflight.isEmpty()) {
+					break;
+				}
+
+				int count = 0;
+				for (Pending pending : inflight) {
+					gather[count++] = pending.bytes;
+				}
+				channel.write(gather, 0, count);
+				Arrays.fill(gather, 0, count, null);
+
+				while (!inflight.isEmpty() && !inflight.peek().bytes.hasRemaining()) {
+					inflight.poll().future.complete(null);
+				}
+				if (!key.isValid()) {
+					// Quien esperaba un envío ha cerrado la conexión (p. ej. tras el LOGOUT)
+					return;
+				}
+				if (!inflight.isEmpty()) {
+
+					// El socket no admite más: esperar a que se pueda escribir
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			flushScheduled.set(false);
+			if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+				execute(flushTask);
+			}
+
+		} catch (IOException e) {
+
+			fail(e);
+		}
+	}
+
+	/**
+	 * Revisión periódica: latidos y plazos. Solo en el hilo del bucle.
+	 *
+	 * @param now Instante actual (nanoTime).
+	 */
+	void tick(long now) {
+
+		State current = state.get();
+		if (current == State.CONNECTING && now - startedAt > CONNECT_TIMEOUT_NANOS) {
+
+			fail(new IOException("El servidor no ha confirmado la conexión"));
+
+		} else if (current == State.CONNECTED && HEARTBEAT_NANOS > 0) {
+
+			if (now - lastReceived > HEARTBEAT_NANOS * HEARTBEAT_MISSES) {
+
+				fail(new IOException("El servidor no responde a los latidos"));
+
+			} else if (now - lastPing >= HEARTBEAT_NANOS) {
+
+				lastPing = now;
+				enqueue(new ChatMessage(id, MessageType.PING, Long.toString(System.currentTimeMillis())));
+			}
+		}
+	}
+
+	/**
+	 * Encarga al bucle el cierre de la conexión.
+	 *
+	 * @param cause Motivo, o null si es un cierre pedido.
+	 */
+	private void closeLater(final IOException cause) {
+
+		if (loop.inLoop()) {
+			fail(cause);
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				fail(cause);
+			}
+		});
+	}
+
+	/**
+	 * Encarga una tarea al bucle. Si el grupo ya se ha cerrado, nadie la
+	 * ejecutará: la conexión se cierra aquí mismo y fallan sus futuros.
+	 *
+	 * @param task Tarea.
+	 */
+	private void execute(Runnable task) {
+
+		if (!loop.execute(task)) {
+			fail(ClientIoGroup.closedError());
+		}
+	}
+
+	/**
+	 * Cierra la conexión, falla lo que quedaba por escribir y avisa a los
+	 * oyentes. Se puede llamar más de una vez. Solo en el hilo del bucle, o en
+	 * cualquiera si el bucle ya ha terminado.
+	 *
+	 * @param cause Motivo, o null si es un cierre pedido.
+	 */
+	void fail(IOException cause) {
+
+		if (state.getAndSet(State.CLOSED) == State.CLOSED) {
+			return;
+		}
+		loop.remove(this);
+
+		try {
+
+			if (key != null) key.cancel();
+			if (channel != null) channel.close();
+
+		} catch (IOException e) {
+
+			System.err.println("[ERR] Error al cerrar la conexión del cliente " + username + ": " + e.getMessage());
+		}
+
+		IOException error = (cause != null) ? cause : new IOException("Conexión cerrada");
+		Pending pending;
+		while ((pending = inflight.poll()) != null) {
+			pending.future.completeExceptionally(error);
+		}
+		failOutbound(error);
+
+		connected.completeExceptionally(error);
+		notifyState(State.CLOSED);
+		closed.complete(null);
+	}
+
+	/**
+	 * Falla los envíos que quedan en la cola.
+	 *
+	 * @param error Motivo.
+	 */
+	private void failOutbound(IOException error) {
+
+		Pending pending;
+		while ((pending = outbound.poll()) != null) {
+			pendingBytes.addAndGet(-pending.bytes.remaining());
+			pending.future.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * Avisa a los oyentes de un cambio de estado.
+	 *
+	 * @param newState Nuevo estado.
+	 */
+	private void notifyState(State newState) {
+
+		for (ChatListener listener : listeners) {
+
+			try {
+				listener.onStateChanged(this, newState);
+			} catch (RuntimeException e) {
+				System.err.println("[ERR] Error en un oyente del cliente " + username + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Crea un futuro ya fallido.
+	 *
+	 * @param error Motivo.
+	 * @return Futuro fallido.
+	 */
+	private static <T> CompletableFuture<T> failed(Throwable error) {
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(error);
+		return future;
+	}
+}
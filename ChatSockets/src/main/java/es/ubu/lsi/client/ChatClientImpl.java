@@ -2,21 +2,58 @@ package es.ubu.lsi.client;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import es.ubu.lsi.common.BatchingOutputStream;
 import es.ubu.lsi.common.ChatMessage;
 import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.Presence;
+import es.ubu.lsi.common.Threads;
+import es.ubu.lsi.common.WireProtocol;
 
 /**
  * Implementación del cliente de un sistema de chat basado en sockets TCP.
  * Se conecta al servidor, envía y recibe mensajes, y permite bloquear/desbloquear usuarios.
  * 
- * Gestiona un hilo para la escucha continua de mensajes del servidor.
- * Utiliza flujos de entrada/salida con objetos Java serializados.
+ * Gestiona un hilo para la escucha continua de mensajes del servidor, que puede
+ * ser virtual arrancando con -Dchat.threads=virtual.
+ * Por defecto usa el protocolo binario de {@link ChatMessageCodec}; si el servidor
+ * no lo admite, o arrancando con -Dchat.protocol=serialized, usa flujos de
+ * entrada/salida con objetos Java serializados.
  * 
- * El cliente también permite comandos especiales como "logout", "ban" y "unban".
+ * Con el protocolo binario, si se pierde la conexión el cliente se reconecta
+ * solo, esperando cada vez el doble (con algo de azar), y el servidor le
+ * reenvía las difusiones de su sala que se ha perdido, a partir del último
+ * número de secuencia recibido. -Dchat.reconnect.attempts fija los intentos
+ * (10 por defecto; 0 sale al perder la conexión, como antes).
+ * 
+ * Con el protocolo binario el cliente envía además un latido (PING) cada
+ * -Dchat.heartbeat segundos (15 por defecto; 0 lo desactiva). Así el servidor
+ * sabe que sigue vivo aunque el usuario no escriba, y el cliente detecta una
+ * conexión muerta si deja de recibir nada, y se reconecta.
+ * 
+ * También pide al servidor que comprima los mensajes largos (ver
+ * {@link ChatMessageCodec}), salvo con -Dchat.compression=none; si acepta,
+ * el cliente comprime también los que envía. Y pide que el remitente de
+ * cada difusión llegue aparte del texto, para no tener que buscarlo en él.
+ * 
+ * Con el protocolo binario el cliente se suscribe además a la lista de
+ * usuarios conectados: la recibe entera al conectar y después solo sus
+ * cambios, así que "who" la muestra sin preguntar al servidor.
+ * 
+ * El cliente también permite comandos especiales como "logout", "ban", "unban",
+ * "dm", "join", "leave" y "who".
  * 
  * @author ...
  */
@@ -33,15 +70,58 @@ public class ChatClientImpl implements ChatClient {
     /** Identificador asignado por el servidor. */
     private int id;
     /** Socket de conexión. */
-    private Socket socket;
+    private volatile Socket socket;
+    /** Protocolo usado con el servidor. */
+    private WireProtocol protocol;
+    /** Salida del socket, que agrupa los mensajes en lotes. */
+    private volatile BatchingOutputStream socketOut;
+    /** Flujo de salida en el protocolo binario. */
+    private volatile OutputStream out;
+    /** Flujo de entrada desde el servidor. */
+    private InputStream in;
+    /** Lector de tramas del protocolo binario, con su array reutilizable. */
+    private ChatMessageCodec.Reader frames;
     /** Flujo de salida para enviar mensajes al servidor. */
     private ObjectOutputStream outputStream;
     /** Flujo de entrada para recibir mensajes del servidor. */
     private ObjectInputStream inputStream;
-    /** Indica si el cliente está listo tras la configuración inicial. */
-    private boolean isConfigured = false;
+    /** Se libera cuando el cliente está listo tras la configuración inicial. */
+    private final CountDownLatch configured = new CountDownLatch(1);
     /** Lista de usuarios bloqueados por el cliente. */
-    private Set<String> blockedUsers = new HashSet<>();
+    private Set<String> blockedUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** Usuarios conectados al servidor, según los mensajes de presencia recibidos. */
+    private final Set<String> onlineUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** Ejecución del servidor que numeró los mensajes recibidos (null hasta que la comunica). */
+    private volatile String epoch;
+    /** Número de secuencia de la última difusión recibida. */
+    private volatile long lastSeq;
+    /** Sala en la que está el cliente ("" para la sala por defecto). */
+    private volatile String room = "";
+    /** Indica si hay sesión abierta con el servidor (false mientras se reconecta). */
+    private volatile boolean online;
+    /** Instante (nanoTime) en el que se recibió algo del servidor por última vez. */
+    private volatile long lastReceived;
+    /** Indica si el servidor ha aceptado la compresión, y por tanto se comprimen los mensajes largos. */
+    private volatile boolean compress;
+    /** Indica si el hilo de escucha debe ser virtual. */
+    private final boolean virtualThreads;
+    /** Cerrojo de la consola, para que los mensajes no se superpongan. */
+    private static final ReentrantLock consoleLock = new ReentrantLock();
+    /** Intentos de reconexión al perder la conexión. */
+    private static final int RECONNECT_ATTEMPTS = Integer.getInteger("chat.reconnect.attempts", 10);
+    /** Espera (ms) antes del primer intento de reconexión. */
+    private static final long RECONNECT_BASE_MILLIS = 250;
+    /** Espera (ms) máxima entre intentos de reconexión. */
+    private static final long RECONNECT_MAX_MILLIS = 8000;
+    /** Intervalo (ms) entre latidos. */
+    private static final long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.heartbeat", 15));
+    /** Latidos seguidos sin recibir nada tras los que se da la conexión por muerta. */
+    private static final int HEARTBEAT_MISSES = 3;
+    /** Indica si se pide compresión al servidor. */
+    private static final boolean COMPRESSION = !"none".equalsIgnoreCase(
+    		System.getProperty("chat.compression", ChatMessageCodec.DEFLATE));
+    /** Nombres que muestra como mucho el comando "who". */
+    private static final int WHO_LIMIT = 100;
 	
     /**
      * Constructor del cliente de chat.
@@ -51,9 +131,37 @@ public class ChatClientImpl implements ChatClient {
      */
     public ChatClientImpl(String server,int port,String username) {
     	
+    	this(server, port, username, false);
+    }
+    
+    /**
+     * Constructor del cliente de chat.
+     * @param server Dirección del servidor.
+     * @param port Puerto del servidor.
+     * @param username Nombre de usuario.
+     * @param virtualThreads true para escuchar al servidor desde un hilo virtual.
+     */
+    public ChatClientImpl(String server,int port,String username,boolean virtualThreads) {
+    	
+    	this(server, port, username, virtualThreads, WireProtocol.BINARY);
+    }
+    
+    /**
+     * Constructor del cliente de chat.
+     * @param server Dirección del servidor.
+     * @param port Puerto del servidor.
+     * @param username Nombre de usuario.
+     * @param virtualThreads true para escuchar al servidor desde un hilo virtual.
+     * @param protocol Protocolo preferido; con BINARY se recurre al serializado
+     *        si el servidor no lo admite.
+     */
+    public ChatClientImpl(String server,int port,String username,boolean virtualThreads,WireProtocol protocol) {
+    	
     	this.server = (server != null) ? server : "localhost";
     	this.port = port;
     	this.username = username;
+    	this.virtualThreads = virtualThreads;
+    	this.protocol = protocol;
     }
     
     /**
@@ -66,23 +174,42 @@ public class ChatClientImpl implements ChatClient {
 		try {
 			
 			System.out.println("Intentando conectar al servidor en " + server + ":" + port);
-			// Conectar al servidor en el puerto 1500
-			socket = new Socket(server, port);
-			outputStream = new ObjectOutputStream(socket.getOutputStream());
+			connect();
+			
+			if (protocol == WireProtocol.BINARY && !negotiateBinary()) {
+				
+				// El servidor solo entiende objetos serializados y la conexión ya no sirve
+				System.out.println("El servidor no admite el protocolo binario; se usan objetos serializados.");
+				protocol = WireProtocol.SERIALIZED;
+				closeQuietly();
+				// Los servidores antiguos no toleran bien dos conexiones seguidas: se les da un respiro
+				Thread.sleep(RECONNECT_BASE_MILLIS);
+				connect();
+			}
+			
+			if (protocol == WireProtocol.SERIALIZED) {
+				
+				// El servidor espera la cabecera del flujo para saber el protocolo
+				outputStream = new ObjectOutputStream(socketOut);
+				socketOut.flushNow();
+			}
 	
 			// Iniciar el hilo de escucha de mensajes
-	        new Thread(new ChatClientListener()).start();
+	        Threads.factory("chat-listener", virtualThreads).newThread(new ChatClientListener()).start();
 	        
-	        // esperar al hilo de escucha
-	        synchronized (this) {
-	            while (!isConfigured) {
-	                wait(); // Esperar hasta que `ChatClientListener` confirme que todo está listo
-	            }
-	        }
+	        // Esperar hasta que `ChatClientListener` confirme que todo está listo
+	        configured.await();
 	        
 	        // Enviar el nickname al servidor antes de continuar
-	     	ChatMessage loginMessage = new ChatMessage(id, MessageType.MESSAGE,username);
-	     	sendMessage(loginMessage);        
+	     	sendMessage(loginMessage());        
+	     	goOnline();
+	     	
+	     	if (protocol == WireProtocol.BINARY && HEARTBEAT_MILLIS > 0) {
+	     		
+	     		Thread heartbeat = Threads.factory("chat-heartbeat", virtualThreads).newThread(new Heartbeat());
+	     		heartbeat.setDaemon(true);
+	     		heartbeat.start();
+	     	}
 	        
             return true;
 	        
@@ -94,18 +221,201 @@ public class ChatClientImpl implements ChatClient {
 		return false;
 	}
 
+	/**
+	 * Abre el socket y sus flujos, sin negociar el protocolo.
+	 * 
+	 * @throws IOException si no se puede conectar.
+	 */
+	private void connect() throws IOException {
+		
+		socket = new Socket(server, port);
+		in = new BufferedInputStream(socket.getInputStream());
+		socketOut = new BatchingOutputStream(new BufferedOutputStream(socket.getOutputStream()),
+				Threads.factory("chat-flush", virtualThreads));
+	}
+	
+	/**
+	 * Marca la sesión como abierta y cuenta el silencio desde ahora.
+	 */
+	private void goOnline() {
+		
+		lastReceived = System.nanoTime();
+		online = true;
+	}
+	
+	/**
+	 * Crea el mensaje con el que el cliente se identifica. Con el protocolo
+	 * binario es RESUME, para recibir los números de secuencia; si ya se había
+	 * conectado, lleva además lo necesario para reanudar la sesión y los
+	 * usuarios bloqueados, para que el servidor no reenvíe sus mensajes.
+	 * 
+	 * @return Mensaje de inicio de sesión.
+	 */
+	private ChatMessage loginMessage() {
+		
+		if (protocol != WireProtocol.BINARY) {
+			return new ChatMessage(id, MessageType.MESSAGE, username);
+		}
+		if (epoch == null) {
+			return new ChatMessage(id, MessageType.RESUME, username);
+		}
+		StringBuilder text = new StringBuilder(username).append('\n').append(epoch).append('\n').append(lastSeq)
+				.append('\n').append(room);
+		for (String blocked : blockedUsers) {
+			text.append('\n').append(blocked);
+		}
+		return new ChatMessage(id, MessageType.RESUME, text.toString());
+	}
+	
+	/**
+	 * Vuelve a conectar con el servidor tras perder la conexión, esperando
+	 * entre intentos cada vez el doble, con algo de azar para que los clientes
+	 * que se cayeron a la vez no vuelvan todos a la vez. Reanuda la sesión y
+	 * vuelve a enviar los bloqueos.
+	 * 
+	 * @return true si se ha reconectado.
+	 */
+	private boolean reconnect() {
+		
+		if (protocol != WireProtocol.BINARY || RECONNECT_ATTEMPTS <= 0) {
+			return false;
+		}
+		
+		online = false;
+		System.err.println("[ERR] Conexión perdida; reintentando...");
+		long delay = RECONNECT_BASE_MILLIS;
+		for (int attempt = 1; carryOn && attempt <= RECONNECT_ATTEMPTS; attempt++) {
+			
+			closeQuietly();
+			try {
+				
+				Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+				connect();
+				if (!negotiateBinary()) {
+					System.err.println("[ERR] El servidor ya no admite el protocolo binario.");
+					return false;
+				}
+				
+				sendMessage(loginMessage());
+				goOnline();
+				System.out.println("Reconectado al servidor como " + username + " (ID: " + id + ")");
+				return true;
+				
+			} catch (IOException e) {
+				
+				System.err.println("[ERR] Intento de reconexión " + attempt + " fallido: " + e.getMessage());
+				
+			} catch (InterruptedException e) {
+				
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+		}
+		return false;
+	}
+	
+	/**
+	 * Cierra la conexión actual sin avisar al servidor, ignorando los errores.
+	 */
+	private void closeQuietly() {
+		
+		try {
+			if (socketOut != null) {
+				socketOut.close();
+			}
+		} catch (IOException e) {
+			// La conexión ya estaba rota
+		}
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// La conexión ya estaba rota
+		}
+	}
+	
+	/**
+	 * Solicita el protocolo binario y lee el ID que asigna el servidor.
+	 * 
+	 * Un servidor actual contesta con {@link ChatMessageCodec#MAGIC}. Uno
+	 * anterior al protocolo binario envía nada más aceptar la conexión la
+	 * cabecera de su flujo de objetos, y la cierra al recibir la petición en
+	 * su lugar; así que, si lo que llega es esa cabecera, hay que volver a
+	 * conectar con objetos serializados. No depende de esperas: se sabe por
+	 * los primeros bytes que llegan, tarde lo que tarde la red.
+	 * 
+	 * @return true si se usa el protocolo binario, false si el servidor es
+	 *         antiguo (la conexión ya no sirve).
+	 * @throws IOException si falla la conexión o la respuesta no es válida.
+	 */
+	private boolean negotiateBinary() throws IOException {
+		
+		socketOut.write(ChatMessageCodec.MAGIC);
+		socketOut.flushNow();
+		
+		byte[] reply = new byte[ChatMessageCodec.MAGIC.length];
+		new DataInputStream(in).readFully(reply);
+		if (!Arrays.equals(reply, ChatMessageCodec.MAGIC)) {
+			
+			if (isStreamHeader(reply)) {
+				return false;
+			}
+			throw new StreamCorruptedException("Respuesta del servidor no válida");
+		}
+		out = socketOut;
+		
+		id = ChatMessageCodec.readHandshakeId(in);
+		frames = new ChatMessageCodec.Reader(in);
+		
+		// Cada conexión negocia de nuevo la compresión y pide el remitente aparte
+		compress = false;
+		if (COMPRESSION) {
+			sendMessage(new ChatMessage(id, MessageType.COMPRESS, ChatMessageCodec.DEFLATE));
+		}
+		sendMessage(new ChatMessage(id, MessageType.SENDER, ""));
+		sendMessage(new ChatMessage(id, MessageType.PRESENCE, ""));
+		return true;
+	}
+
+	/**
+	 * Indica si unos bytes son la cabecera de un flujo de objetos serializados.
+	 * 
+	 * @param bytes Primeros bytes recibidos.
+	 * @return true si empiezan por STREAM_MAGIC y STREAM_VERSION.
+	 */
+	private static boolean isStreamHeader(byte[] bytes) {
+		
+		return bytes.length >= 4
+				&& ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF)) == (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF)
+				&& ((bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF)) == ObjectStreamConstants.STREAM_VERSION;
+	}
+
 	/**
 	 * Envía un mensaje al servidor.
 	 * 
+	 * En el protocolo serializado se reinicia el flujo tras cada objeto para
+	 * que la tabla de handles no crezca durante toda la sesión.
+	 * 
+	 * El flush no envía en el acto: los mensajes seguidos se agrupan en una
+	 * sola escritura (ver {@link BatchingOutputStream}).
+	 * 
 	 * @param msg Objeto ChatMessage que se desea enviar.
 	 */
 	public void sendMessage(ChatMessage msg) {
 		
 		try {
 			
-			if (outputStream != null) {
+			if (out != null) {
+				
+				ChatMessageCodec.write(out, msg, compress);
+				out.flush();
+				
+			} else if (outputStream != null) {
 				
 				outputStream.writeObject(msg);
+				outputStream.reset();
 				outputStream.flush();
 			}
 			
@@ -125,7 +435,7 @@ public class ChatClientImpl implements ChatClient {
 		
 		try {
 			
-			if (outputStream  != null) {
+			if (outputStream  != null || out != null) {
 				
 				// Enviar mensaje de LOGOUT al servidor antes de cerrar
 				ChatMessage logoutMessage = new ChatMessage(id, MessageType.LOGOUT, "logout");
@@ -133,6 +443,12 @@ public class ChatClientImpl implements ChatClient {
 				
 			}
 			
+			if (socketOut != null) {
+				
+				// Enviar lo pendiente antes de cerrar
+				socketOut.close();
+			}
+			
 			if (socket  != null) {
 				
 				socket.close();
@@ -160,33 +476,82 @@ public class ChatClientImpl implements ChatClient {
 			
 			try {
 				
-				inputStream = new ObjectInputStream(socket.getInputStream());
-				// Recibir el ID asignado por el servidor
-	            id = inputStream.readInt();
+				if (protocol == WireProtocol.SERIALIZED) {
+					
+					inputStream = new ObjectInputStream(in);
+					// Recibir el ID asignado por el servidor
+					id = inputStream.readInt();
+				}
 	            System.out.println("Conectado al servidor como " + username + " (ID: " + id + ")");
 	            
-	            // Notificar al que todo está listo
-	            synchronized (ChatClientImpl.this) { // Bloqueo sobre la instancia principal
-	                isConfigured = true;
-	                ChatClientImpl.this.notify();  // Notificar al `wait()` en `start()`
-	            }
+	            // Notificar a `start()` que todo está listo
+	            configured.countDown();
 				
 				while (carryOn) {
 					
-					ChatMessage msg = (ChatMessage) inputStream.readObject();
+					ChatMessage msg;
+					try {
+						
+						msg = (protocol == WireProtocol.BINARY)
+								? frames.read()
+								: (ChatMessage) inputStream.readObject();
+						
+					} catch (IOException e) {
+						
+						// Reanudar la sesión si se puede; si no, terminar como siempre
+						if (carryOn && reconnect()) {
+							continue;
+						}
+						throw e;
+					}
 					
 					// Manejar el apagado del servidor
 	                if (msg.getType() == ChatMessage.MessageType.SHUTDOWN) {
-	                    System.out.println("[SERVIDOR] " + msg.getMessage());
+	                    System.out.println("[SERVIDOR] " + msg.getDisplayText());
 	                    System.out.println("Desconectando...");
 	                    System.exit(0);  // Salir del programa
 	                }
-					
-					// Extraer el nombre del usuario del mensaje
-	                String[] parts = msg.getMessage().split(":", 2);
-	                if (parts.length < 2) continue;  // Mensaje mal formateado
 	                
-	                String senderUsername = parts[0].trim();
+	                lastReceived = System.nanoTime();
+	                
+	                // Latidos: basta con haberlos recibido
+	                if (msg.getType() == ChatMessage.MessageType.PONG) {
+	                	continue;
+	                }
+	                if (msg.getType() == ChatMessage.MessageType.PING) {
+	                	sendMessage(new ChatMessage(id, MessageType.PONG, msg.getMessage()));
+	                	continue;
+	                }
+	                
+	                // Respuesta a la petición de compresión
+	                if (msg.getType() == ChatMessage.MessageType.COMPRESS) {
+	                	compress = ChatMessageCodec.DEFLATE.equals(msg.getMessage());
+	                	continue;
+	                }
+	                
+	                // Lista de conectados: instantánea al suscribirse y cambios después
+	                if (msg.getType() == ChatMessage.MessageType.PRESENCE) {
+	                	Presence.apply(onlineUsers, msg.getMessage());
+	                	continue;
+	                }
+	                
+	                // Respuesta al inicio de sesión: ejecución del servidor que numera los mensajes
+	                if (msg.getType() == ChatMessage.MessageType.RESUME) {
+	                	epoch = msg.getMessage();
+	                	continue;
+	                }
+	                if (msg.getSeq() != 0) {
+	                	lastSeq = msg.getSeq();
+	                }
+					
+					// El remitente viene aparte; con objetos serializados, delante del texto
+	                String senderUsername = msg.getSender();
+	                if (senderUsername == null) {
+	                	
+	                	String[] parts = msg.getMessage().split(":", 2);
+	                	if (parts.length < 2) continue;  // Mensaje mal formateado
+	                	senderUsername = parts[0].trim();
+	                }
 
 					
 					// Verificar si el mensaje viene de un usuario bloqueado
@@ -194,11 +559,15 @@ public class ChatClientImpl implements ChatClient {
 	                    continue; // Ignorar el mensaje si el usuario está bloqueado
 	                }
 					
-					synchronized (System.out) {	// Bloquear la impresión para evitar superposición
+					consoleLock.lock();	// Bloquear la impresión para evitar superposición
+					try {
 						
-						System.out.println("\r" + msg.getMessage()); // \r borra línea actual
+						System.out.println("\r" + msg.getDisplayText()); // \r borra línea actual
 						System.out.print("> ");
 						
+	                } finally {
+	                	
+	                	consoleLock.unlock();
 	                }
 					
 				}
@@ -216,7 +585,63 @@ public class ChatClientImpl implements ChatClient {
 	}
 	
 	/**
-	 * Bloquea los mensajes de un usuario dado e informa al servidor.
+	 * Hilo de los latidos: envía un PING cada {@link #HEARTBEAT_MILLIS} y, si
+	 * lleva {@link #HEARTBEAT_MISSES} intervalos sin recibir nada del servidor,
+	 * cierra la conexión para que el hilo de escucha se reconecte. Mientras se
+	 * reconecta no hace nada.
+	 */
+	private class Heartbeat implements Runnable {
+		
+		public void run() {
+			
+			while (carryOn) {
+				
+				try {
+					Thread.sleep(HEARTBEAT_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!carryOn || !online) {
+					continue;
+				}
+				
+				if (System.nanoTime() - lastReceived > TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS * HEARTBEAT_MISSES)) {
+					
+					System.err.println("[ERR] El servidor no responde a los latidos.");
+					online = false;
+					closeQuietly();
+					continue;
+				}
+				sendMessage(new ChatMessage(id, MessageType.PING, Long.toString(System.currentTimeMillis())));
+			}
+		}
+	}
+	
+	/**
+	 * Crea el mensaje que comunica un bloqueo o desbloqueo al servidor.
+	 * 
+	 * En el protocolo binario el servidor es seguro que conoce BAN y UNBAN. Con
+	 * objetos serializados puede ser una versión anterior, que no podría leer esos
+	 * tipos, así que se envía el aviso de texto de siempre; los servidores
+	 * actuales también lo entienden.
+	 * 
+	 * @param type BAN o UNBAN.
+	 * @param target Usuario afectado.
+	 * @param legacyText Texto del aviso entre el nombre propio y el del usuario afectado.
+	 * @return Mensaje a enviar.
+	 */
+	private ChatMessage blockMessage(MessageType type, String target, String legacyText) {
+		
+		if (protocol == WireProtocol.BINARY) {
+			return new ChatMessage(id, type, target);
+		}
+		return new ChatMessage(id, MessageType.MESSAGE, this.username + legacyText + target);
+	}
+	
+	/**
+	 * Bloquea los mensajes de un usuario dado e informa al servidor, que deja
+	 * de enviarlos. Se siguen filtrando también aquí por si el servidor es
+	 * una versión anterior que los reenvía.
 	 * 
 	 * @param username Nombre del usuario a bloquear.
 	 */
@@ -226,10 +651,8 @@ public class ChatClientImpl implements ChatClient {
 	        blockedUsers.add(username);
 	        System.out.println(username + " ha sido bloqueado.");
 	        
-	        // Enviar mensaje al servidor notificando el baneo
-	        ChatMessage banMessage = new ChatMessage(this.id, ChatMessage.MessageType.MESSAGE, 
-	                this.username + " ha bloqueado a " + username);
-	        sendMessage(banMessage);
+	        // Pedir al servidor que deje de enviarnos sus mensajes
+	        sendMessage(blockMessage(MessageType.BAN, username, " ha bloqueado a "));
 	        
 	    } else {
 	    	
@@ -248,10 +671,8 @@ public class ChatClientImpl implements ChatClient {
 	        blockedUsers.remove(username);
 	        System.out.println(username + " ha sido desbloqueado.");
 	        
-	        // Enviar mensaje al servidor notificando el desbloqueo
-	        ChatMessage unbanMessage = new ChatMessage(this.id, ChatMessage.MessageType.MESSAGE, 
-	                this.username + " ha desbloqueado a " + username);
-	        sendMessage(unbanMessage);
+	        // Pedir al servidor que vuelva a enviarnos sus mensajes
+	        sendMessage(blockMessage(MessageType.UNBAN, username, " ha desbloqueado a "));
 	        
 	    } else {
 	    	
@@ -260,11 +681,117 @@ public class ChatClientImpl implements ChatClient {
 	    
 	}
 	
+	/**
+	 * Envía un mensaje privado a un usuario; el resto de clientes no lo reciben.
+	 * 
+	 * @param user Nombre del destinatario.
+	 * @param text Texto del mensaje.
+	 */
+	public void sendPrivate(String user, String text) {
+		
+		if (requireBinary("Los mensajes privados")) {
+			sendMessage(new ChatMessage(id, MessageType.PRIVATE, user + ":" + text));
+		}
+	}
+	
+	/**
+	 * Cambia de sala: a partir de ahora solo se reciben los mensajes de esa sala
+	 * y los propios solo llegan a sus miembros.
+	 * 
+	 * @param room Nombre de la sala.
+	 */
+	public void joinRoom(String room) {
+		
+		if (requireBinary("Las salas")) {
+			sendMessage(new ChatMessage(id, MessageType.JOIN, room));
+			this.room = room;
+		}
+	}
+	
+	/**
+	 * Vuelve a la sala por defecto del servidor.
+	 */
+	public void leaveRoom() {
+		
+		if (requireBinary("Las salas")) {
+			sendMessage(new ChatMessage(id, MessageType.LEAVE, ""));
+			room = "";
+		}
+	}
+	
+	/**
+	 * Pide al servidor el historial de la sala actual; solo lo recibe este cliente.
+	 * 
+	 * @param spec "N" para los últimos N mensajes, "@offset" para los posteriores a un offset.
+	 */
+	public void requestHistory(String spec) {
+		
+		if (requireBinary("El historial")) {
+			sendMessage(new ChatMessage(id, MessageType.HISTORY, spec));
+		}
+	}
+	
+	/**
+	 * Devuelve los usuarios conectados al servidor, por orden alfabético. La
+	 * lista se mantiene con los mensajes de presencia, sin preguntar al servidor.
+	 * 
+	 * @return Copia de los nombres (vacía con objetos serializados).
+	 */
+	public List<String> getOnlineUsers() {
+		
+		List<String> names = new ArrayList<>(onlineUsers);
+		Collections.sort(names);
+		return names;
+	}
+	
+	/**
+	 * Muestra los usuarios conectados, como mucho {@link #WHO_LIMIT}.
+	 */
+	private void printOnlineUsers() {
+		
+		if (!requireBinary("Los usuarios conectados")) {
+			return;
+		}
+		List<String> names = getOnlineUsers();
+		StringBuilder line = new StringBuilder("Conectados (").append(names.size()).append("):");
+		for (int i = 0; i < names.size() && i < WHO_LIMIT; i++) {
+			line.append(i == 0 ? " " : ", ").append(names.get(i));
+		}
+		if (names.size() > WHO_LIMIT) {
+			line.append(" y ").append(names.size() - WHO_LIMIT).append(" más");
+		}
+		System.out.println(line);
+	}
+	
+	/**
+	 * Comprueba que se usa el protocolo binario antes de enviar un tipo de
+	 * mensaje nuevo. Con objetos serializados el servidor podría ser una versión
+	 * anterior que no lo entiende y cortaría la conexión.
+	 * 
+	 * @param feature Funcionalidad solicitada, para el aviso.
+	 * @return true si se puede enviar.
+	 */
+	private boolean requireBinary(String feature) {
+		
+		if (protocol != WireProtocol.BINARY) {
+			System.out.println(feature + " requieren el protocolo binario.");
+			return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Método principal para ejecutar el cliente desde consola usando Maven.
 	 * 
 	 * Uso esperado:
 	 * - mvn exec:java@run-client [servidor] nickname
+	 * - Con -Dchat.threads=virtual el hilo de escucha es un hilo virtual
+	 * - Con -Dchat.protocol=serialized se usan objetos serializados en lugar del protocolo binario
+	 * - Con -Dchat.port se conecta a otro puerto (por ejemplo, a otro nodo de un clúster)
+	 * - Con -Dchat.history=N se piden los últimos N mensajes de la sala al conectar
+	 * - Con -Dchat.reconnect.attempts=N se reintenta N veces la conexión al perderla (0 para no reintentar)
+	 * - Con -Dchat.heartbeat=S se envía un latido cada S segundos (0 para no enviarlos)
+	 * - Con -Dchat.compression=none no se pide compresión al servidor
 	 * 
 	 * @param args Argumentos de la línea de comandos (servidor y nickname).
 	 */
@@ -272,7 +799,7 @@ public class ChatClientImpl implements ChatClient {
 		
 		String server = "localhost";  // Valor por defecto
 	    String username;
-	    int port = 1500;
+	    int port = Integer.getInteger("chat.port", 1500);
 	    ChatMessage chatMessage;
 	    
 	    if (args.length == 1) {
@@ -290,7 +817,9 @@ public class ChatClientImpl implements ChatClient {
 	        return;
 	    }
 	    
-	    ChatClientImpl client = new ChatClientImpl(server,port,username);
+	    boolean virtual = "virtual".equalsIgnoreCase(System.getProperty("chat.threads"));
+	    WireProtocol protocol = WireProtocol.fromName(System.getProperty("chat.protocol"));
+	    ChatClientImpl client = new ChatClientImpl(server,port,username,virtual,protocol);
 	    
 	    
 	    
@@ -298,6 +827,11 @@ public class ChatClientImpl implements ChatClient {
             Scanner scanner = new Scanner(System.in);
             System.out.println("Cliente "+username+": Escriba mensajes para enviar. Escriba 'logout' para salir.");
             
+            String history = System.getProperty("chat.history");
+            if (history != null) {
+            	client.requestHistory(history);
+            }
+            
             while (client.carryOn) {
             	
             	System.out.print("> ");
@@ -318,6 +852,37 @@ public class ChatClientImpl implements ChatClient {
                 	String userToUnban = msg.substring(6).trim();
                 	client.unbanUser(userToUnban);
                     continue;
+                    
+                } else if (msg.startsWith("dm ")) {
+                	
+                	String[] dm = msg.substring(3).trim().split(" ", 2);
+                	if (dm.length == 2) {
+                		client.sendPrivate(dm[0], dm[1]);
+                	} else {
+                		System.out.println("Uso: dm usuario mensaje");
+                	}
+                	continue;
+                	
+                } else if (msg.startsWith("join ")) {
+                	
+                	client.joinRoom(msg.substring(5).trim());
+                	continue;
+                	
+                } else if (msg.equalsIgnoreCase("leave")) {
+                	
+                	client.leaveRoom();
+                	continue;
+                	
+                } else if (msg.equalsIgnoreCase("history") || msg.startsWith("history ")) {
+                	
+                	String spec = msg.substring(7).trim();
+                	client.requestHistory(spec.isEmpty() ? "20" : spec);
+                	continue;
+                	
+                } else if (msg.equalsIgnoreCase("who")) {
+                	
+                	client.printOnlineUsers();
+                	continue;
                 }
                 
                 // Crear mensaje con el tipo adecuado y enviarlo
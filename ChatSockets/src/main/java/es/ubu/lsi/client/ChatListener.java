@@ -0,0 +1,33 @@
+package es.ubu.lsi.client;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Oyente de un {@link AsyncChatClient}: recibe los mensajes del servidor y
+ * los cambios de estado de la conexión.
+ *
+ * Se invoca desde el hilo de E/S que atiende la conexión, compartido con
+ * otros clientes del mismo {@link ClientIoGroup}, así que no debe bloquearse:
+ * el trabajo largo se pasa a otro hilo.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public interface ChatListener {
+
+	/**
+	 * Recibe un mensaje del servidor. Los latidos y la respuesta a la
+	 * negociación de compresión los atiende el cliente y no llegan aquí.
+	 *
+	 * @param client Cliente que lo ha recibido.
+	 * @param msg Mensaje recibido.
+	 */
+	void onMessage(AsyncChatClient client, ChatMessage msg);
+
+	/**
+	 * Avisa de un cambio de estado de la conexión.
+	 *
+	 * @param client Cliente cuyo estado ha cambiado.
+	 * @param state Nuevo estado.
+	 */
+	void onStateChanged(AsyncChatClient client, AsyncChatClient.State state);
+}
@@ -0,0 +1,270 @@
+package es.ubu.lsi.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Hilos de E/S compartidos por muchos {@link AsyncChatClient}: cada hilo
+ * tiene su propio selector y atiende un subconjunto de las conexiones, como
+ * los bucles del servidor NIO. Así un mismo proceso puede mantener miles de
+ * clientes con unos pocos hilos.
+ *
+ * Cada bucle revisa además una vez por segundo sus conexiones, para enviar
+ * los latidos y detectar las que han dejado de responder, sin un hilo ni un
+ * temporizador por cliente.
+ *
+ * Los hilos son daemon: no impiden que termine la aplicación que los usa.
+ * Tras {@link #close()} los bucles ya no aceptan tareas, y las conexiones
+ * que aún se abran o escriban con el grupo fallan enseguida.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class ClientIoGroup implements Closeable {
+
+	/** Intervalo (ms) entre revisiones de las conexiones. */
+	private static final long TICK_MILLIS = 1000;
+	/** Grupo compartido por defecto (null hasta que se necesita). */
+	private static ClientIoGroup shared;
+
+	/** Bucles del grupo. */
+	private final Loop[] loops;
+	/** Bucle al que se asigna la siguiente conexión. */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Crea un grupo y arranca sus hilos.
+	 *
+	 * @param threads Número de hilos de E/S.
+	 * @throws IOException si no se puede abrir un selector.
+	 */
+	public ClientIoGroup(int threads) throws IOException {
+
+		loops = new Loop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new Loop();
+		}
+		for (int i = 0; i < loops.length; i++) {
+
+			Thread thread = Threads.factory("chat-client-io-" + i, false).newThread(loops[i]);
+			thread.setDaemon(true);
+			loops[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Devuelve el grupo compartido por defecto, con un hilo por núcleo. Se
+	 * crea la primera vez que se pide y no se cierra nunca.
+	 *
+	 * @return Grupo compartido.
+	 * @throws IOException si no se puede crear.
+	 */
+	public static synchronized ClientIoGroup shared() throws IOException {
+
+		if (shared == null) {
+			shared = new ClientIoGroup(Runtime.getRuntime().availableProcessors());
+		}
+		return shared;
+	}
+
+	/**
+	 * Crea el error con el que fallan las conexiones de un grupo cerrado.
+	 *
+	 * @return Error.
+	 */
+	static IOException closedError() {
+
+		return new IOException("Se ha cerrado el grupo de E/S del cliente");
+	}
+
+	/**
+	 * Asigna un bucle a una conexión nueva, por turnos.
+	 *
+	 * @return Bucle que la atenderá.
+	 */
+	Loop next() {
+
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Detiene los hilos del grupo; las conexiones que sigan abiertas se
+	 * cierran sin avisar al servidor.
+	 */
+	@Override
+	public void close() {
+
+		for (Loop loop : loops) {
+			loop.stop();
+		}
+	}
+
+	/**
+	 * Bucle de E/S: un hilo con su propio selector. El resto de hilos solo le
+	 * encargan tareas a través de la cola.
+	 */
+	final class Loop implements Runnable {
+
+		/** Hilo del bucle. */
+		private Thread thread;
+		/** Selector de las conexiones del bucle. */
+		final Selector selector;
+		/** Tareas encargadas desde otros hilos. */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/** Conexiones del bucle (solo en el hilo del bucle). */
+		private final Set<AsyncChatClient> clients = new HashSet<>();
+		/** Indica si el bucle sigue en marcha. */
+		private volatile boolean running = true;
+		/** Indica que el bucle ya no ejecutará más tareas que las pendientes. */
+		private volatile boolean terminated;
+
+		Loop() throws IOException {
+
+			selector = Selector.open();
+		}
+
+		/**
+		 * Encarga una tarea al bucle y lo despierta.
+		 *
+		 * @param task Tarea.
+		 * @return false si el bucle ya ha terminado y la tarea no se ejecutará.
+		 */
+		boolean execute(Runnable task) {
+
+			tasks.add(task);
+			// Si ha terminado, la tarea solo se ejecuta si la recogió el último vaciado de la cola
+			if (terminated && tasks.remove(task)) {
+				return false;
+			}
+			selector.wakeup();
+			return true;
+		}
+
+		/**
+		 * Indica si se está en el hilo del bucle.
+		 *
+		 * @return true si el hilo actual es el del bucle.
+		 */
+		boolean inLoop() {
+
+			return Thread.currentThread() == thread;
+		}
+
+		/**
+		 * Añade una conexión a las que revisa el bucle. Solo en el hilo del bucle.
+		 *
+		 * @param client Cliente.
+		 */
+		void add(AsyncChatClient client) {
+
+			clients.add(client);
+		}
+
+		/**
+		 * Quita una conexión cerrada. Solo en el hilo del bucle.
+		 *
+		 * @param client Cliente.
+		 */
+		void remove(AsyncChatClient client) {
+
+			clients.remove(client);
+		}
+
+		/**
+		 * Detiene el bucle.
+		 */
+		void stop() {
+
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+
+			long nextTick = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+			try {
+
+				while (running) {
+
+					long wait = TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime());
+					if (!tasks.isEmpty()) {
+						selector.selectNow();
+					} else {
+						selector.select(Math.max(1, wait));
+					}
+					runTasks();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+
+						SelectionKey key = keys.next();
+						keys.remove();
+						AsyncChatClient client = (AsyncChatClient) key.attachment();
+
+						if (!key.isValid()) continue;
+						if (key.isConnectable()) client.onConnectable();
+						if (key.isValid() && key.isReadable()) client.onReadable();
+						if (key.isValid() && key.isWritable()) client.flush();
+					}
+
+					long now = System.nanoTime();
+					if (now - nextTick >= 0) {
+
+						nextTick = now + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+						for (AsyncChatClient client : new ArrayList<>(clients)) {
+							client.tick(now);
+						}
+					}
+				}
+
+			} catch (IOException | ClosedSelectorException e) {
+
+				System.err.println("[ERR] Error en el hilo de E/S " + thread.getName() + ": " + e.getMessage());
+
+			} finally {
+
+				terminated = true;
+				runTasks();
+				IOException cause = closedError();
+				for (AsyncChatClient client : new ArrayList<>(clients)) {
+					client.fail(cause);
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					System.err.println("[ERR] Error al cerrar el selector: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Ejecuta las tareas encargadas hasta ahora.
+		 */
+		private void runTasks() {
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					System.err.println("[ERR] Error en una tarea del cliente: " + e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package es.ubu.lsi.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parámetros de la agrupación de escrituras, comunes a servidor y cliente.
+ *
+ * Los mensajes que se envían a una misma conexión dentro de una ventana corta
+ * se escriben juntos, con una sola llamada al sistema y normalmente en un solo
+ * segmento TCP. Un lote se escribe al completar {@link #MAX_MESSAGES} mensajes
+ * o al pasar {@link #LINGER_NANOS} desde el primero, lo que antes ocurra, así
+ * que la espera añadida a un mensaje nunca supera la ventana.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class Batching {
+
+	/** Mensajes por lote (-Dchat.batch.max). */
+	public static final int MAX_MESSAGES = Math.max(1, Integer.getInteger("chat.batch.max", 64));
+	/** Ventana de espera para completar un lote, en ns (-Dchat.batch.linger, en microsegundos; 0 la desactiva). */
+	public static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Math.max(0L, Long.getLong("chat.batch.linger", 1000L)));
+
+	private Batching() {
+	}
+}
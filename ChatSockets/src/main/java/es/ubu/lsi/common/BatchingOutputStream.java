@@ -0,0 +1,249 @@
+package es.ubu.lsi.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flujo de salida que agrupa los mensajes antes de enviarlos.
+ *
+ * Quien escribe llama a {@link #flush()} al terminar cada mensaje, como con
+ * cualquier flujo; aquí eso solo marca el mensaje como listo. El flujo
+ * subyacente (que debe tener búfer) se vacía cuando hay
+ * {@link Batching#MAX_MESSAGES} mensajes listos o cuando pasa
+ * {@link Batching#LINGER_NANOS} desde el primero, desde un hilo auxiliar.
+ * {@link #flushNow()} vacía inmediatamente.
+ *
+ * Si falla una escritura del hilo auxiliar, el error se lanza en la siguiente
+ * operación del flujo.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class BatchingOutputStream extends FilterOutputStream {
+
+	/** Factoría del hilo que vacía los lotes por tiempo. */
+	private final ThreadFactory threads;
+	/** Cerrojo del flujo (no monitores, para no fijar hilos virtuales durante la E/S). */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Condición de lote pendiente (o flujo cerrado). */
+	private final Condition batchStarted = lock.newCondition();
+	/** Mensajes listos aún no enviados. */
+	private int ready;
+	/** Instante (System.nanoTime) en el que debe enviarse el lote actual. */
+	private long deadline;
+	/** Hilo que vacía los lotes por tiempo (null hasta que se necesite). */
+	private Thread flusher;
+	/** Indica si el flujo está cerrado. */
+	private boolean closed;
+	/** Error de una escritura del hilo auxiliar, pendiente de notificar. */
+	private IOException failure;
+
+	/**
+	 * Crea el flujo.
+	 *
+	 * @param out Flujo subyacente, con búfer.
+	 * @param threads Factoría para el hilo auxiliar.
+	 */
+	public BatchingOutputStream(OutputStream out, ThreadFactory threads) {
+
+		super(out);
+		this.threads = threads;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		lock.lock();
+		try {
+
+			check();
+			out.write(b);
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		lock.lock();
+		try {
+
+			check();
+			out.write(b, off, len);
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marca como listo lo escrito hasta ahora. Se envía ya si completa un lote
+	 * o si la ventana está desactivada; si no, al cerrarse la ventana.
+	 *
+	 * @throws IOException si falla el envío o falló uno anterior.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		lock.lock();
+		try {
+
+			check();
+			ready++;
+			if (ready >= Batching.MAX_MESSAGES || Batching.LINGER_NANOS == 0) {
+
+				send();
+
+			} else if (ready == 1) {
+
+				deadline = System.nanoTime() + Batching.LINGER_NANOS;
+				if (flusher == null) {
+					startFlusher();
+				}
+				batchStarted.signal();
+			}
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Envía inmediatamente todo lo escrito.
+	 *
+	 * @throws IOException si falla el envío o falló uno anterior.
+	 */
+	public void flushNow() throws IOException {
+
+		lock.lock();
+		try {
+
+			check();
+			send();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Envía lo pendiente, detiene el hilo auxiliar y cierra el flujo subyacente.
+	 *
+	 * @throws IOException si falla el envío o el cierre.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		lock.lock();
+		try {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			batchStarted.signalAll();
+			try {
+				send();
+			} finally {
+				out.close();
+			}
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Vacía el flujo subyacente. Se llama con el cerrojo tomado.
+	 */
+	private void send() throws IOException {
+
+		ready = 0;
+		out.flush();
+	}
+
+	/**
+	 * Lanza el error pendiente del hilo auxiliar, si lo hay. Se llama con el cerrojo tomado.
+	 */
+	private void check() throws IOException {
+
+		if (failure != null) {
+			IOException e = failure;
+			failure = null;
+			throw e;
+		}
+		if (closed) {
+			throw new IOException("Flujo cerrado");
+		}
+	}
+
+	/**
+	 * Arranca el hilo auxiliar. Se llama con el cerrojo tomado.
+	 */
+	private void startFlusher() {
+
+		flusher = threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				flushOnDeadline();
+			}
+		});
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Cuerpo del hilo auxiliar: espera a que empiece un lote y lo envía al
+	 * cerrarse su ventana, salvo que ya se haya enviado por tamaño.
+	 */
+	private void flushOnDeadline() {
+
+		lock.lock();
+		try {
+
+			while (!closed) {
+
+				if (ready == 0) {
+
+					batchStarted.await();
+					continue;
+				}
+
+				long wait = deadline - System.nanoTime();
+				if (wait > 0) {
+
+					batchStarted.awaitNanos(wait);
+					continue;
+				}
+
+				try {
+
+					send();
+
+				} catch (IOException e) {
+
+					failure = e;
+					ready = 0;
+				}
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+}
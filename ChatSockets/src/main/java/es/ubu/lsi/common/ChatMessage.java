@@ -27,7 +27,44 @@ public class ChatMessage implements Serializable {
 		/** Shutdown server. */
 		SHUTDOWN,		
 		/** Logout client. */
-		LOGOUT;		
+		LOGOUT,
+		/** Block messages from the user named in the text. */
+		BAN,
+		/** Unblock messages from the user named in the text. */
+		UNBAN,
+		/** Move to the room named in the text. */
+		JOIN,
+		/** Go back to the default room. */
+		LEAVE,
+		/** Private message, with text "recipient:message". */
+		PRIVATE,
+		/** Replay of the room history: "N" for the last N messages, "@offset" for everything since an offset. */
+		HISTORY,
+		/**
+		 * Login asking for sequence numbers: "name", or "name\nepoch\nlastSeq\nroom"
+		 * to resume after a reconnection, followed by one blocked user per line.
+		 * The server answers with its epoch.
+		 */
+		RESUME,
+		/** Heartbeat; the other side answers with PONG and the same text. */
+		PING,
+		/** Answer to a PING. */
+		PONG,
+		/**
+		 * Asks the other side to compress large frames; the text names the mode
+		 * ("deflate"). The server answers with the mode it accepts, empty for none.
+		 */
+		COMPRESS,
+		/**
+		 * Asks the server to send the sender name of broadcasts as a separate
+		 * field of the binary frame instead of inside the text. No answer.
+		 */
+		SENDER,
+		/**
+		 * Asks the server for the users online: it answers with a snapshot and
+		 * then sends the changes, one line per user (see {@link Presence}).
+		 */
+		PRESENCE;
 	}
 	
 	/** Type. */
@@ -39,6 +76,12 @@ public class ChatMessage implements Serializable {
 	/** Client id. */
 	private int id;
 	
+	/** Sequence number of a room broadcast (0 if none). Only sent in binary frames. */
+	private transient long seq;
+	
+	/** Sender name, carried apart from the text (null if it is inside the text). Only sent in binary frames. */
+	private transient String sender;
+	
 	/**
 	 * Constructor.
 	 * 
@@ -52,6 +95,33 @@ public class ChatMessage implements Serializable {
 		this.setMessage(message);
 	}
 	
+	/**
+	 * Constructor for a numbered room broadcast.
+	 * 
+	 * @param id client id
+	 * @param type type
+	 * @param message message
+	 * @param seq sequence number
+	 */
+	public ChatMessage(int id, MessageType type, String message, long seq) {
+		this(id, type, message);
+		this.seq = seq;
+	}
+	
+	/**
+	 * Constructor for a message whose sender name goes apart from the text.
+	 * 
+	 * @param id client id
+	 * @param type type
+	 * @param message message, without the sender name
+	 * @param seq sequence number (0 if none)
+	 * @param sender sender name
+	 */
+	public ChatMessage(int id, MessageType type, String message, long seq, String sender) {
+		this(id, type, message, seq);
+		this.sender = sender;
+	}
+	
 	/**
 	 * Gets type.
 	 * 
@@ -112,5 +182,32 @@ public class ChatMessage implements Serializable {
 	private void setId(int id) {
 		this.id = id;
 	}
-}
 
+	/**
+	 * Gets sequence number.
+	 * 
+	 * @return sequence number, or 0 if the message is not numbered
+	 */
+	public long getSeq() {
+		return seq;
+	}
+	
+	/**
+	 * Gets sender name.
+	 * 
+	 * @return sender name, or null if it is inside the text ("sender: text")
+	 */
+	public String getSender() {
+		return sender;
+	}
+	
+	/**
+	 * Gets the text as shown to users, with the sender name in front if it
+	 * travels apart.
+	 * 
+	 * @return "sender: text", or the text if there is no separate sender
+	 */
+	public String getDisplayText() {
+		return (sender == null) ? message : sender + ": " + message;
+	}
+}
@@ -0,0 +1,825 @@
+package es.ubu.lsi.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Codificación binaria compacta de {@link ChatMessage}, alternativa a la
+ * serialización de Java.
+ *
+ * Cada mensaje viaja en una trama con el formato:
+ * <pre>
+ *   longitud (varint) | tipo (1 byte) | id (varint zigzag) | [secuencia (varint)]
+ *     | [longitud del remitente (varint) | remitente (UTF-8)] | texto (UTF-8)
+ * </pre>
+ * donde la longitud cuenta los bytes que la siguen. La secuencia solo aparece
+ * en las difusiones numeradas, marcadas con {@link #SEQ_FLAG} en el byte del
+ * tipo, y el servidor solo las envía a los clientes que las piden. No hay descriptores de
+ * clase ni tabla de handles, así que cada trama es independiente del resto.
+ *
+ * El nombre del remitente de las difusiones va en su propio campo, marcado
+ * con {@link #SENDER_FLAG}, para los clientes que lo piden con
+ * {@link MessageType#SENDER}; al resto le llega delante del texto
+ * ("remitente: texto"), como siempre. Los nombres se convierten una sola vez
+ * (ver {@link NameTable}): al codificar no se construye el texto completo y
+ * al decodificar se reutiliza el mismo {@link String} para cada remitente.
+ *
+ * Si un lado lo pide con {@link MessageType#COMPRESS} y el otro lo acepta, los
+ * textos de al menos {@link #COMPRESSION_THRESHOLD} caracteres viajan
+ * comprimidos con DEFLATE, marcados con {@link #COMPRESSED_FLAG}:
+ * <pre>
+ *   ... | longitud del texto (varint) | texto comprimido
+ * </pre>
+ * Cada trama se comprime por separado, partiendo de un diccionario común con
+ * las palabras y avisos más frecuentes del chat. Así la trama comprimida de
+ * una difusión no depende de la conexión y se reutiliza para todos sus
+ * destinatarios. La decodificación reconoce las tramas comprimidas siempre.
+ *
+ * La conexión se negocia enviando el cliente {@link #MAGIC}; el servidor lo
+ * devuelve seguido del ID asignado (varint zigzag).
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class ChatMessageCodec {
+
+	/** Bytes con los que el cliente solicita el protocolo binario y el servidor lo confirma. */
+	public static final byte[] MAGIC = { 'C', 'H', 'B', 1 };
+	/** Longitud máxima del cuerpo de una trama. */
+	public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+	/** Bit del byte del tipo que indica que la trama lleva número de secuencia. */
+	public static final int SEQ_FLAG = 0x80;
+	/** Bit del byte del tipo que indica que el texto va comprimido. */
+	public static final int COMPRESSED_FLAG = 0x40;
+	/** Bit del byte del tipo que indica que la trama lleva el remitente aparte del texto. */
+	public static final int SENDER_FLAG = 0x20;
+	/** Modo de compresión que se negocia con {@link MessageType#COMPRESS}. */
+	public static final String DEFLATE = "deflate";
+	/** Caracteres a partir de los que se comprime un texto (-Dchat.compression.threshold). */
+	public static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.compression.threshold", 256);
+	/** Bits del byte del tipo que forman el código del tipo. */
+	private static final int TYPE_MASK = 0x1F;
+	/** Tamaño mínimo con el que empieza el búfer al descomprimir un texto. */
+	private static final int INFLATE_INITIAL_BYTES = 1024;
+	/**
+	 * Diccionario inicial de la compresión: fragmentos frecuentes, de menos a
+	 * más, porque DEFLATE alcanza mejor el final del diccionario.
+	 */
+	private static final byte[] DICTIONARY = (" the and you that for with this have are not what "
+			+ "mi tu te yo ya muy hay pero como para por con los las del una uno sin sus cuando también porque "
+			+ "está están esto eso aquí ahora hoy mañana bien vale gracias hola bueno sí no que qué de la el en y a "
+			+ " no está conectado : [privado] el servidor se ha reiniciado historial de la sala fin del historial; "
+			+ "continuar con history @ mensajes (offsets  ha salido de la sala  ha entrado en la sala localhost: ")
+			.getBytes(StandardCharsets.UTF_8);
+	/** Compresores libres: tienen memoria nativa, así que se reutilizan en lugar de crear uno por trama. */
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(16);
+	/** Descompresores libres, por lo mismo. */
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(16);
+	/** Codificación del texto. */
+	private static final Charset UTF8 = StandardCharsets.UTF_8;
+	/** Tipos de mensaje indexados por su código. */
+	private static final MessageType[] TYPES = MessageType.values();
+	/** Nombres de los remitentes ya convertidos, compartidos por todas las conexiones. */
+	private static final NameTable NAMES = new NameTable();
+
+	private ChatMessageCodec() {
+	}
+
+	/**
+	 * Codifica un mensaje en una trama completa (con su longitud).
+	 *
+	 * @param msg Mensaje a codificar.
+	 * @return Bytes de la trama.
+	 */
+	public static byte[] encode(ChatMessage msg) {
+
+		return encode(msg, false);
+	}
+
+	/**
+	 * Codifica un mensaje en una trama completa (con su longitud), comprimiendo
+	 * el texto si se pide, es lo bastante largo y la compresión lo reduce. Si
+	 * el mensaje lleva remitente aparte, va delante del texto.
+	 *
+	 * @param msg Mensaje a codificar.
+	 * @param compress true si el destinatario admite tramas comprimidas.
+	 * @return Bytes de la trama.
+	 */
+	public static byte[] encode(ChatMessage msg, boolean compress) {
+
+		return encode(msg, true, compress, false);
+	}
+
+	/**
+	 * Codifica un mensaje en una trama completa (con su longitud), eligiendo
+	 * los campos opcionales según lo que admita el destinatario. El texto se
+	 * escribe directamente en la trama, sin arrays intermedios salvo para
+	 * comprimirlo.
+	 *
+	 * @param msg Mensaje a codificar.
+	 * @param withSeq true para incluir el número de secuencia, si lo tiene.
+	 * @param compress true si el destinatario admite tramas comprimidas.
+	 * @param withSender true para enviar el remitente en su campo, si lo tiene;
+	 *        si no, va delante del texto.
+	 * @return Bytes de la trama.
+	 */
+	public static byte[] encode(ChatMessage msg, boolean withSeq, boolean compress, boolean withSender) {
+
+		String message = (msg.getMessage() == null) ? "" : msg.getMessage();
+		byte[] sender = (msg.getSender() == null) ? null : NAMES.bytes(msg.getSender());
+		boolean separate = withSender && sender != null;
+		byte[] prefix = separate ? null : sender;
+		int textLength = ((prefix == null) ? 0 : prefix.length + 2) + utf8Length(message);
+
+		byte[] packed = null;
+		int packedLength = 0;
+		if (compress && compressible(message)) {
+
+			byte[] text = new byte[textLength];
+			putText(text, 0, prefix, message);
+			packed = new byte[textLength];
+			packedLength = deflate(text, packed);
+		}
+
+		int id = zigzag(msg.getId());
+		long seq = withSeq ? msg.getSeq() : 0;
+		int flags = ((seq != 0) ? SEQ_FLAG : 0) | ((packedLength > 0) ? COMPRESSED_FLAG : 0) | (separate ? SENDER_FLAG : 0);
+		int payload = (packedLength > 0) ? varIntSize(textLength) + packedLength : textLength;
+		int body = 1 + varIntSize(id) + ((seq != 0) ? varLongSize(seq) : 0)
+				+ (separate ? varIntSize(sender.length) + sender.length : 0) + payload;
+
+		byte[] frame = new byte[varIntSize(body) + body];
+		int pos = putVarInt(frame, 0, body);
+		frame[pos++] = (byte) (msg.getType().ordinal() | flags);
+		pos = putVarInt(frame, pos, id);
+		if (seq != 0) {
+			pos = putVarLong(frame, pos, seq);
+		}
+		if (separate) {
+
+			pos = putVarInt(frame, pos, sender.length);
+			System.arraycopy(sender, 0, frame, pos, sender.length);
+			pos += sender.length;
+		}
+		if (packedLength > 0) {
+
+			pos = putVarInt(frame, pos, textLength);
+			System.arraycopy(packed, 0, frame, pos, packedLength);
+
+		} else {
+
+			putText(frame, pos, prefix, message);
+		}
+		return frame;
+	}
+
+	/**
+	 * Escribe el texto de una trama: el mensaje, precedido de "remitente: " si se indica.
+	 *
+	 * @param dst Array de destino, con sitio suficiente.
+	 * @param pos Posición inicial.
+	 * @param prefix Remitente en UTF-8, o null si no va delante del texto.
+	 * @param message Mensaje.
+	 * @return Posición siguiente al texto.
+	 */
+	private static int putText(byte[] dst, int pos, byte[] prefix, String message) {
+
+		if (prefix != null) {
+
+			System.arraycopy(prefix, 0, dst, pos, prefix.length);
+			pos += prefix.length;
+			dst[pos++] = ':';
+			dst[pos++] = ' ';
+		}
+		return putUtf8(dst, pos, message);
+	}
+
+	/**
+	 * Bytes que ocupa un texto en UTF-8, con el mismo resultado que
+	 * {@link String#getBytes(Charset)} (los sustitutos sueltos pasan a '?').
+	 *
+	 * @param text Texto.
+	 * @return Longitud en bytes.
+	 */
+	private static int utf8Length(String text) {
+
+		int n = text.length();
+		int length = n;
+		for (int i = 0; i < n; i++) {
+
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				length += 1;
+			} else if (!Character.isSurrogate(c)) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 2;
+				i++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Escribe un texto en UTF-8 en un array, como {@link String#getBytes(Charset)}
+	 * pero sin crear un array intermedio.
+	 *
+	 * @param dst Array de destino, con sitio suficiente (ver {@link #utf8Length(String)}).
+	 * @param pos Posición inicial.
+	 * @param text Texto.
+	 * @return Posición siguiente al texto.
+	 */
+	private static int putUtf8(byte[] dst, int pos, String text) {
+
+		int n = text.length();
+		for (int i = 0; i < n; i++) {
+
+			char c = text.charAt(i);
+			if (c < 0x80) {
+
+				dst[pos++] = (byte) c;
+
+			} else if (c < 0x800) {
+
+				dst[pos++] = (byte) (0xC0 | (c >> 6));
+				dst[pos++] = (byte) (0x80 | (c & 0x3F));
+
+			} else if (!Character.isSurrogate(c)) {
+
+				dst[pos++] = (byte) (0xE0 | (c >> 12));
+				dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				dst[pos++] = (byte) (0x80 | (c & 0x3F));
+
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				dst[pos++] = (byte) (0xF0 | (cp >> 18));
+				dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+
+			} else {
+
+				dst[pos++] = '?';
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Indica si un texto es lo bastante largo como para intentar comprimirlo.
+	 *
+	 * @param text Texto del mensaje.
+	 * @return true si se comprime cuando el destinatario lo admite.
+	 */
+	public static boolean compressible(String text) {
+
+		return text != null && text.length() >= COMPRESSION_THRESHOLD;
+	}
+
+	/**
+	 * Escribe la trama de un mensaje en un flujo (sin hacer flush).
+	 *
+	 * @param out Flujo de salida.
+	 * @param msg Mensaje a escribir.
+	 * @throws IOException si falla la escritura.
+	 */
+	public static void write(OutputStream out, ChatMessage msg) throws IOException {
+
+		out.write(encode(msg));
+	}
+
+	/**
+	 * Escribe la trama de un mensaje en un flujo (sin hacer flush).
+	 *
+	 * @param out Flujo de salida.
+	 * @param msg Mensaje a escribir.
+	 * @param compress true si el destinatario admite tramas comprimidas.
+	 * @throws IOException si falla la escritura.
+	 */
+	public static void write(OutputStream out, ChatMessage msg, boolean compress) throws IOException {
+
+		out.write(encode(msg, compress));
+	}
+
+	/**
+	 * Comprime un texto con el diccionario común.
+	 *
+	 * @param text Bytes del texto.
+	 * @param dst Destino, del tamaño del texto.
+	 * @return Bytes comprimidos, o 0 si no caben en el destino (no merece la pena).
+	 */
+	private static int deflate(byte[] text, byte[] dst) {
+
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		try {
+
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(text);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished() && length < dst.length) {
+				length += deflater.deflate(dst, length, dst.length - length);
+			}
+			return deflater.finished() ? length : 0;
+
+		} finally {
+
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Descomprime el texto de una trama comprimida.
+	 *
+	 * @param src Array con la trama.
+	 * @param pos Posición de la longitud del texto.
+	 * @param end Fin de la trama.
+	 * @return Texto.
+	 * @throws StreamCorruptedException si los datos comprimidos no son válidos.
+	 */
+	private static String inflate(byte[] src, int pos, int end) throws StreamCorruptedException {
+
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+
+			if (pos >= end || shift > 28) {
+				throw new StreamCorruptedException("Longitud del texto comprimido no válida");
+			}
+			byte b = src[pos++];
+			length |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Longitud del texto comprimido no válida: " + length);
+		}
+
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(src, pos, end - pos);
+			// La longitud declarada la pone el otro extremo: el búfer empieza
+			// en proporción a lo recibido y crece según sale texto, sin pasar de ella.
+			byte[] text = new byte[Math.min(length, Math.max(INFLATE_INITIAL_BYTES, 4 * (end - pos)))];
+			int read = 0;
+			while (read < length) {
+
+				if (read == text.length) {
+					text = Arrays.copyOf(text, (int) Math.min(length, 2L * text.length));
+				}
+				int n = inflater.inflate(text, read, text.length - read);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				read += n;
+			}
+			if (read != length) {
+				throw new StreamCorruptedException("Texto comprimido incompleto");
+			}
+			return new String(text, 0, length, UTF8);
+
+		} catch (DataFormatException e) {
+
+			throw new StreamCorruptedException("Texto comprimido no válido: " + e.getMessage());
+
+		} finally {
+
+			inflater.reset();
+			if (!inflaters.offer(inflater)) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Decodifica una trama del búfer si está completa.
+	 *
+	 * @param in Búfer en modo lectura. Si hay una trama completa, su posición
+	 *        avanza hasta el final de la trama; si no, no se modifica.
+	 * @return Mensaje decodificado, o null si la trama aún no ha llegado entera.
+	 * @throws StreamCorruptedException si la trama no es válida.
+	 */
+	public static ChatMessage decode(ByteBuffer in) throws StreamCorruptedException {
+
+		int pos = in.position();
+		int limit = in.limit();
+
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+
+			if (pos >= limit) {
+				return null;
+			}
+			byte b = in.get(pos++);
+			length |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+			if (shift >= 28) {
+				throw new StreamCorruptedException("Longitud de trama no válida");
+			}
+		}
+		checkLength(length);
+		if (limit - pos < length) {
+			return null;
+		}
+
+		int end = pos + length;
+		ChatMessage msg;
+		if (in.hasArray()) {
+
+			msg = parse(in.array(), in.arrayOffset() + pos, in.arrayOffset() + end);
+
+		} else {
+
+			byte[] body = new byte[length];
+			ByteBuffer view = in.duplicate();
+			view.position(pos);
+			view.get(body);
+			msg = parse(body, 0, length);
+		}
+
+		in.position(end);
+		return msg;
+	}
+
+	/**
+	 * Lee una trama completa de un flujo, bloqueando hasta recibirla. Cada
+	 * llamada crea un array para la trama; quien lee muchas de la misma
+	 * conexión usa mejor un {@link Reader}.
+	 *
+	 * @param in Flujo de entrada (conviene que tenga búfer).
+	 * @return Mensaje leído.
+	 * @throws EOFException si el flujo termina.
+	 * @throws IOException si falla la lectura o la trama no es válida.
+	 */
+	public static ChatMessage read(InputStream in) throws IOException {
+
+		int length = readVarInt(in);
+		checkLength(length);
+
+		byte[] body = new byte[length];
+		readFully(in, body, length);
+		return parse(body, 0, length);
+	}
+
+	/**
+	 * Lector de tramas de una conexión que reutiliza el mismo array para
+	 * todas: en régimen estable leer un mensaje solo crea el propio mensaje y
+	 * su texto. Las tramas de más de {@link #RETAINED_LENGTH} bytes se leen en
+	 * un array aparte, para no retener búferes grandes en cada conexión.
+	 *
+	 * No es seguro para varios hilos; cada conexión tiene el suyo.
+	 */
+	public static final class Reader {
+
+		/** Tamaño máximo del array que se conserva entre tramas. */
+		private static final int RETAINED_LENGTH = 64 * 1024;
+
+		/** Flujo de la conexión. */
+		private final InputStream in;
+		/** Array de las tramas, que crece según hace falta. */
+		private byte[] buffer = new byte[256];
+
+		/**
+		 * Crea el lector.
+		 *
+		 * @param in Flujo de entrada (conviene que tenga búfer).
+		 */
+		public Reader(InputStream in) {
+
+			this.in = in;
+		}
+
+		/**
+		 * Lee una trama completa, bloqueando hasta recibirla.
+		 *
+		 * @return Mensaje leído.
+		 * @throws EOFException si el flujo termina.
+		 * @throws IOException si falla la lectura o la trama no es válida.
+		 */
+		public ChatMessage read() throws IOException {
+
+			int length = readVarInt(in);
+			checkLength(length);
+
+			byte[] body = buffer;
+			if (length > body.length) {
+
+				if (length <= RETAINED_LENGTH) {
+					buffer = body = new byte[Math.min(RETAINED_LENGTH, Math.max(length, 2 * body.length))];
+				} else {
+					body = new byte[length];
+				}
+			}
+			readFully(in, body, length);
+			return parse(body, 0, length);
+		}
+	}
+
+	/**
+	 * Lee del flujo exactamente los bytes indicados.
+	 */
+	private static void readFully(InputStream in, byte[] dst, int length) throws IOException {
+
+		int read = 0;
+		while (read < length) {
+
+			int n = in.read(dst, read, length - read);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			read += n;
+		}
+	}
+
+	/**
+	 * Decodifica el cuerpo de una trama (sin su longitud).
+	 *
+	 * @param body Array con la trama.
+	 * @param pos Posición del byte del tipo.
+	 * @param end Fin de la trama.
+	 * @return Mensaje decodificado.
+	 * @throws StreamCorruptedException si la trama no es válida.
+	 */
+	private static ChatMessage parse(byte[] body, int pos, int end) throws StreamCorruptedException {
+
+		byte code = body[pos++];
+		MessageType type = type(code);
+
+		int id = 0;
+		for (int shift = 0;; shift += 7) {
+
+			if (pos >= end || shift > 28) {
+				throw new StreamCorruptedException("ID de trama no válido");
+			}
+			byte b = body[pos++];
+			id |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+
+		long seq = 0;
+		if ((code & SEQ_FLAG) != 0) {
+
+			for (int shift = 0;; shift += 7) {
+
+				if (pos >= end || shift > 63) {
+					throw new StreamCorruptedException("Secuencia de trama no válida");
+				}
+				byte b = body[pos++];
+				seq |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+		}
+
+		String sender = null;
+		if ((code & SENDER_FLAG) != 0) {
+
+			int length = 0;
+			for (int shift = 0;; shift += 7) {
+
+				if (pos >= end || shift > 28) {
+					throw new StreamCorruptedException("Remitente de trama no válido");
+				}
+				byte b = body[pos++];
+				length |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			if (length < 0 || length > end - pos) {
+				throw new StreamCorruptedException("Longitud del remitente no válida: " + length);
+			}
+			sender = NAMES.name(body, pos, length);
+			pos += length;
+		}
+
+		String text = ((code & COMPRESSED_FLAG) != 0) ? inflate(body, pos, end) : new String(body, pos, end - pos, UTF8);
+		return (sender == null) ? new ChatMessage(unzigzag(id), type, text, seq)
+				: new ChatMessage(unzigzag(id), type, text, seq, sender);
+	}
+
+	/**
+	 * Bytes de confirmación del servidor: {@link #MAGIC} seguido del ID del cliente.
+	 *
+	 * @param id ID asignado al cliente.
+	 * @return Bytes a enviar.
+	 */
+	public static byte[] handshake(int id) {
+
+		int value = zigzag(id);
+		byte[] bytes = new byte[MAGIC.length + varIntSize(value)];
+		System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+		putVarInt(bytes, MAGIC.length, value);
+		return bytes;
+	}
+
+	/**
+	 * Lee el ID de la confirmación del servidor, una vez leído {@link #MAGIC}.
+	 *
+	 * @param in Flujo de entrada.
+	 * @return ID asignado por el servidor.
+	 * @throws IOException si falla la lectura.
+	 */
+	public static int readHandshakeId(InputStream in) throws IOException {
+
+		return unzigzag(readVarInt(in));
+	}
+
+	/**
+	 * Decodifica la confirmación del servidor ({@link #MAGIC} seguido del ID)
+	 * si está completa, para los clientes que leen sin bloquear.
+	 *
+	 * @param in Búfer en modo lectura. Si la confirmación está completa, su
+	 *        posición avanza hasta su final; si no, no se modifica.
+	 * @return ID asignado por el servidor, o null si aún no ha llegado entera.
+	 * @throws StreamCorruptedException si no es una confirmación válida.
+	 */
+	public static Integer decodeHandshake(ByteBuffer in) throws StreamCorruptedException {
+
+		int pos = in.position();
+		int limit = in.limit();
+
+		for (byte b : MAGIC) {
+
+			if (pos >= limit) {
+				return null;
+			}
+			if (in.get(pos++) != b) {
+				throw new StreamCorruptedException("Respuesta del servidor no válida");
+			}
+		}
+
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+
+			if (pos >= limit) {
+				return null;
+			}
+			if (shift > 28) {
+				throw new StreamCorruptedException("ID de la confirmación no válido");
+			}
+			byte b = in.get(pos++);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+
+		in.position(pos);
+		return unzigzag(value);
+	}
+
+	/**
+	 * Lee un varint de un flujo.
+	 *
+	 * @param in Flujo de entrada.
+	 * @return Valor leído.
+	 * @throws IOException si el flujo termina o el varint no es válido.
+	 */
+	public static int readVarInt(InputStream in) throws IOException {
+
+		int value = 0;
+		for (int shift = 0; shift <= 28; shift += 7) {
+
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Varint no válido");
+	}
+
+	/**
+	 * Escribe un varint en un array.
+	 *
+	 * @param dst Array de destino.
+	 * @param pos Posición inicial.
+	 * @param value Valor (se trata como sin signo).
+	 * @return Posición siguiente al varint.
+	 */
+	public static int putVarInt(byte[] dst, int pos, int value) {
+
+		while ((value & ~0x7F) != 0) {
+			dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Escribe un varint de 64 bits en un array.
+	 *
+	 * @param dst Array de destino.
+	 * @param pos Posición inicial.
+	 * @param value Valor (se trata como sin signo).
+	 * @return Posición siguiente al varint.
+	 */
+	public static int putVarLong(byte[] dst, int pos, long value) {
+
+		while ((value & ~0x7FL) != 0) {
+			dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Número de bytes que ocupa un varint de 64 bits.
+	 *
+	 * @param value Valor (se trata como sin signo).
+	 * @return Bytes necesarios (1 a 10).
+	 */
+	public static int varLongSize(long value) {
+
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Número de bytes que ocupa un varint.
+	 *
+	 * @param value Valor (se trata como sin signo).
+	 * @return Bytes necesarios (1 a 5).
+	 */
+	public static int varIntSize(int value) {
+
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Codificación zigzag, para que los IDs negativos (el servidor usa -1) ocupen poco.
+	 */
+	private static int zigzag(int n) {
+
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static MessageType type(byte code) throws StreamCorruptedException {
+
+		int index = code & TYPE_MASK;
+		if (index >= TYPES.length) {
+			throw new StreamCorruptedException("Tipo de mensaje desconocido: " + index);
+		}
+		return TYPES[index];
+	}
+
+	private static void checkLength(int length) throws StreamCorruptedException {
+
+		if (length < 2 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Longitud de trama no válida: " + length);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package es.ubu.lsi.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias con precisión relativa constante, al estilo de
+ * HdrHistogram: los valores se agrupan por potencias de dos y cada potencia
+ * se divide en 64 intervalos iguales, así que cualquier valor registrado se
+ * conoce con un error menor del 1,6 % sin guardar cada muestra.
+ *
+ * Se puede registrar desde varios hilos a la vez sin cerrojos. Los
+ * percentiles se calculan sobre una copia de las cuentas, que puede no
+ * incluir los valores que se estén registrando en ese momento.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class LatencyHistogram {
+
+	/** Intervalos por potencia de dos. */
+	private static final int SUB_BUCKETS = 64;
+	/** Valores por debajo de este se guardan exactos. */
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	/** Número total de intervalos (hasta 2^63). */
+	private static final int SIZE = SUB_BUCKETS * 58;
+
+	/** Cuenta de cada intervalo. */
+	private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+	/** Número de valores registrados. */
+	private final LongAdder total = new LongAdder();
+	/** Suma de los valores registrados. */
+	private final LongAdder sum = new LongAdder();
+	/** Mayor valor registrado. */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Registra un valor.
+	 *
+	 * @param value Valor (negativos cuentan como 0).
+	 */
+	public void record(long value) {
+
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		total.increment();
+		sum.add(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Otro hilo ha subido el máximo a la vez: volver a comparar
+		}
+	}
+
+	/**
+	 * Suma otro histograma a este.
+	 *
+	 * @param other Histograma a sumar.
+	 */
+	public void add(LatencyHistogram other) {
+
+		for (int i = 0; i < SIZE; i++) {
+
+			long count = other.counts.get(i);
+			if (count > 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		total.add(other.total.sum());
+		sum.add(other.sum.sum());
+		long current;
+		long value = other.max.get();
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Otro hilo ha subido el máximo a la vez: volver a comparar
+		}
+	}
+
+	/**
+	 * Número de valores registrados.
+	 *
+	 * @return Valores.
+	 */
+	public long count() {
+
+		return total.sum();
+	}
+
+	/**
+	 * Suma de los valores registrados.
+	 *
+	 * @return Suma.
+	 */
+	public long sum() {
+
+		return sum.sum();
+	}
+
+	/**
+	 * Mayor valor registrado.
+	 *
+	 * @return Máximo, o 0 si no hay valores.
+	 */
+	public long max() {
+
+		return max.get();
+	}
+
+	/**
+	 * Valor por debajo del cual queda un porcentaje de los registrados.
+	 *
+	 * @param percentile Percentil, de 0 a 100.
+	 * @return Valor (el mayor de su intervalo), o 0 si no hay valores.
+	 */
+	public long percentile(double percentile) {
+
+		return percentiles(percentile)[0];
+	}
+
+	/**
+	 * Calcula varios percentiles sobre la misma copia de las cuentas.
+	 *
+	 * @param percentiles Percentiles en orden creciente, de 0 a 100.
+	 * @return Valor de cada percentil (el mayor de su intervalo), o 0 si no hay valores.
+	 */
+	public long[] percentiles(double... percentiles) {
+
+		long[] snapshot = new long[SIZE];
+		long count = 0;
+		for (int i = 0; i < SIZE; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		long[] values = new long[percentiles.length];
+		if (count == 0) {
+			return values;
+		}
+		long highest = max.get();
+		long seen = 0;
+		int bucket = -1;
+		for (int p = 0; p < percentiles.length; p++) {
+
+			long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * count));
+			while (seen < rank && bucket < SIZE - 1) {
+				seen += snapshot[++bucket];
+			}
+			values[p] = Math.min(highest(bucket), highest);
+		}
+		return values;
+	}
+
+	/**
+	 * Resume los percentiles habituales en milisegundos.
+	 *
+	 * @return Línea de resumen.
+	 */
+	public String summary() {
+
+		long[] values = percentiles(50, 90, 99, 99.9);
+		return String.format("p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  máx %.3f ms (%d muestras)",
+				millis(values[0]), millis(values[1]), millis(values[2]), millis(values[3]), millis(max()), count());
+	}
+
+	private static double millis(long nanos) {
+
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Intervalo de un valor.
+	 */
+	private static int index(long value) {
+
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return SUB_BUCKETS * shift + (int) (value >>> shift);
+	}
+
+	/**
+	 * Mayor valor que cae en un intervalo.
+	 */
+	private static long highest(int index) {
+
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,116 @@
+package es.ubu.lsi.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tabla de nombres de usuario ya vistos, en sus dos formas: como texto y
+ * codificados en UTF-8. Las pocas decenas de nombres que firman casi todos
+ * los mensajes de una sala se convierten una sola vez, y cada trama recibida
+ * o enviada reutiliza el mismo {@link String} o el mismo array en lugar de
+ * crear uno nuevo.
+ *
+ * Es una caché de tamaño fijo, no un registro: cada nombre va a la casilla
+ * que le toca por su hash y sustituye al que hubiera. Las entradas son
+ * inmutables y se publican en una sola escritura, así que se lee y se escribe
+ * sin cerrojos; si dos hilos chocan, a lo sumo uno vuelve a convertir el nombre.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class NameTable {
+
+	/** Casillas de cada índice (potencia de 2). */
+	private static final int SLOTS = 1024;
+	/** Longitud máxima (en bytes) de los nombres que se guardan; los más largos se convierten cada vez. */
+	private static final int MAX_NAME_LENGTH = 64;
+
+	/**
+	 * Nombre con su codificación.
+	 */
+	private static final class Entry {
+
+		/** Nombre. */
+		final String name;
+		/** Nombre en UTF-8. */
+		final byte[] bytes;
+		/** Hash de los bytes. */
+		final int hash;
+
+		Entry(String name, byte[] bytes, int hash) {
+
+			this.name = name;
+			this.bytes = bytes;
+			this.hash = hash;
+		}
+	}
+
+	/** Entradas indexadas por el hash de sus bytes, para decodificar. */
+	private final Entry[] byBytes = new Entry[SLOTS];
+	/** Entradas indexadas por el hash del nombre, para codificar. */
+	private final Entry[] byName = new Entry[SLOTS];
+
+	/**
+	 * Devuelve el nombre codificado en un array, reutilizando el de una trama anterior.
+	 *
+	 * @param src Array con el nombre en UTF-8.
+	 * @param pos Posición inicial.
+	 * @param length Longitud en bytes.
+	 * @return Nombre.
+	 */
+	String name(byte[] src, int pos, int length) {
+
+		int hash = 1;
+		for (int i = pos; i < pos + length; i++) {
+			hash = 31 * hash + src[i];
+		}
+
+		int slot = hash & (SLOTS - 1);
+		Entry entry = byBytes[slot];
+		if (entry != null && entry.hash == hash && matches(entry.bytes, src, pos, length)) {
+			return entry.name;
+		}
+
+		String name = new String(src, pos, length, StandardCharsets.UTF_8);
+		if (length <= MAX_NAME_LENGTH) {
+
+			byte[] bytes = new byte[length];
+			System.arraycopy(src, pos, bytes, 0, length);
+			byBytes[slot] = new Entry(name, bytes, hash);
+		}
+		return name;
+	}
+
+	/**
+	 * Devuelve el nombre en UTF-8, reutilizando la codificación anterior.
+	 * El array devuelto es compartido y no debe modificarse.
+	 *
+	 * @param name Nombre.
+	 * @return Bytes del nombre.
+	 */
+	byte[] bytes(String name) {
+
+		int slot = name.hashCode() & (SLOTS - 1);
+		Entry entry = byName[slot];
+		if (entry != null && entry.name.equals(name)) {
+			return entry.bytes;
+		}
+
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_NAME_LENGTH) {
+			byName[slot] = new Entry(name, bytes, 0);
+		}
+		return bytes;
+	}
+
+	private static boolean matches(byte[] bytes, byte[] src, int pos, int length) {
+
+		if (bytes.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] != src[pos + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
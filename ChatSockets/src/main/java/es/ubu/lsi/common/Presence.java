@@ -0,0 +1,59 @@
+package es.ubu.lsi.common;
+
+import java.util.Set;
+
+/**
+ * Formato de los mensajes {@link ChatMessage.MessageType#PRESENCE}, común a
+ * servidor y clientes.
+ *
+ * El texto lleva una línea por cambio: "+nombre" si el usuario se ha
+ * conectado y "-nombre" si se ha desconectado. La instantánea inicial empieza
+ * con la línea {@link #RESET}, que vacía la lista, seguida de un "+nombre" por
+ * usuario; si es muy grande se parte en varios mensajes y solo el primero
+ * lleva {@link #RESET}. Aplicar los mensajes en orden sobre un conjunto deja
+ * en él los usuarios conectados; repetir un cambio no tiene efecto.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class Presence {
+
+	/** Línea que vacía la lista antes de una instantánea. */
+	public static final String RESET = "*";
+	/** Prefijo de los usuarios conectados. */
+	public static final char ONLINE = '+';
+	/** Prefijo de los usuarios desconectados. */
+	public static final char OFFLINE = '-';
+
+	private Presence() {
+	}
+
+	/**
+	 * Aplica un mensaje de presencia a la lista de usuarios conectados.
+	 *
+	 * @param online Usuarios conectados, que se actualizan.
+	 * @param text Texto del mensaje.
+	 */
+	public static void apply(Set<String> online, String text) {
+
+		int start = 0;
+		while (start < text.length()) {
+
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			if (end > start) {
+
+				char op = text.charAt(start);
+				if (op == ONLINE) {
+					online.add(text.substring(start + 1, end));
+				} else if (op == OFFLINE) {
+					online.remove(text.substring(start + 1, end));
+				} else if (text.startsWith(RESET, start) && end - start == RESET.length()) {
+					online.clear();
+				}
+			}
+			start = end + 1;
+		}
+	}
+}
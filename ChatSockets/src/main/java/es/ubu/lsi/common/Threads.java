@@ -0,0 +1,72 @@
+package es.ubu.lsi.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creación de hilos de plataforma o virtuales según la opción de arranque.
+ *
+ * Los hilos virtuales (Java 21) se obtienen por reflexión para que el proyecto
+ * siga compilando con su nivel de fuente; si la JVM no los ofrece se avisa y
+ * se usan hilos normales.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class Threads {
+
+	private Threads() {
+	}
+
+	/**
+	 * Devuelve una factoría de hilos con nombres {@code name-0, name-1...}.
+	 *
+	 * @param name Prefijo del nombre de los hilos.
+	 * @param virtual true para crear hilos virtuales si la JVM los admite.
+	 * @return Factoría de hilos.
+	 */
+	public static ThreadFactory factory(final String name, boolean virtual) {
+
+		if (virtual) {
+
+			ThreadFactory factory = virtualFactory(name);
+			if (factory != null) {
+				return factory;
+			}
+			System.err.println("[ERR] Esta JVM no admite hilos virtuales (requiere Java 21); se usan hilos de plataforma.");
+		}
+
+		return new ThreadFactory() {
+
+			/** Número del siguiente hilo. */
+			private final AtomicInteger next = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				return new Thread(task, name + "-" + next.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * Obtiene {@code Thread.ofVirtual().name(name + "-", 0).factory()} por reflexión.
+	 *
+	 * @param name Prefijo del nombre de los hilos.
+	 * @return Factoría de hilos virtuales, o null si no está disponible.
+	 */
+	private static ThreadFactory virtualFactory(String name) {
+
+		try {
+
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+
+		} catch (ReflectiveOperationException e) {
+
+			return null;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package es.ubu.lsi.common;
+
+/**
+ * Protocolo con el que se codifican los mensajes en una conexión.
+ *
+ * El servidor lo averigua con el primer byte que envía el cliente: un flujo
+ * de objetos de Java empieza siempre por 0xAC (STREAM_MAGIC), mientras que el
+ * protocolo binario empieza por {@link ChatMessageCodec#MAGIC}.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public enum WireProtocol {
+
+	/** Objetos {@link ChatMessage} serializados con ObjectOutputStream (protocolo original). */
+	SERIALIZED,
+	/** Tramas binarias de {@link ChatMessageCodec}. */
+	BINARY;
+
+	/**
+	 * Identifica el protocolo a partir del primer byte recibido del cliente.
+	 *
+	 * @param firstByte Primer byte de la conexión.
+	 * @return Protocolo, o null si el byte no corresponde a ninguno.
+	 */
+	public static WireProtocol detect(int firstByte) {
+
+		if (firstByte == (ChatMessageCodec.MAGIC[0] & 0xFF)) {
+			return BINARY;
+		}
+		if (firstByte == 0xAC) {
+			return SERIALIZED;
+		}
+		return null;
+	}
+
+	/**
+	 * Obtiene el protocolo indicado por nombre (por ejemplo, en -Dchat.protocol).
+	 *
+	 * @param name Nombre del protocolo, sin distinguir mayúsculas; null para el de por defecto.
+	 * @return Protocolo indicado, o {@link #BINARY} si no se reconoce.
+	 */
+	public static WireProtocol fromName(String name) {
+
+		return "serialized".equalsIgnoreCase(name) ? SERIALIZED : BINARY;
+	}
+}
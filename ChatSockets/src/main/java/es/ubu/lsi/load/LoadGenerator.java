@@ -0,0 +1,804 @@
+package es.ubu.lsi.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.LatencyHistogram;
+import es.ubu.lsi.common.Threads;
+import es.ubu.lsi.server.AbstractChatServer;
+import es.ubu.lsi.server.ChatServerImpl;
+import es.ubu.lsi.server.ChatServerNioImpl;
+
+/**
+ * Generador de carga sin interfaz: abre miles de sesiones contra un servidor
+ * de chat, envía mensajes a un ritmo fijo y mide cuánto tardan en llegar a
+ * los demás miembros de la sala y cuántos se pierden.
+ *
+ * Cada sesión habla el protocolo binario del cliente (identificación, JOIN y
+ * mensajes), pero sin su hilo de escucha ni su terminal: todas se leen desde
+ * unos pocos selectores, para poder simular muchas más sesiones que hilos.
+ *
+ * Cada mensaje lleva su número y el instante en que debía enviarse según el
+ * ritmo pedido. La latencia se mide desde ese instante y no desde el envío
+ * real, así que un servidor que se atasca no esconde el retraso de los
+ * mensajes que se quedaron esperando.
+ *
+ * Con load.mode=connect solo comprueba las conexiones: abre todos los
+ * sockets y envía el saludo antes de leer ninguna respuesta, de modo que el
+ * servidor recibe a la vez miles de conexiones a medio establecer, y después
+ * comprueba que los IDs asignados son todos distintos y que cada socket
+ * recibió el suyo (el servidor le devuelve su mensaje privado de
+ * confirmación con ese mismo ID). Termina con error si algo no cuadra.
+ *
+ * Con load.server arranca él mismo un servidor con ese motor en un puerto
+ * libre y lo apaga al terminar, para que la comprobación se pueda lanzar
+ * sola desde Maven (ejecución check-connects del pom).
+ *
+ * Opciones (-D):
+ * - chat.host, chat.port: servidor (localhost:1500).
+ * - load.clients: sesiones (1000).
+ * - load.rooms: salas entre las que se reparten las sesiones (1).
+ * - load.rate: mensajes por segundo entre todas las sesiones (100).
+ * - load.duration: segundos de envío (30).
+ * - load.warmup: segundos iniciales sin medir latencia (5).
+ * - load.drain: segundos de espera a los mensajes en vuelo al terminar (5).
+ * - load.loops: selectores de lectura (1).
+ * - load.connectors: hilos que abren las conexiones (8).
+ * - load.mode: "messages" (por defecto) o "connect".
+ * - load.server: motor del servidor propio, "threads", "virtual" o "nio"
+ *   (sin él se usa el de chat.host y chat.port).
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class LoadGenerator {
+
+	/** Prefijo de los mensajes generados, para distinguirlos de los avisos del servidor. */
+	private static final String MARKER = "carga ";
+	/** Texto del mensaje privado con el que cada sesión comprueba que está lista. */
+	private static final String READY = "listo";
+	/** Tamaño del búfer de lectura de cada sesión. */
+	private static final int BUFFER_SIZE = 4096;
+	/** Espera máxima (ms) a que una escritura avance antes de dar la sesión por atascada. */
+	private static final long WRITE_STALL_MILLIS = 5000;
+	/** Espera máxima (ms) al saludo del servidor antes de dar la sesión por fallida. */
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 30000;
+	/** Espera máxima (ms) a que todas las sesiones confirmen que están listas. */
+	private static final long READY_TIMEOUT_MILLIS = 60000;
+	/** Espera máxima (ms) a que el servidor propio empiece a aceptar conexiones. */
+	private static final long STARTUP_MILLIS = 10000;
+
+	/** Servidor. */
+	private final InetSocketAddress address;
+	/** Número de sesiones. */
+	private final int clients;
+	/** Número de salas. */
+	private final int rooms;
+	/** Mensajes por segundo. */
+	private final double rate;
+	/** Segundos de envío. */
+	private final int duration;
+	/** Segundos sin medir latencia. */
+	private final int warmup;
+	/** Segundos de espera final. */
+	private final int drain;
+
+	/** Sesiones simuladas. */
+	private final Session[] sessions;
+	/** Miembros de cada sala. */
+	private final int[] members;
+	/** Selectores de lectura. */
+	private final ReaderLoop[] readers;
+	/** Sesiones que aún no han confirmado que están listas. */
+	private final CountDownLatch ready;
+	/** Instante (nanoTime) desde el que se registra la latencia. */
+	private volatile long measureFrom = Long.MAX_VALUE;
+
+	/** Mensajes enviados. */
+	private final AtomicLong sent = new AtomicLong();
+	/** Entregas esperadas (cada mensaje cuenta una vez por miembro de su sala). */
+	private final AtomicLong expected = new AtomicLong();
+	/** Entregas recibidas de mensajes generados. */
+	private final AtomicLong delivered = new AtomicLong();
+	/** Sesiones que el servidor ha cerrado o que se han atascado. */
+	private final AtomicInteger lost = new AtomicInteger();
+	/** Mensajes que no se enviaron porque su sesión estaba cerrada. */
+	private final AtomicLong skipped = new AtomicLong();
+	/** Confirmaciones recibidas con un ID que no es el que recibió la sesión al conectarse. */
+	private final AtomicInteger mismatched = new AtomicInteger();
+
+	/**
+	 * Prepara el generador.
+	 *
+	 * @param address Servidor.
+	 * @param clients Número de sesiones.
+	 * @param rooms Número de salas.
+	 * @param rate Mensajes por segundo entre todas las sesiones.
+	 * @param duration Segundos de envío.
+	 * @param warmup Segundos iniciales sin medir latencia.
+	 * @param drain Segundos de espera a los mensajes en vuelo.
+	 * @param loops Selectores de lectura.
+	 * @throws IOException si no se puede abrir un selector.
+	 */
+	public LoadGenerator(InetSocketAddress address, int clients, int rooms, double rate,
+			int duration, int warmup, int drain, int loops) throws IOException {
+
+		this.address = address;
+		this.clients = clients;
+		this.rooms = Math.max(1, Math.min(rooms, clients));
+		this.rate = rate;
+		this.duration = duration;
+		this.warmup = Math.min(warmup, duration);
+		this.drain = drain;
+		this.sessions = new Session[clients];
+		this.members = new int[this.rooms];
+		this.ready = new CountDownLatch(clients);
+
+		for (int i = 0; i < clients; i++) {
+			members[i % this.rooms]++;
+		}
+		readers = new ReaderLoop[Math.max(1, loops)];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new ReaderLoop(Selector.open());
+		}
+	}
+
+	/**
+	 * Abre las sesiones, envía mensajes durante el tiempo pedido, espera a los
+	 * que quedan en vuelo y muestra el informe.
+	 *
+	 * @param connectors Hilos que abren las conexiones.
+	 * @throws IOException si no se puede establecer alguna sesión.
+	 * @throws InterruptedException si se interrumpe la espera.
+	 */
+	public void run(int connectors) throws IOException, InterruptedException {
+
+		for (int i = 0; i < readers.length; i++) {
+			Threads.factory("carga-lectura-" + i, false).newThread(readers[i]).start();
+		}
+
+		long rampStart = System.nanoTime();
+		connectAll(connectors, false);
+		long connected = System.nanoTime();
+		awaitReady();
+		long rampEnd = System.nanoTime();
+
+		System.out.println(String.format("Conexión: %d sesiones en %.0f ms (%.0f sesiones/s); listas en %.0f ms",
+				clients, millis(connected - rampStart), clients / seconds(connected - rampStart), millis(rampEnd - rampStart)));
+
+		long start = System.nanoTime();
+		measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+		send(start, start + TimeUnit.SECONDS.toNanos(duration));
+		long sendEnd = System.nanoTime();
+
+		long deadline = sendEnd + TimeUnit.SECONDS.toNanos(drain);
+		while (delivered.get() < expected.get() && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		long end = System.nanoTime();
+
+		for (ReaderLoop reader : readers) {
+			reader.stop();
+		}
+		report(sendEnd - start, end - start);
+		for (Session session : sessions) {
+			if (session != null) {
+				session.logout();
+			}
+		}
+	}
+
+	/**
+	 * Abre las sesiones, comprueba los IDs y las confirmaciones y las cierra,
+	 * sin enviar mensajes (load.mode=connect).
+	 *
+	 * @param connectors Hilos que abren las conexiones.
+	 * @throws IOException si no se puede establecer alguna sesión o algún ID no cuadra.
+	 * @throws InterruptedException si se interrumpe la espera.
+	 */
+	public void checkConnects(int connectors) throws IOException, InterruptedException {
+
+		for (int i = 0; i < readers.length; i++) {
+			Threads.factory("carga-lectura-" + i, false).newThread(readers[i]).start();
+		}
+
+		long start = System.nanoTime();
+		connectAll(connectors, true);
+		long connected = System.nanoTime();
+		awaitReady();
+		long end = System.nanoTime();
+
+		for (ReaderLoop reader : readers) {
+			reader.stop();
+		}
+		Set<Integer> ids = new HashSet<>();
+		int duplicated = 0;
+		for (Session session : sessions) {
+			if (!ids.add(session.id)) {
+				duplicated++;
+			}
+		}
+		for (Session session : sessions) {
+			session.logout();
+		}
+
+		System.out.println(String.format("Conexión: %d sesiones en %.0f ms (%.0f sesiones/s); listas en %.0f ms",
+				clients, millis(connected - start), clients / seconds(connected - start), millis(end - start)));
+		System.out.println("IDs repetidos: " + duplicated + "; confirmaciones con otro ID: " + mismatched.get());
+		if (duplicated > 0 || mismatched.get() > 0) {
+			throw new IOException("El servidor ha mezclado las conexiones");
+		}
+	}
+
+	/**
+	 * Espera a que todas las sesiones confirmen que están listas, como mucho
+	 * {@link #READY_TIMEOUT_MILLIS}.
+	 */
+	private void awaitReady() throws IOException, InterruptedException {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READY_TIMEOUT_MILLIS);
+		while (!ready.await(1, TimeUnit.SECONDS)) {
+			System.out.println("[LOG] Esperando a " + ready.getCount() + " sesiones...");
+			if (lost.get() > 0) {
+				throw new IOException("El servidor ha cerrado " + lost.get() + " sesiones antes de empezar");
+			}
+			if (System.nanoTime() > deadline) {
+				throw new IOException(ready.getCount() + " sesiones sin confirmar tras " + READY_TIMEOUT_MILLIS + " ms");
+			}
+		}
+	}
+
+	/**
+	 * Abre todas las sesiones en paralelo: conexión, protocolo binario,
+	 * identificación y sala. Cada sesión se envía después un mensaje privado;
+	 * cuando lo recibe, el servidor ya ha procesado todo lo anterior.
+	 *
+	 * @param connectors Hilos que abren las conexiones.
+	 * @param burst Si se conectan y saludan todas antes de leer la respuesta de ninguna.
+	 */
+	private void connectAll(int connectors, final boolean burst) throws IOException, InterruptedException {
+
+		final SocketChannel[] channels = new SocketChannel[clients];
+		final AtomicInteger failures = new AtomicInteger();
+		final IOException[] firstError = new IOException[1];
+
+		if (burst) {
+
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, connectors), Threads.factory("carga-conexion", false));
+			for (int i = 0; i < clients; i++) {
+
+				final int index = i;
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							channels[index] = connect();
+						} catch (IOException e) {
+							if (failures.getAndIncrement() == 0) {
+								firstError[0] = e;
+							}
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			if (failures.get() > 0) {
+				throw new IOException(failures.get() + " conexiones no se han podido abrir", firstError[0]);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, connectors), Threads.factory("carga-conexion", false));
+		for (int i = 0; i < clients; i++) {
+
+			final int index = i;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sessions[index] = open(index, burst ? channels[index] : connect());
+						readers[index % readers.length].add(sessions[index]);
+					} catch (IOException e) {
+						if (failures.getAndIncrement() == 0) {
+							firstError[0] = e;
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+		if (failures.get() > 0) {
+			throw new IOException(failures.get() + " sesiones no se han podido abrir", firstError[0]);
+		}
+	}
+
+	/**
+	 * Abre una conexión bloqueante y pide el protocolo binario.
+	 */
+	private SocketChannel connect() throws IOException {
+
+		SocketChannel channel = SocketChannel.open(address);
+		try {
+
+			channel.socket().setTcpNoDelay(true);
+			writeFully(channel, ByteBuffer.wrap(ChatMessageCodec.MAGIC));
+			return channel;
+
+		} catch (IOException e) {
+
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Completa una sesión sobre una conexión ya saludada y la deja no bloqueante.
+	 */
+	private Session open(int index, SocketChannel channel) throws IOException {
+
+		try {
+
+			channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			InputStream in = channel.socket().getInputStream();
+			for (byte b : ChatMessageCodec.MAGIC) {
+				if (in.read() != (b & 0xFF)) {
+					throw new StreamCorruptedException("Respuesta del servidor no válida");
+				}
+			}
+			int id = ChatMessageCodec.readHandshakeId(in);
+
+			String name = "carga" + index;
+			int room = index % rooms;
+			writeFully(channel, ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(id, ChatMessage.MessageType.MESSAGE, name))));
+			if (room > 0) {
+				writeFully(channel, ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(id, ChatMessage.MessageType.JOIN, "carga-" + room))));
+			}
+			writeFully(channel, ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(id, ChatMessage.MessageType.PRIVATE, name + ": " + READY + " " + id))));
+
+			channel.configureBlocking(false);
+			return new Session(channel, id, name, room);
+
+		} catch (IOException e) {
+
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Envía mensajes al ritmo pedido, repartidos por turno entre las sesiones,
+	 * hasta el instante final. Si se va con retraso no espera: envía los
+	 * pendientes seguidos, cada uno con el instante que le correspondía.
+	 */
+	private void send(long start, long end) {
+
+		double period = TimeUnit.SECONDS.toNanos(1) / rate;
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+
+		for (long n = 0;; n++) {
+
+			long intended = start + (long) (n * period);
+			if (intended >= end) {
+				break;
+			}
+			long now = System.nanoTime();
+			if (intended > now) {
+				LockSupport.parkNanos(intended - now);
+			}
+			if (now >= nextReport) {
+				progress(now - start);
+				nextReport += TimeUnit.SECONDS.toNanos(1);
+			}
+
+			Session session = sessions[(int) (n % clients)];
+			if (session.closed) {
+				skipped.incrementAndGet();
+				continue;
+			}
+			byte[] frame = ChatMessageCodec.encode(new ChatMessage(session.id, ChatMessage.MessageType.MESSAGE,
+					MARKER + n + " " + intended));
+			expected.addAndGet(members[session.room]);
+			if (session.write(ByteBuffer.wrap(frame))) {
+				sent.incrementAndGet();
+			} else {
+				expected.addAndGet(-members[session.room]);
+				skipped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Muestra el avance de cada segundo.
+	 */
+	private void progress(long elapsed) {
+
+		System.out.println(String.format("[LOG] %3.0f s: %d enviados, %d de %d entregas",
+				seconds(elapsed), sent.get(), delivered.get(), expected.get()));
+	}
+
+	/**
+	 * Muestra el informe final.
+	 *
+	 * @param sending Nanosegundos de envío.
+	 * @param total Nanosegundos hasta recibir lo último.
+	 */
+	private void report(long sending, long total) {
+
+		LatencyHistogram latency = new LatencyHistogram();
+		for (ReaderLoop reader : readers) {
+			latency.add(reader.histogram);
+		}
+		long missing = Math.max(0, expected.get() - delivered.get());
+
+		System.out.println(String.format("Envío: %d mensajes en %.1f s (%.0f mensajes/s, objetivo %.0f)",
+				sent.get(), seconds(sending), sent.get() / seconds(sending), rate));
+		System.out.println(String.format("Entrega: %d de %d (%.0f entregas/s); perdidas %d (%.3f %%)",
+				delivered.get(), expected.get(), delivered.get() / seconds(total), missing,
+				expected.get() == 0 ? 0.0 : 100.0 * missing / expected.get()));
+		System.out.println("Latencia: " + latency.summary());
+		if (lost.get() > 0 || skipped.get() > 0) {
+			System.out.println("Sesiones cerradas o atascadas: " + lost.get() + "; mensajes sin enviar: " + skipped.get());
+		}
+	}
+
+	private static double millis(long nanos) {
+
+		return nanos / 1e6;
+	}
+
+	private static double seconds(long nanos) {
+
+		return Math.max(nanos, 1) / 1e9;
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Sesión simulada.
+	 */
+	private final class Session {
+
+		/** Canal (no bloqueante una vez abierta la sesión). */
+		final SocketChannel channel;
+		/** ID asignado por el servidor. */
+		final int id;
+		/** Nombre de usuario. */
+		final String name;
+		/** Sala (índice). */
+		final int room;
+		/** Bytes recibidos pendientes de decodificar. */
+		final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		/** Si ha confirmado que está lista. */
+		boolean ready;
+		/** Si el servidor la ha cerrado o se ha atascado. */
+		volatile boolean closed;
+
+		Session(SocketChannel channel, int id, String name, int room) {
+
+			this.channel = channel;
+			this.id = id;
+			this.name = name;
+			this.room = room;
+		}
+
+		/**
+		 * Escribe una trama entera. Si el servidor deja de leer durante
+		 * demasiado tiempo, la sesión se da por atascada y se cierra.
+		 *
+		 * @return false si la sesión está o ha quedado cerrada.
+		 */
+		boolean write(ByteBuffer frame) {
+
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_STALL_MILLIS);
+			try {
+				while (frame.hasRemaining()) {
+
+					if (channel.write(frame) == 0) {
+
+						if (System.nanoTime() > deadline) {
+							System.err.println("[ERR] La sesión " + name + " no puede escribir; se cierra");
+							close();
+							return false;
+						}
+						LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+					}
+				}
+				return true;
+			} catch (IOException e) {
+				close();
+				return false;
+			}
+		}
+
+		/**
+		 * Se despide del servidor con LOGOUT, como el cliente, y cierra la conexión.
+		 */
+		void logout() {
+
+			if (closed) {
+				return;
+			}
+			write(ByteBuffer.wrap(ChatMessageCodec.encode(new ChatMessage(id, ChatMessage.MessageType.LOGOUT, ""))));
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ya estaba cerrada
+			}
+		}
+
+		/**
+		 * Cierra la sesión la primera vez.
+		 */
+		void close() {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lost.incrementAndGet();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ya estaba cerrada
+			}
+		}
+	}
+
+	/**
+	 * Selector que lee un grupo de sesiones, decodifica sus tramas y registra
+	 * la latencia de los mensajes generados en su propio histograma.
+	 */
+	private final class ReaderLoop implements Runnable {
+
+		/** Selector de lectura. */
+		private final Selector selector;
+		/** Sesiones pendientes de registrar en el selector. */
+		private final Queue<Session> pending = new ConcurrentLinkedQueue<Session>();
+		/** Latencias registradas (solo las toca este hilo hasta que termina). */
+		final LatencyHistogram histogram = new LatencyHistogram();
+		/** Si debe seguir leyendo. */
+		private volatile boolean running = true;
+		/** Hilo del selector, para esperar a que termine. */
+		private volatile Thread thread;
+
+		ReaderLoop(Selector selector) {
+
+			this.selector = selector;
+		}
+
+		/**
+		 * Añade una sesión desde otro hilo.
+		 */
+		void add(Session session) {
+
+			pending.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * Detiene el selector y espera a que termine, para poder leer su histograma.
+		 */
+		void stop() throws InterruptedException {
+
+			running = false;
+			selector.wakeup();
+			Thread current = thread;
+			if (current != null) {
+				current.join();
+			}
+		}
+
+		@Override
+		public void run() {
+
+			thread = Thread.currentThread();
+			try {
+				while (running) {
+
+					selector.select();
+					Session session;
+					while ((session = pending.poll()) != null) {
+						session.channel.register(selector, SelectionKey.OP_READ, session);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+
+						SelectionKey key = keys.next();
+						keys.remove();
+						read((Session) key.attachment(), key);
+					}
+				}
+				selector.close();
+			} catch (IOException e) {
+				System.err.println("[ERR] Error en el selector de lectura: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Lee lo disponible de una sesión y trata las tramas completas.
+		 */
+		private void read(Session session, SelectionKey key) {
+
+			try {
+				int n = session.channel.read(session.in);
+				session.in.flip();
+				ChatMessage msg;
+				while ((msg = ChatMessageCodec.decode(session.in)) != null) {
+					received(session, msg);
+				}
+				session.in.compact();
+				if (n < 0) {
+					throw new IOException("conexión cerrada por el servidor");
+				}
+			} catch (IOException e) {
+				if (!session.closed) {
+					System.err.println("[ERR] Sesión " + session.name + ": " + e.getMessage());
+				}
+				key.cancel();
+				session.close();
+			}
+		}
+
+		/**
+		 * Trata un mensaje recibido: la confirmación de la sesión o un mensaje generado.
+		 */
+		private void received(Session session, ChatMessage msg) {
+
+			String text = msg.getMessage();
+			int colon = text.indexOf(": ");
+			if (colon < 0) {
+				return;
+			}
+
+			if (!session.ready && text.startsWith("[privado] " + READY + " ", colon + 2)) {
+
+				// La confirmación llega con el ID que el servidor asoció a este socket
+				if (msg.getId() != session.id || !text.endsWith(" " + session.id)) {
+					mismatched.incrementAndGet();
+				}
+				session.ready = true;
+				ready.countDown();
+
+			} else if (text.startsWith(MARKER, colon + 2)) {
+
+				long now = System.nanoTime();
+				long intended = Long.parseLong(text.substring(text.lastIndexOf(' ') + 1));
+				delivered.incrementAndGet();
+				if (intended >= measureFrom) {
+					histogram.record(now - intended);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Arranca el generador con las opciones de la línea de comandos (-D).
+	 *
+	 * @param args No se usan.
+	 * @throws Exception si falla la prueba.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String host = System.getProperty("chat.host", "localhost");
+		int port = Integer.getInteger("chat.port", 1500);
+		int clients = Integer.getInteger("load.clients", 1000);
+		int rooms = Integer.getInteger("load.rooms", 1);
+		double rate = Double.parseDouble(System.getProperty("load.rate", "100"));
+		int duration = Integer.getInteger("load.duration", 30);
+		int warmup = Integer.getInteger("load.warmup", 5);
+		int drain = Integer.getInteger("load.drain", 5);
+		int loops = Integer.getInteger("load.loops", 1);
+		int connectors = Integer.getInteger("load.connectors", 8);
+		boolean connectOnly = "connect".equalsIgnoreCase(System.getProperty("load.mode"));
+		String engine = System.getProperty("load.server");
+
+		AbstractChatServer server = null;
+		if (engine != null) {
+
+			host = "localhost";
+			try (ServerSocket probe = new ServerSocket(0)) {
+				port = probe.getLocalPort();
+			}
+			server = startServer(engine, port);
+		}
+
+		try {
+
+			if (connectOnly) {
+
+				System.out.println("[LOG] Comprobación de " + clients + " conexiones simultáneas contra " + host + ":" + port);
+				new LoadGenerator(new InetSocketAddress(host, port), clients, 1, rate, duration, warmup, drain, loops)
+						.checkConnects(connectors);
+				return;
+			}
+
+			System.out.println("[LOG] " + clients + " sesiones en " + rooms + " salas contra " + host + ":" + port
+					+ ", " + rate + " mensajes/s durante " + duration + " s (" + warmup + " s de calentamiento)");
+
+			new LoadGenerator(new InetSocketAddress(host, port), clients, rooms, rate, duration, warmup, drain, loops)
+					.run(connectors);
+
+		} finally {
+
+			if (server != null) {
+				server.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Arranca un servidor en este proceso, en un hilo propio, y espera a que
+	 * acepte conexiones.
+	 *
+	 * @param engine Motor: "threads", "virtual" o "nio".
+	 * @param port Puerto libre.
+	 * @return Servidor arrancado.
+	 * @throws IOException si el motor no existe o el servidor no arranca a tiempo.
+	 * @throws InterruptedException si se interrumpe la espera.
+	 */
+	private static AbstractChatServer startServer(String engine, int port) throws IOException, InterruptedException {
+
+		final AbstractChatServer server;
+		if ("nio".equalsIgnoreCase(engine)) {
+			server = new ChatServerNioImpl(port);
+		} else if ("virtual".equalsIgnoreCase(engine) || "threads".equalsIgnoreCase(engine)) {
+			server = new ChatServerImpl(port, "virtual".equalsIgnoreCase(engine));
+		} else {
+			throw new IOException("Motor de servidor desconocido en load.server: " + engine);
+		}
+
+		Threads.factory("carga-servidor", false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				server.startup();
+			}
+		}).start();
+
+		long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+		while (true) {
+
+			try {
+				// Acepta conexiones; la sesión de prueba se cierra sin identificarse
+				new Socket("localhost", port).close();
+				System.out.println("[LOG] Servidor " + engine + " arrancado en el puerto " + port);
+				return server;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					server.shutdown();
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+}
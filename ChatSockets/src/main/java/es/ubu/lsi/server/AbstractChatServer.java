@@ -0,0 +1,1089 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+
+/**
+ * Base común de los motores del servidor de chat.
+ * Mantiene el registro de clientes conectados y la lógica de difusión,
+ * eliminación y tratamiento de mensajes, de forma que cada motor solo
+ * tenga que ocuparse de aceptar conexiones y mover bytes por los sockets.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public abstract class AbstractChatServer implements ChatServer {
+
+	/** Puerto por defecto del servidor. */
+	public static final int DEFAULT_PORT = 1500;
+	/** ID con el que llegan a los clientes los mensajes de usuarios de otros nodos. */
+	static final int REMOTE_SENDER = -2;
+	/** Texto con el que los clientes que no conocen BAN avisan de un bloqueo. */
+	private static final String LEGACY_BAN = " ha bloqueado a ";
+	/** Texto con el que los clientes que no conocen UNBAN avisan de un desbloqueo. */
+	private static final String LEGACY_UNBAN = " ha desbloqueado a ";
+	/** Tiempo sin recibir nada tras el que se expulsa una sesión (-Dchat.idle.timeout en segundos; 0 lo desactiva). */
+	static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.idle.timeout", 45));
+	/** Indica si se aceptan las peticiones de compresión de los clientes (-Dchat.compression=none lo desactiva). */
+	static final boolean COMPRESSION = !"none".equalsIgnoreCase(System.getProperty("chat.compression", ChatMessageCodec.DEFLATE));
+	/** Espera máxima del apagado a que los clientes reciban lo que tienen en cola (-Dchat.shutdown.drain en segundos). */
+	static final long SHUTDOWN_DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.shutdown.drain", 5));
+	/** Margen tras el aviso de apagado para que salga y se cierren las conexiones. */
+	private static final long SHUTDOWN_GRACE_MILLIS = 1000;
+	/** Contador para asignar ID único a cada cliente, sin cerrojos aunque lleguen muchos a la vez. */
+	protected final AtomicInteger clientId = new AtomicInteger();
+	/** Puerto de escucha del servidor. */
+	protected int port;
+	/** Estado del servidor (activo o no). */
+	protected volatile boolean alive;
+	/** Mapa de clientes conectados (ID → sesión del cliente). */
+	protected final Map<Integer, ClientSession> clients = new ConcurrentHashMap<>();
+	/** Mapa de nombres de usuario conectados (ID → nombre). */
+	protected final Map<Integer, String> clientUsernames = new ConcurrentHashMap<>();
+	/** Sesiones por nombre de usuario (nombre → sesión más reciente con ese nombre). */
+	protected final ConcurrentHashMap<String, ClientSession> sessionsByName = new ConcurrentHashMap<>();
+	/** Salas de chat y sus miembros. */
+	protected final RoomRegistry rooms = new RoomRegistry();
+	/** Bloqueos entre usuarios, aplicados al difundir. */
+	protected final BlockIndex blocks = new BlockIndex(clients, clientUsernames, sessionsByName);
+	/** Nodo del clúster al que pertenece el servidor (null si funciona solo). */
+	protected ClusterNode cluster;
+	/** Registro persistente de los mensajes de las salas (null si no hay historial). */
+	protected MessageLog history;
+	/** Último número de secuencia asignado a una difusión. */
+	protected final AtomicLong sequence = new AtomicLong();
+	/** Identifica esta ejecución del servidor, para no reanudar con números de otra. */
+	protected final String epoch = UUID.randomUUID().toString();
+	/** Mensajes descartados por colas de salida llenas, incluidos los de clientes ya desconectados. */
+	protected final AtomicLong droppedMessages = new AtomicLong();
+	/** Clientes desconectados por no consumir sus mensajes. */
+	protected final AtomicLong slowConsumerDisconnects = new AtomicLong();
+	/** Métricas de funcionamiento del servidor. */
+	protected final ServerMetrics metrics = new ServerMetrics(this);
+	/** Límites de ritmo de los mensajes entrantes (null si no hay ninguno). */
+	protected final RateLimiter limiter = RateLimiter.fromSystemProperties();
+	/** Plazos de inactividad de todas las sesiones (null si no se vigilan). */
+	protected final TimingWheel idleWheel = (IDLE_TIMEOUT_MILLIS > 0) ? new TimingWheel("chat-idle", 100, 512) : null;
+	/** Reparto en paralelo de las difusiones grandes (null si está desactivado). */
+	protected final FanOutPool fanOutPool = FanOutPool.fromSystemProperties(this);
+	/** Presencia de los usuarios conectados, para quien la pide (null si está desactivada). */
+	protected final PresenceTracker presence = PresenceTracker.fromSystemProperties();
+
+	/**
+	 * Constructor del servidor de chat.
+	 * @param port Puerto en el que se ejecutará el servidor.
+	 */
+	protected AbstractChatServer(int port) {
+
+		this.port = port;
+		this.alive = true;
+		//Añadimos el usuario -1 que es el servidor para el shutdown
+		clientUsernames.put(-1, "localhost");
+		if (limiter != null) {
+			ServerLog.info(limiter.describe());
+		}
+	}
+
+	/**
+	 * Envía un mensaje a todos los clientes conectados, estén en la sala que
+	 * estén. Se usa para los avisos del servidor, como el apagado.
+	 *
+	 * @param message Mensaje a difundir.
+	 */
+	@Override
+	public void broadcast(ChatMessage message) {
+
+		String sender = clientUsernames.get(message.getId());
+		fanOut(clients.values(), null, message.getId(), sender, new EncodedMessage(
+				new ChatMessage(message.getId(), message.getType(), message.getMessage(), 0, sender)));
+	}
+
+	/**
+	 * Envía un mensaje a los miembros de una sala. El coste depende del tamaño
+	 * de la sala, no del número total de clientes. En un clúster, el mensaje
+	 * se reenvía además a los demás nodos para sus miembros de la sala.
+	 *
+	 * @param room Sala destinataria.
+	 * @param message Mensaje a difundir.
+	 */
+	protected void broadcast(Room room, ChatMessage message) {
+
+		publish(room, message.getId(), clientUsernames.get(message.getId()), message.getType(), message.getMessage());
+		if (history != null && message.getId() >= 0) {
+			history.append(room.name, clientUsernames.get(message.getId()), message.getMessage());
+		}
+		if (cluster != null) {
+			cluster.publishRoom(room.name, clientUsernames.get(message.getId()), message.getMessage());
+		}
+	}
+
+	/**
+	 * Reparte entre los clientes locales de una sala un mensaje difundido en
+	 * otro nodo del clúster. No se reenvía a ningún otro nodo.
+	 *
+	 * @param roomName Nombre de la sala.
+	 * @param sender Nombre del remitente.
+	 * @param text Texto del mensaje.
+	 */
+	void deliverFromPeer(String roomName, String sender, String text) {
+
+		Room room = rooms.find(roomName);
+		if (room != null) {
+			publish(room, REMOTE_SENDER, sender, ChatMessage.MessageType.MESSAGE, text);
+		}
+		if (history != null) {
+			history.append(roomName, sender, text);
+		}
+	}
+
+	/**
+	 * Entrega un mensaje privado llegado de otro nodo, si el destinatario está aquí.
+	 *
+	 * @param target Nombre del destinatario.
+	 * @param sender Nombre del remitente.
+	 * @param text Texto del mensaje.
+	 */
+	void deliverPrivateFromPeer(String target, String sender, String text) {
+
+		ClientSession session = sessionsByName.get(target);
+		if (session != null && !session.blockedNames.contains(sender)) {
+
+			session.send(new EncodedMessage(new ChatMessage(REMOTE_SENDER, ChatMessage.MessageType.MESSAGE,
+					"[privado] " + text, 0, sender)));
+		}
+	}
+
+	/**
+	 * Devuelve los nombres de los usuarios conectados a este servidor.
+	 *
+	 * @return Copia de los nombres.
+	 */
+	List<String> localUsernames() {
+
+		return new ArrayList<>(sessionsByName.keySet());
+	}
+
+	/**
+	 * Resume los usuarios conectados, en todo el clúster si lo hay.
+	 *
+	 * @return Línea de log con los usuarios.
+	 */
+	public String usersSummary() {
+
+		if (cluster != null) {
+			return cluster.usersSummary();
+		}
+		return "[LOG] Usuarios conectados: " + new TreeSet<>(sessionsByName.keySet());
+	}
+
+	/**
+	 * Une el servidor al clúster configurado con las propiedades chat.cluster.*,
+	 * si las hay. Debe llamarse antes de {@link #startup()}.
+	 *
+	 * @throws IOException si no se puede abrir el puerto del clúster.
+	 */
+	public void joinCluster() throws IOException {
+
+		cluster = ClusterNode.fromSystemProperties(this);
+		if (cluster != null) {
+			cluster.start();
+		}
+	}
+
+	/**
+	 * Abre el historial de mensajes configurado con la propiedad chat.log.dir,
+	 * si la hay. Debe llamarse antes de {@link #startup()}.
+	 *
+	 * @throws IOException si no se puede abrir el directorio del historial.
+	 */
+	public void openHistory() throws IOException {
+
+		history = MessageLog.fromSystemProperties();
+		if (history != null) {
+			ServerLog.info(history.stats());
+		}
+	}
+
+	/**
+	 * Publica las métricas del servidor por JMX y, si se ha configurado la
+	 * propiedad chat.metrics.port, en texto por HTTP (ver {@link ServerMetrics}).
+	 *
+	 * @throws IOException si no se puede abrir el puerto de las métricas.
+	 */
+	public void exposeMetrics() throws IOException {
+
+		metrics.publish();
+	}
+
+	/**
+	 * Devuelve las métricas del servidor en formato de texto.
+	 *
+	 * @return Texto de las métricas.
+	 */
+	public String metricsText() {
+
+		return metrics.scrape();
+	}
+
+	/**
+	 * Resume el estado del historial.
+	 *
+	 * @return Línea de log con el historial.
+	 */
+	public String historyStats() {
+
+		return (history == null) ? "[LOG] Historial desactivado" : "[LOG] " + history.stats();
+	}
+
+	/**
+	 * Numera una difusión a una sala, la guarda para las reanudaciones y la
+	 * reparte entre sus miembros, todo con el cerrojo de la sala tomado.
+	 *
+	 * @param room Sala destinataria.
+	 * @param senderId ID del remitente, -1 para el servidor o {@link #REMOTE_SENDER}.
+	 * @param senderUsername Nombre del remitente.
+	 * @param type Tipo del mensaje.
+	 * @param text Texto del mensaje.
+	 */
+	private void publish(Room room, int senderId, String senderUsername, ChatMessage.MessageType type, String text) {
+
+		room.lock.lock();
+		try {
+
+			long seq = sequence.incrementAndGet();
+			EncodedMessage message = new EncodedMessage(new ChatMessage(senderId, type, text, seq, senderUsername));
+			room.recent.add(new RecentMessages.Entry(seq, senderUsername, message));
+			fanOut(room.members, room, senderId, senderUsername, message);
+
+		} finally {
+
+			room.lock.unlock();
+		}
+	}
+
+	/**
+	 * Envía un mensaje a un grupo de clientes, salvo a los que han bloqueado
+	 * al remitente (por ID si es local, por nombre si viene de otro nodo).
+	 * El mensaje se codifica una sola vez, y solo si algún destinatario lo
+	 * recibe; todos reciben los mismos bytes.
+	 *
+	 * A partir de chat.fanout.parallel destinatarios, se copia la lista y se
+	 * reparte en paralelo con {@link FanOutPool}. Una sala que lo alcanza
+	 * sigue repartiéndose así mientras exista, aunque luego mengüe: una
+	 * difusión directa podría adelantar a las que aún se están repartiendo.
+	 *
+	 * @param recipients Destinatarios.
+	 * @param room Sala de la difusión, con su cerrojo tomado (null para los avisos a todos).
+	 * @param senderId ID del remitente, o {@link #REMOTE_SENDER}.
+	 * @param senderUsername Nombre del remitente.
+	 * @param newMessage Mensaje a difundir.
+	 */
+	private void fanOut(Collection<ClientSession> recipients, Room room, int senderId, String senderUsername,
+			EncodedMessage newMessage) {
+
+	    long start = System.nanoTime();
+
+		if (fanOutPool != null && ((room != null && room.parallel) || recipients.size() >= FanOutPool.THRESHOLD)) {
+
+			if (room != null) {
+				room.parallel = true;
+			}
+			fanOutPool.submit(recipients.toArray(new ClientSession[0]), room, senderId, senderUsername, newMessage);
+
+		} else {
+
+			for (ClientSession client : recipients) {
+				deliver(client, senderId, senderUsername, newMessage);
+			}
+		}
+		metrics.fanOut.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Entrega un mensaje difundido a un cliente, salvo si ha bloqueado al remitente.
+	 *
+	 * @param client Destinatario.
+	 * @param senderId ID del remitente, o {@link #REMOTE_SENDER}.
+	 * @param senderUsername Nombre del remitente.
+	 * @param message Mensaje a difundir.
+	 */
+	void deliver(ClientSession client, int senderId, String senderUsername, EncodedMessage message) {
+
+		boolean blocked = (senderId == REMOTE_SENDER) ? client.blockedNames.contains(senderUsername)
+				: client.blocked.contains(senderId);
+		if (!blocked) {
+			client.send(message);
+		}
+	}
+
+	/**
+	 * Elimina un cliente desconectado de las estructuras internas y cierra su conexión.
+	 *
+	 * @param id ID del cliente a eliminar.
+	 */
+	@Override
+	public void remove(int id) {
+
+		ClientSession client = unregister(id);
+
+		if (client != null) {
+
+			client.close();
+			ServerLog.info("Cliente con ID " + id + " eliminado del servidor y conexión cerrada.");
+		}
+	}
+
+	/**
+	 * Quita un cliente de las estructuras internas sin cerrar su conexión.
+	 *
+	 * @param id ID del cliente.
+	 * @return Sesión eliminada, o null si no estaba registrada.
+	 */
+	private ClientSession unregister(int id) {
+
+		ClientSession client = clients.remove(id);
+		if (client != null) {
+			clientUsernames.remove(id);
+			if (client.username != null && sessionsByName.remove(client.username, client)) {
+
+				if (cluster != null) {
+					cluster.userOff(client.username);
+				}
+				if (presence != null) {
+					presence.offline(client.username);
+				}
+			}
+			if (presence != null) {
+				presence.unsubscribe(client);
+			}
+			rooms.leave(client);
+			blocks.removed(client);
+		}
+		return client;
+	}
+
+	/**
+	 * Encola un mensaje para un cliente aplicando la política de desbordamiento
+	 * de su cola. Si la política es desconectar, el cliente se elimina y su
+	 * conexión se cierra sin esperar a vaciar la cola.
+	 *
+	 * @param session Sesión destinataria.
+	 * @param msg Mensaje a encolar.
+	 * @return true si la cola ha recibido el mensaje y hay que avisar a su escritor.
+	 */
+	protected boolean offer(ClientSession session, EncodedMessage msg) {
+
+		switch (session.queue.offer(msg)) {
+
+		case ACCEPTED:
+			return true;
+
+		case DROPPED:
+			droppedMessages.incrementAndGet();
+			return true;
+
+		case OVERFLOW:
+			if (unregister(session.id) != null) {
+
+				slowConsumerDisconnects.incrementAndGet();
+				session.abort();
+				ServerLog.info("Cliente " + session.username + " desconectado: no consume sus mensajes.");
+			}
+			return false;
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Resume el estado de las colas de salida de los clientes conectados.
+	 *
+	 * @return Línea de log con las métricas de las colas.
+	 */
+	public String queueStats() {
+
+		int sessions = 0;
+		long queued = 0;
+		int deepest = 0;
+		int highWater = 0;
+		String deepestUser = "-";
+
+		for (ClientSession client : clients.values()) {
+
+			int depth = client.queue.size();
+			sessions++;
+			queued += depth;
+			highWater = Math.max(highWater, client.queue.highWater());
+			if (depth > deepest) {
+				deepest = depth;
+				deepestUser = client.username;
+			}
+		}
+
+		return "[LOG] Colas de salida: " + sessions + " clientes, " + queued + " mensajes pendientes, mayor cola "
+				+ deepest + " (" + deepestUser + "), máximo histórico " + highWater + ", " + droppedMessages.get()
+				+ " descartados, " + slowConsumerDisconnects.get() + " clientes lentos desconectados";
+	}
+
+	/**
+	 * Notifica el apagado a todos los clientes y cierra sus sesiones.
+	 * Los motores lo invocan desde {@link #shutdown()} antes de liberar sus propios recursos.
+	 *
+	 * Antes de avisar se espera, como mucho chat.shutdown.drain segundos, a
+	 * que los clientes reciban lo que tienen en cola. El aviso va por el
+	 * carril de control, así que adelanta a lo que aún quede; las conexiones
+	 * que no terminan de escribirlo en un segundo se cierran sin más. El
+	 * apagado tarda, por tanto, un tiempo acotado aunque haya clientes que
+	 * no leen.
+	 */
+	protected void disconnectAll() {
+
+		alive = false;
+		if (cluster != null) {
+			cluster.stop();
+		}
+		if (history != null) {
+			history.close();
+		}
+		metrics.close();
+		if (idleWheel != null) {
+			idleWheel.stop();
+		}
+		if (presence != null) {
+			presence.stop();
+		}
+
+		// Dar tiempo a que salga lo que ya está en cola
+		awaitSessions(clients.values(), false, System.currentTimeMillis() + SHUTDOWN_DRAIN_MILLIS);
+
+		// Notificar a todos los clientes conectados sobre el apagado del servidor
+		ChatMessage shutdownMessage = new ChatMessage(-1, ChatMessage.MessageType.SHUTDOWN,"El servidor se está apagando...");
+	    broadcast(shutdownMessage);
+	    if (fanOutPool != null) {
+	    	// El aviso puede estar aún repartiéndose: se espera antes de cerrar las colas
+	    	fanOutPool.stop(SHUTDOWN_GRACE_MILLIS);
+	    }
+
+	    // Cerrar todas las conexiones activas
+	    List<ClientSession> sessions = new ArrayList<>(clients.values());
+	    for (ClientSession client : sessions) {
+
+            remove(client.id);  // Eliminar cliente del mapa
+        }
+        clients.clear(); // Limpiar la lista de clientes
+
+        // Las que no terminan de escribir a tiempo se cierran sin esperar más
+        awaitSessions(sessions, true, System.currentTimeMillis() + SHUTDOWN_GRACE_MILLIS);
+        int aborted = 0;
+        for (ClientSession client : sessions) {
+
+        	if (!client.closed) {
+        		client.abort();
+        		aborted++;
+        	}
+        }
+        if (aborted > 0) {
+        	ServerLog.info("Apagado: " + aborted + " clientes no han recibido a tiempo lo que tenían en cola.");
+        }
+	}
+
+	/**
+	 * Espera, como mucho hasta un instante, a que todas las sesiones hayan
+	 * vaciado su cola de salida o, si se pide, cerrado su conexión.
+	 *
+	 * @param sessions Sesiones.
+	 * @param untilClosed true para esperar a que se cierren.
+	 * @param deadline Instante límite (currentTimeMillis).
+	 */
+	private static void awaitSessions(Collection<ClientSession> sessions, boolean untilClosed, long deadline) {
+
+		while (System.currentTimeMillis() < deadline) {
+
+			boolean done = true;
+			for (ClientSession session : sessions) {
+
+				if (untilClosed ? !session.closed : !session.queue.isEmpty()) {
+					done = false;
+					break;
+				}
+			}
+			if (done) {
+				return;
+			}
+
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Asigna un ID nuevo a una sesión recién aceptada. Puede llamarse desde
+	 * varios hilos a la vez: cada llamada obtiene un ID distinto.
+	 *
+	 * @param session Sesión del cliente.
+	 * @return ID asignado.
+	 */
+	protected int assignId(ClientSession session) {
+
+		metrics.accepted.increment();
+		session.id = clientId.getAndIncrement();
+		if (limiter != null) {
+			limiter.open(session);
+		}
+		if (idleWheel != null) {
+
+			session.lastSeen = System.nanoTime();
+			watch(session, IDLE_TIMEOUT_MILLIS);
+		}
+		return session.id;
+	}
+
+	/**
+	 * Programa la siguiente comprobación de inactividad de una sesión.
+	 *
+	 * @param session Sesión del cliente.
+	 * @param delayMillis Milisegundos hasta la comprobación.
+	 */
+	private void watch(final ClientSession session, long delayMillis) {
+
+		TimingWheel.Timeout check = idleWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				checkIdle(session);
+			}
+		}, delayMillis);
+		session.idleCheck = check;
+		if (session.idleDone) {
+			// Se ha cerrado mientras se programaba
+			check.cancel();
+		}
+	}
+
+	/**
+	 * Marca una sesión como cerrada, deja de vigilar su inactividad y suelta
+	 * sus límites de ritmo. Los motores lo invocan al cerrar definitivamente su conexión;
+	 * se puede llamar más de una vez.
+	 *
+	 * @param session Sesión del cliente.
+	 */
+	protected void release(ClientSession session) {
+
+		session.closed = true;
+		session.idleDone = true;
+		TimingWheel.Timeout check = session.idleCheck;
+		if (check != null) {
+			check.cancel();
+		}
+		if (limiter != null) {
+			limiter.close(session);
+		}
+	}
+
+	/**
+	 * Aplica los límites de ritmo a un mensaje recibido, antes de tratarlo.
+	 * Los motores lo invocan por cada mensaje, sin reservar memoria.
+	 *
+	 * @param session Sesión que ha recibido el mensaje.
+	 * @param msg Mensaje recibido.
+	 * @return 0 para tratarlo sin más; un valor positivo para tratarlo y dejar
+	 *         de leer de la sesión esos nanosegundos; {@link RateLimiter#DROPPED}
+	 *         para descartarlo; {@link RateLimiter#DISCONNECTED} si la sesión se
+	 *         ha desconectado.
+	 */
+	protected long admit(ClientSession session, ChatMessage msg) {
+
+		if (limiter == null || msg.getType() == ChatMessage.MessageType.LOGOUT) {
+			return 0;
+		}
+		long wait = limiter.acquire(session);
+		if (wait == 0) {
+			return 0;
+		}
+
+		metrics.rateLimited.increment();
+		switch (limiter.action) {
+
+		case DELAY:
+			return wait;
+
+		case DROP:
+			return RateLimiter.DROPPED;
+
+		default:
+			if (unregister(session.id) != null) {
+				ServerLog.info("Cliente " + session.username + " desconectado: supera el límite de mensajes.");
+			}
+			session.abort();
+			return RateLimiter.DISCONNECTED;
+		}
+	}
+
+	/**
+	 * Comprueba, en el hilo de la rueda, si una sesión lleva demasiado tiempo
+	 * sin enviar nada. Solo se expulsa a quien aún no se ha identificado o a
+	 * quien envía latidos (PING): un cliente antiguo puede callar
+	 * indefinidamente, y para él queda el keepalive de TCP. Si no toca
+	 * expulsar, se vuelve a comprobar cuando venza su plazo.
+	 *
+	 * @param session Sesión del cliente.
+	 */
+	private void checkIdle(ClientSession session) {
+
+		if (session.idleDone) {
+			return;
+		}
+		long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.lastSeen);
+		if (idle < IDLE_TIMEOUT_MILLIS) {
+
+			watch(session, IDLE_TIMEOUT_MILLIS - idle);
+
+		} else if (session.username != null && !session.heartbeat) {
+
+			watch(session, IDLE_TIMEOUT_MILLIS);
+
+		} else {
+
+			session.idleDone = true;
+			metrics.idleEvictions.increment();
+			ServerLog.info("Cliente " + (session.username == null ? "con ID " + session.id : session.username)
+					+ " expulsado: " + TimeUnit.MILLISECONDS.toSeconds(idle) + " s sin actividad.");
+			remove(session.id);
+			// Un cliente caído no vacía su cola; se cierra sin esperar
+			session.abort();
+		}
+	}
+
+	/**
+	 * Añade la sesión al mapa de clientes, a partir de lo cual recibe los avisos
+	 * generales; las difusiones de las salas empiezan al identificarse. Debe
+	 * llamarse después de haber enviado el ID al cliente.
+	 *
+	 * @param session Sesión del cliente.
+	 */
+	protected void register(ClientSession session) {
+
+		clients.put(session.id, session);
+	}
+
+	/**
+	 * Identifica a un cliente con su primer mensaje y lo mete en una sala.
+	 *
+	 * Con MESSAGE el texto es el nombre y entra en la sala por defecto. Con
+	 * RESUME la sesión recibe además los números de secuencia y se le contesta
+	 * con {@link #epoch}; si el texto trae "nombre\nepoch\nsecuencia\nsala" de
+	 * una conexión anterior con este mismo servidor, vuelve a esa sala y recibe
+	 * las difusiones que se perdió. Detrás pueden venir, una por línea, los
+	 * usuarios que tenía bloqueados, que se bloquean antes de reenviar nada.
+	 *
+	 * @param session Sesión del cliente.
+	 * @param msg Primer mensaje.
+	 */
+	private void login(ClientSession session, ChatMessage msg) {
+
+		boolean resume = (msg.getType() == ChatMessage.MessageType.RESUME);
+		String[] fields = resume ? msg.getMessage().split("\n", -1) : new String[] { msg.getMessage() };
+
+		session.username = fields[0];
+		clientUsernames.put(session.id, session.username);
+		sessionsByName.put(session.username, session);
+		if (cluster != null) {
+			cluster.userOn(session.username);
+		}
+		if (presence != null) {
+			presence.online(session.username);
+		}
+		blocks.loggedIn(session);
+		ServerLog.info("Cliente " + session.username + " conectado con ID: " + session.id);
+
+		if (!resume) {
+
+			rooms.enterLobby(session);
+			return;
+		}
+
+		session.sequenced = true;
+		session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.RESUME, epoch)));
+
+		String room = (fields.length > 3 && !fields[3].trim().isEmpty()) ? fields[3].trim() : RoomRegistry.DEFAULT_ROOM;
+		for (int i = 4; i < fields.length; i++) {
+
+			String blocked = fields[i].trim();
+			if (!blocked.isEmpty()) {
+				blocks.block(session, blocked);
+			}
+		}
+		long after = -1;
+		if (fields.length > 2 && epoch.equals(fields[1])) {
+
+			try {
+				after = Long.parseLong(fields[2].trim());
+			} catch (NumberFormatException e) {
+				// Sin secuencia válida no se reenvía nada
+			}
+
+		} else if (fields.length > 2) {
+
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE, clientUsernames.get(-1)
+					+ ": el servidor se ha reiniciado; los mensajes de la desconexión no se pueden recuperar")));
+		}
+		resume(session, room, after);
+	}
+
+	/**
+	 * Mete a una sesión en una sala y le reenvía las difusiones de la sala
+	 * posteriores a un número de secuencia. Se entra con el cerrojo de la sala
+	 * tomado, así que cada difusión llega una sola vez: o está en el búfer y se
+	 * reenvía, o se reparte después y llega en directo. Como al repartir, no se
+	 * reenvía lo de los usuarios que la sesión tiene bloqueados.
+	 *
+	 * @param session Sesión del cliente.
+	 * @param name Nombre de la sala.
+	 * @param after Último número de secuencia recibido, o -1 para no reenviar nada.
+	 */
+	private void resume(ClientSession session, String name, long after) {
+
+		while (true) {
+
+			Room room = rooms.open(name);
+			room.lock.lock();
+			try {
+
+				if (!rooms.join(session, room)) {
+					// La sala se ha eliminado y vuelto a crear entretanto
+					continue;
+				}
+				if (after < 0) {
+					return;
+				}
+
+				List<RecentMessages.Entry> missed = room.recent.after(after);
+				if (!room.recent.covers(after)) {
+
+					session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+							clientUsernames.get(-1) + ": algunos mensajes de la desconexión ya no están disponibles")));
+				}
+				int resent = 0;
+				for (RecentMessages.Entry entry : missed) {
+
+					if (entry.sender == null || !session.blockedNames.contains(entry.sender)) {
+						session.send(entry.message);
+						resent++;
+					}
+				}
+				ServerLog.info(session.username + " reanuda la sesión en la sala " + room.name + ": "
+						+ resent + " mensajes reenviados");
+				return;
+
+			} finally {
+
+				room.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Traduce los avisos de bloqueo de los clientes que no conocen BAN/UNBAN
+	 * ("nombre ha bloqueado a otro") a su tipo de mensaje.
+	 *
+	 * @param session Sesión que ha enviado el mensaje.
+	 * @param msg Mensaje recibido.
+	 * @return Mensaje BAN o UNBAN equivalente, o el mismo mensaje si no es un aviso.
+	 */
+	private ChatMessage fromLegacyBlock(ClientSession session, ChatMessage msg) {
+
+		String text = msg.getMessage();
+		if (msg.getType() != ChatMessage.MessageType.MESSAGE || text == null || !text.startsWith(session.username)) {
+			return msg;
+		}
+
+		String rest = text.substring(session.username.length());
+		if (rest.startsWith(LEGACY_BAN)) {
+			return new ChatMessage(msg.getId(), ChatMessage.MessageType.BAN, rest.substring(LEGACY_BAN.length()).trim());
+		}
+		if (rest.startsWith(LEGACY_UNBAN)) {
+			return new ChatMessage(msg.getId(), ChatMessage.MessageType.UNBAN, rest.substring(LEGACY_UNBAN.length()).trim());
+		}
+		return msg;
+	}
+
+	/**
+	 * Entrega un mensaje privado a un solo cliente, buscado por su nombre sin
+	 * recorrer el resto de sesiones. Llega como un mensaje normal marcado como
+	 * privado, para que lo muestre cualquier versión del cliente. Si el
+	 * destinatario no está conectado se avisa al remitente; si lo tiene
+	 * bloqueado, el mensaje se descarta sin más.
+	 *
+	 * @param session Sesión del remitente.
+	 * @param text Texto con el formato "destinatario:mensaje".
+	 */
+	private void sendPrivate(ClientSession session, String text) {
+
+		int separator = (text == null) ? -1 : text.indexOf(':');
+		if (separator < 1) {
+			return;
+		}
+		String name = text.substring(0, separator).trim();
+		String body = text.substring(separator + 1).trim();
+
+		ClientSession target = sessionsByName.get(name);
+		if (target == null && cluster != null && cluster.publishPrivate(name, session.username, body)) {
+
+			ServerLog.info("Mensaje privado de " + session.username + " a " + name + " (otro nodo)");
+			return;
+		}
+		if (target == null) {
+
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+					clientUsernames.get(-1) + ": " + name + " no está conectado")));
+			return;
+		}
+
+		ServerLog.info("Mensaje privado de " + session.username + " a " + name);
+		if (!target.blocked.contains(session.id)) {
+
+			target.send(new EncodedMessage(new ChatMessage(session.id, ChatMessage.MessageType.MESSAGE,
+					"[privado] " + body, 0, session.username)));
+		}
+	}
+
+	/**
+	 * Reenvía a un cliente, y solo a él, el historial de su sala: los últimos N
+	 * mensajes ("N") o todos los posteriores a un offset ("@offset"), sin los de
+	 * los usuarios que tiene bloqueados. El historial va entre dos avisos del
+	 * servidor con los offsets, para que el cliente pueda continuar desde ahí.
+	 *
+	 * La consulta se hace en el hilo de lectura del historial, no en el de la
+	 * sesión: en el motor NIO ese hilo atiende a muchos clientes más.
+	 *
+	 * @param session Sesión que pide el historial.
+	 * @param spec Texto de la petición.
+	 */
+	private void replayHistory(final ClientSession session, String spec) {
+
+		final Room room = session.room;
+		final String server = clientUsernames.get(-1) + ": ";
+		if (room == null) {
+			return;
+		}
+		if (history == null) {
+
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+					server + "el historial no está activado")));
+			return;
+		}
+
+		final long from;
+		final int count;
+		try {
+
+			spec = (spec == null) ? "" : spec.trim();
+			from = spec.startsWith("@") ? Long.parseLong(spec.substring(1)) : -1;
+			count = spec.startsWith("@") ? 0 : Integer.parseInt(spec);
+
+		} catch (NumberFormatException e) {
+
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+					server + "uso: history [N | @offset]")));
+			return;
+		}
+
+		boolean queued = history.query(new Runnable() {
+			@Override
+			public void run() {
+
+				List<MessageLog.Entry> entries = (from >= 0) ? history.since(room.name, from, session.blockedNames)
+						: history.tail(room.name, count, session.blockedNames);
+				sendHistory(session, room, server, entries);
+			}
+		});
+		if (!queued) {
+
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+					server + "el historial está ocupado; inténtalo más tarde")));
+		}
+	}
+
+	/**
+	 * Envía a un cliente el resultado de una consulta del historial.
+	 */
+	private void sendHistory(ClientSession session, Room room, String server, List<MessageLog.Entry> entries) {
+
+		String range = entries.isEmpty() ? ""
+				: " (offsets " + entries.get(0).offset + "-" + entries.get(entries.size() - 1).offset + ")";
+		session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+				server + "historial de la sala " + room.name + ": " + entries.size() + " mensajes" + range)));
+		for (MessageLog.Entry entry : entries) {
+
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+					entry.text, 0, entry.sender)));
+		}
+		if (!entries.isEmpty()) {
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+					server + "fin del historial; continuar con history @" + (entries.get(entries.size() - 1).offset + 1))));
+		}
+		ServerLog.info("Historial de " + room.name + " enviado a " + session.username + ": " + entries.size() + " mensajes");
+	}
+
+	/**
+	 * Cambia a un cliente de sala y avisa a los miembros de la sala que deja
+	 * y de la sala nueva.
+	 *
+	 * @param session Sesión del cliente.
+	 * @param name Nombre de la sala nueva.
+	 */
+	private void changeRoom(ClientSession session, String name) {
+
+		name = (name == null) ? "" : name.trim();
+		Room previous = session.room;
+		if (name.isEmpty() || previous == null || previous.name.equals(name)) {
+			return;
+		}
+
+		broadcast(previous, new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+				session.username + " ha salido de la sala " + previous.name));
+		Room room = rooms.join(session, name);
+		broadcast(room, new ChatMessage(-1, ChatMessage.MessageType.MESSAGE,
+				session.username + " ha entrado en la sala " + room.name));
+		ServerLog.info(session.username + " ha pasado de la sala " + previous.name + " a " + room.name);
+	}
+
+	/**
+	 * Trata un mensaje recibido de una sesión. El primer mensaje de cada cliente
+	 * contiene su nombre de usuario (ver {@link #login}); BAN y UNBAN actualizan sus bloqueos, JOIN y
+	 * LEAVE le cambian de sala, PRIVATE va a un solo cliente, HISTORY le
+	 * reenvía el historial de su sala, PING se contesta con PONG, COMPRESS
+	 * activa la compresión de sus tramas largas, SENDER le envía el remitente
+	 * de las difusiones aparte del texto, PRESENCE le suscribe a la lista de
+	 * conectados y el resto se
+	 * difunden a los clientes de su sala. Cualquier mensaje cuenta como
+	 * actividad de la sesión.
+	 *
+	 * @param session Sesión que ha recibido el mensaje.
+	 * @param msg Mensaje recibido.
+	 * @return false si la sesión debe terminar, true en caso contrario.
+	 */
+	protected boolean process(ClientSession session, ChatMessage msg) {
+
+		metrics.messagesIn.increment();
+		session.lastSeen = System.nanoTime();
+		if (msg.getType() == ChatMessage.MessageType.PING) {
+
+			// Latido: se contesta con el mismo texto
+			session.heartbeat = true;
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.PONG, msg.getMessage())));
+			return true;
+
+		} else if (msg.getType() == ChatMessage.MessageType.PONG) {
+
+			return true;
+
+		} else if (msg.getType() == ChatMessage.MessageType.COMPRESS) {
+
+			// Solo con el protocolo binario: el cliente no la pide con objetos serializados
+			session.compressed = COMPRESSION && ChatMessageCodec.DEFLATE.equals(msg.getMessage());
+			session.send(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.COMPRESS,
+					session.compressed ? ChatMessageCodec.DEFLATE : "")));
+			return true;
+
+		} else if (msg.getType() == ChatMessage.MessageType.SENDER) {
+
+			// Solo con el protocolo binario; no tiene respuesta
+			session.senderField = true;
+			return true;
+
+		} else if (msg.getType() == ChatMessage.MessageType.PRESENCE) {
+
+			// Instantánea de los conectados y, después, sus cambios
+			if (presence != null) {
+				presence.subscribe(session);
+			}
+			return true;
+		}
+		if (session.username == null) {
+
+			// Recibir el primer mensaje con el nombre del usuario
+			login(session, msg);
+			return true;
+		}
+
+		msg = fromLegacyBlock(session, msg);
+
+		// Si el cliente envía LOGOUT, eliminarlo y cerrar su conexión
+        if (msg.getType() == ChatMessage.MessageType.LOGOUT || !alive) {
+
+        	ServerLog.info("Cliente " + session.username + " se ha desconectado.");
+            remove(session.id);
+            return false;
+
+        } else if (msg.getType() == ChatMessage.MessageType.BAN) {
+
+        	if (blocks.block(session, msg.getMessage())) {
+        		ServerLog.info(session.username + " ha bloqueado a " + msg.getMessage());
+        	}
+        	return true;
+
+        } else if (msg.getType() == ChatMessage.MessageType.UNBAN) {
+
+        	if (blocks.unblock(session, msg.getMessage())) {
+        		ServerLog.info(session.username + " ha desbloqueado a " + msg.getMessage());
+        	}
+        	return true;
+
+        } else if (msg.getType() == ChatMessage.MessageType.PRIVATE) {
+
+        	sendPrivate(session, msg.getMessage());
+        	return true;
+
+        } else if (msg.getType() == ChatMessage.MessageType.JOIN) {
+
+        	changeRoom(session, msg.getMessage());
+        	return true;
+
+        } else if (msg.getType() == ChatMessage.MessageType.LEAVE) {
+
+        	changeRoom(session, RoomRegistry.DEFAULT_ROOM);
+        	return true;
+
+        } else if (msg.getType() == ChatMessage.MessageType.HISTORY) {
+
+        	replayHistory(session, msg.getMessage());
+        	return true;
+
+        } else if (msg.getType() == ChatMessage.MessageType.RESUME) {
+
+        	// Solo vale como primer mensaje
+        	return true;
+        }
+
+        // Si es un mensaje normal, enviarlo a los clientes de su sala
+        Room room = session.room;
+        if (room == null) {
+        	return true;
+        }
+        if (msg.getId() != session.id) {
+        	// El remitente es quien envía por esta sesión, diga lo que diga el mensaje
+        	msg = new ChatMessage(session.id, msg.getType(), msg.getMessage());
+        }
+        if (ServerLog.enabled(ServerLog.Level.CHAT)) {
+        	ServerLog.chat("[" + room.name + "] " + session.username + ": " + msg.getMessage());
+        }
+        broadcast(room, msg);
+        return true;
+	}
+}
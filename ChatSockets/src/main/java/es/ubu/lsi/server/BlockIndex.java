@@ -0,0 +1,180 @@
+package es.ubu.lsi.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice de bloqueos entre usuarios, para filtrar las difusiones en el servidor.
+ *
+ * Los clientes bloquean por nombre, pero la difusión filtra por ID del
+ * remitente con el {@link BlockedSenders} de cada destinatario. El índice
+ * traduce unos a otros: al bloquear se añaden los IDs conectados con ese
+ * nombre, y cuando alguien entra con un nombre bloqueado se añade su ID a
+ * quienes lo bloquearon, de modo que el bloqueo sobrevive a las reconexiones
+ * del bloqueado mientras siga conectado quien bloquea.
+ *
+ * Al bloquear se apunta primero quién bloquea y después se busca la sesión
+ * con ese nombre; al entrar un usuario se publica primero su nombre y después
+ * se consulta quién lo bloquea. Así, si ambas cosas ocurren a la vez, al
+ * menos una de las dos ve a la otra. Bloquear y desbloquear no recorren los
+ * usuarios conectados: la sesión se busca por nombre y, al desbloquear, solo
+ * se miran los IDs que tenía bloqueados quien desbloquea. Si hay dos sesiones
+ * con el mismo nombre (una reconexión antes de cerrarse la anterior), al
+ * bloquear solo se encuentra la más reciente.
+ *
+ * Los conjuntos de quienes bloquean a cada nombre se eliminan al vaciarse,
+ * así que el índice no crece con cada nombre bloqueado alguna vez. Se crean
+ * y eliminan con el monitor del mapa, para que nadie se apunte en un conjunto
+ * ya eliminado; consultarlos no toma cerrojos.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class BlockIndex {
+
+	/** Sesiones conectadas (ID → sesión), compartido con el servidor. */
+	private final Map<Integer, ClientSession> clients;
+	/** Nombres de usuario conectados (ID → nombre), compartido con el servidor. */
+	private final Map<Integer, String> usernames;
+	/** Sesiones por nombre de usuario (la más reciente), compartido con el servidor. */
+	private final Map<String, ClientSession> sessionsByName;
+	/** Quién bloquea a cada nombre (nombre → IDs de quienes lo bloquean). */
+	private final ConcurrentHashMap<String, Set<Integer>> blockers = new ConcurrentHashMap<>();
+
+	/**
+	 * Crea el índice sobre los registros del servidor.
+	 *
+	 * @param clients Sesiones conectadas.
+	 * @param usernames Nombres de usuario conectados.
+	 * @param sessionsByName Sesiones por nombre de usuario.
+	 */
+	BlockIndex(Map<Integer, ClientSession> clients, Map<Integer, String> usernames,
+			Map<String, ClientSession> sessionsByName) {
+
+		this.clients = clients;
+		this.usernames = usernames;
+		this.sessionsByName = sessionsByName;
+	}
+
+	/**
+	 * Bloquea los mensajes de un usuario para una sesión.
+	 *
+	 * @param session Sesión que bloquea.
+	 * @param name Nombre del usuario bloqueado.
+	 * @return false si ya lo tenía bloqueado.
+	 */
+	boolean block(ClientSession session, String name) {
+
+		if (!session.blockedNames.add(name)) {
+			return false;
+		}
+		addBlocker(name, session.id);
+
+		ClientSession blocked = sessionsByName.get(name);
+		if (blocked != null) {
+			session.blocked.add(blocked.id);
+		}
+		return true;
+	}
+
+	/**
+	 * Desbloquea los mensajes de un usuario para una sesión.
+	 *
+	 * @param session Sesión que desbloquea.
+	 * @param name Nombre del usuario desbloqueado.
+	 * @return false si no lo tenía bloqueado.
+	 */
+	boolean unblock(ClientSession session, String name) {
+
+		if (!session.blockedNames.remove(name)) {
+			return false;
+		}
+		removeBlocker(name, session.id);
+
+		for (int id : session.blocked.snapshot()) {
+
+			if (name.equals(usernames.get(id))) {
+				session.blocked.remove(id);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Aplica los bloqueos existentes a un usuario que acaba de identificarse.
+	 * Debe llamarse después de publicar su nombre en el registro del servidor.
+	 *
+	 * @param session Sesión del usuario.
+	 */
+	void loggedIn(ClientSession session) {
+
+		Set<Integer> ids = blockers.get(session.username);
+		if (ids == null) {
+			return;
+		}
+
+		for (Integer blockerId : ids) {
+
+			ClientSession blocker = clients.get(blockerId);
+			if (blocker != null) {
+				blocker.blocked.add(session.id);
+			}
+		}
+	}
+
+	/**
+	 * Olvida los bloqueos de una sesión que se desconecta y su ID en los
+	 * bloqueos de los demás.
+	 *
+	 * @param session Sesión eliminada.
+	 */
+	void removed(ClientSession session) {
+
+		for (String name : session.blockedNames) {
+			removeBlocker(name, session.id);
+		}
+
+		Set<Integer> ids = (session.username == null) ? null : blockers.get(session.username);
+		if (ids != null) {
+
+			for (Integer blockerId : ids) {
+
+				ClientSession blocker = clients.get(blockerId);
+				if (blocker != null) {
+					blocker.blocked.remove(session.id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apunta a una sesión entre quienes bloquean un nombre, creando el conjunto si no existe.
+	 */
+	private void addBlocker(String name, int id) {
+
+		synchronized (blockers) {
+
+			Set<Integer> ids = blockers.get(name);
+			if (ids == null) {
+				ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+				blockers.put(name, ids);
+			}
+			ids.add(id);
+		}
+	}
+
+	/**
+	 * Quita a una sesión de quienes bloquean un nombre, eliminando el conjunto si se vacía.
+	 */
+	private void removeBlocker(String name, int id) {
+
+		synchronized (blockers) {
+
+			Set<Integer> ids = blockers.get(name);
+			if (ids != null && ids.remove(id) && ids.isEmpty()) {
+				blockers.remove(name);
+			}
+		}
+	}
+}
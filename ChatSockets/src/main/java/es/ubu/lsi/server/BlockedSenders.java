@@ -0,0 +1,84 @@
+package es.ubu.lsi.server;
+
+import java.util.Arrays;
+
+/**
+ * Conjunto de IDs de remitentes bloqueados por un cliente.
+ *
+ * Se consulta en cada difusión y se modifica muy de vez en cuando, así que
+ * se guarda como un array ordenado de enteros que se sustituye entero en cada
+ * cambio: la consulta no toma cerrojos ni crea objetos, y un conjunto vacío
+ * (el caso habitual) se resuelve sin mirar el array.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class BlockedSenders {
+
+	/** Array vacío compartido. */
+	private static final int[] NONE = new int[0];
+
+	/** IDs bloqueados, ordenados. Nunca se modifica un array ya publicado. */
+	private volatile int[] ids = NONE;
+
+	/**
+	 * Indica si un remitente está bloqueado.
+	 *
+	 * @param id ID del remitente.
+	 * @return true si sus mensajes no deben entregarse.
+	 */
+	boolean contains(int id) {
+
+		int[] current = ids;
+		return current.length != 0 && Arrays.binarySearch(current, id) >= 0;
+	}
+
+	/**
+	 * Devuelve los IDs bloqueados en este momento.
+	 *
+	 * @return IDs, ordenados (no debe modificarse).
+	 */
+	int[] snapshot() {
+
+		return ids;
+	}
+
+	/**
+	 * Bloquea un remitente.
+	 *
+	 * @param id ID del remitente.
+	 */
+	synchronized void add(int id) {
+
+		int[] current = ids;
+		int pos = Arrays.binarySearch(current, id);
+		if (pos >= 0) {
+			return;
+		}
+
+		pos = -pos - 1;
+		int[] next = new int[current.length + 1];
+		System.arraycopy(current, 0, next, 0, pos);
+		next[pos] = id;
+		System.arraycopy(current, pos, next, pos + 1, current.length - pos);
+		ids = next;
+	}
+
+	/**
+	 * Desbloquea un remitente.
+	 *
+	 * @param id ID del remitente.
+	 */
+	synchronized void remove(int id) {
+
+		int[] current = ids;
+		int pos = Arrays.binarySearch(current, id);
+		if (pos < 0) {
+			return;
+		}
+
+		int[] next = (current.length == 1) ? NONE : new int[current.length - 1];
+		System.arraycopy(current, 0, next, 0, pos);
+		System.arraycopy(current, pos + 1, next, pos, current.length - pos - 1);
+		ids = next;
+	}
+}
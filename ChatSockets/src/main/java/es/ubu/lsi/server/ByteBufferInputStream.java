@@ -0,0 +1,56 @@
+package es.ubu.lsi.server;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Flujo de entrada que lee de un {@link ByteBuffer}. Permite alimentar un
+ * {@link java.io.ObjectInputStream} con los bytes que el motor NIO ya ha
+ * recibido, cambiando el búfer de origen entre lecturas.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class ByteBufferInputStream extends InputStream {
+
+	/** Búfer de origen (en modo lectura). */
+	private ByteBuffer source;
+
+	/**
+	 * Cambia el búfer del que se lee.
+	 *
+	 * @param source Búfer en modo lectura.
+	 */
+	void setSource(ByteBuffer source) {
+
+		this.source = source;
+	}
+
+	@Override
+	public int read() {
+
+		if (source == null || !source.hasRemaining()) {
+			return -1;
+		}
+		return source.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+
+		if (len == 0) {
+			return 0;
+		}
+		if (source == null || !source.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, source.remaining());
+		source.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+
+		return (source == null) ? 0 : source.remaining();
+	}
+}
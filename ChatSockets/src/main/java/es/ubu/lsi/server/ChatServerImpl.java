@@ -1,46 +1,47 @@
 package es.ubu.lsi.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-import es.ubu.lsi.client.ChatClientImpl;
+import es.ubu.lsi.common.Batching;
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.Threads;
+import es.ubu.lsi.common.WireProtocol;
 
 /**
  * Clase que representa el servidor de un sistema de chat basado en sockets TCP.
  * Se encarga de aceptar conexiones de clientes, distribuir mensajes entre ellos
  * y gestionar el apagado y eliminación de clientes conectados.
  * 
+ * Este motor lanza un hilo por cada cliente conectado, de plataforma o virtual
+ * según se elija al arrancar. Para un número elevado de conexiones puede usarse
+ * también {@link ChatServerNioImpl}.
+ * 
  * @author Ivan Nebreda Camara
  */
-public class ChatServerImpl implements ChatServer {
+public class ChatServerImpl extends AbstractChatServer {
 
-	/** Puerto por defecto del servidor. */
-	private static final int DEFAULT_PORT = 1500;
-	/** Contador para asignar ID único a cada cliente. */
-	private static int clientId;
-	/** Formato de hora para el log. */
-	private static SimpleDateFormat sdf;
-	/** Puerto de escucha del servidor. */
-	private int port;
-	/** Estado del servidor (activo o no). */
-	private boolean alive;
+	/** Tamaño del búfer de escritura de cada sesión, para que quepa un lote entero. */
+	private static final int WRITE_BUFFER_SIZE = 32 * 1024;
+	
 	/** Socket del servidor. */
 	private ServerSocket serverSocket;
-	/** Socket del cliente en espera de aceptar. */
-	private Socket clientSocket;
-	/** Mapa de clientes conectados (ID → hilo de cliente). */
-	private final Map<Integer, ServerThreadForClient> clients = new ConcurrentHashMap<>();
-	/** Mapa de nombres de usuario conectados (ID → nombre). */
-	private final Map<Integer, String> clientUsernames = new ConcurrentHashMap<>();
+	/** Factoría de los hilos de las sesiones. */
+	private final ThreadFactory sessionThreads;
 	
 	
 	/**
@@ -49,9 +50,19 @@ public class ChatServerImpl implements ChatServer {
      */
 	public ChatServerImpl(int port) {
 		
-		this.port = port;
-		this.alive = true;
-		this.clientId = 0;
+		this(port, false);
+		
+	}
+	
+	/**
+     * Constructor del servidor de chat.
+     * @param port Puerto en el que se ejecutará el servidor.
+     * @param virtualThreads true para atender cada sesión en un hilo virtual.
+     */
+	public ChatServerImpl(int port, boolean virtualThreads) {
+		
+		super(port);
+		this.sessionThreads = Threads.factory("chat-session", virtualThreads);
 		
 	}
 	
@@ -63,11 +74,9 @@ public class ChatServerImpl implements ChatServer {
 		
 		try {
 			
-			// Crear el servidor de sockets en el puerto 1500
-	        serverSocket = new ServerSocket(DEFAULT_PORT);
-	        System.out.println("[LOG] Servidor iniciado en el puerto " + DEFAULT_PORT);
-	        //Añadimos el usuario -1 que es el servidor para el shutdown
-	        clientUsernames.put(-1,"localhost");
+			// Crear el servidor de sockets en el puerto indicado
+	        serverSocket = new ServerSocket(port);
+	        ServerLog.info("Servidor iniciado en el puerto " + port);
 	        
 	        // Bucle principal para aceptar clientes
 	        while (alive) {
@@ -75,13 +84,20 @@ public class ChatServerImpl implements ChatServer {
 	        	// Verificar si el servidor sigue activo antes de aceptar conexiones
 	        	if (!alive) break;
 	        	// Aceptar nueva conexión
-	        	clientSocket = serverSocket.accept();
+	        	Socket clientSocket = serverSocket.accept();
 	        	
-	        	if (!alive) break;
+	        	if (!alive) {
+	        		clientSocket.close();
+	        		break;
+	        	}
 	                      		
-	        	// Crear y lanzar el hilo para gestionar al cliente
-	        	ServerThreadForClient clientThread = new ServerThreadForClient();
-	        	new Thread(clientThread).start();
+	        	// Que el sistema detecte a los clientes caídos que no envían latidos
+	        	clientSocket.setKeepAlive(true);
+
+	        	// Crear y lanzar el hilo para gestionar al cliente, que recibe su propio socket
+	        	ServerThreadForClient clientThread = new ServerThreadForClient(clientSocket);
+	        	clientThread.thread = sessionThreads.newThread(clientThread);
+	        	clientThread.thread.start();
 	                
 	        }
 			
@@ -89,7 +105,7 @@ public class ChatServerImpl implements ChatServer {
 			
 			if (alive) {
 				
-                System.err.println("[ERR] Error aceptando conexión: " + e.getMessage());
+                ServerLog.error("Error aceptando conexión: " + e.getMessage());
             }
 			
 		}
@@ -102,113 +118,67 @@ public class ChatServerImpl implements ChatServer {
 	@Override
 	public void shutdown() {
 		
-		alive = false;
-		
 		try {
 			
-			// Notificar a todos los clientes conectados sobre el apagado del servidor
-			ChatMessage shutdownMessage = new ChatMessage(-1, ChatMessage.MessageType.SHUTDOWN,"El servidor se está apagando...");
-		    broadcast(shutdownMessage);
-		    
-		    // Cerrar todas las conexiones activas
-		    for (ServerThreadForClient client : new ArrayList<>(clients.values())) {
-		    	
-	            client.interrupt();  // Matar el hilo del cliente
-	            remove(client.id);  // Eliminar cliente del mapa
-	        }
-	        clients.clear(); // Limpiar la lista de clientes
+			disconnectAll();
 	        
 	        // Cerrar el socket del servidor
 	        if (serverSocket != null) {
 	            serverSocket.close();
 	        }
 	        
-	        if (clientSocket != null) {
-	        	clientSocket.close();
-	        }
-	        
-	        System.out.println("[LOG] Servidor apagado correctamente.");
+	        ServerLog.info("Servidor apagado correctamente.");
 		    
 		} catch (IOException e) {
 			
-			 System.err.println("[ERR] Error al apagar el servidor: " + e.getMessage());
+			 ServerLog.error("Error al apagar el servidor: " + e.getMessage());
 		}
 		
 	}
 	
-	/**
-	 * Envía un mensaje a todos los clientes conectados.
-	 * 
-	 * @param message Mensaje a difundir.
-	 */
-	@Override
-	public void broadcast(ChatMessage message) {
-		
-		String senderUsername = clientUsernames.get(message.getId());
-	    String formattedMessage = senderUsername + ": " + message.getMessage();
-	    ChatMessage newMessage = new ChatMessage(message.getId(), message.getType(), formattedMessage);
-		
-		for (ServerThreadForClient client : clients.values()) {
-			
-			try {
-				
-				client.outputStream.writeObject(newMessage);
-	            client.outputStream.flush();
-	            
-			} catch (IOException e) {
-				
-				System.err.println("[ERR] Error al enviar mensaje a " + client.username);
-			}
-			
-	    }
-	}
-
-	/**
-	 * Elimina un cliente desconectado de las estructuras internas y cierra su conexión.
-	 * 
-	 * @param id ID del cliente a eliminar.
-	 */
-	@Override
-	public void remove(int id) {
-		
-		ServerThreadForClient client = clients.remove(id);
-		
-		if (client != null) {
-			
-			try {
-				
-				if (client.socket != null) client.socket.close();
-				if (client.inputStream != null) client.inputStream.close();
-	            if (client.outputStream != null) client.outputStream.close();
-	            
-	            System.out.println("[LOG] Cliente con ID " + id + " eliminado del servidor y conexión cerrada.");
-				
-			} catch (IOException e) {
-				
-				 System.err.println("[ERR] Error al cerrar conexión con el cliente " + id);
-			}
-			
-		}
-	}
-	
 	/**
 	 * Hilo que gestiona la comunicación con un cliente específico.
 	 * Escucha los mensajes entrantes y los redirige al resto de clientes.
+	 * 
+	 * Atiende tanto el protocolo binario como el de objetos serializados,
+	 * según lo que envíe el cliente al conectarse.
+	 * 
+	 * Lo que se le envía pasa por su cola de salida, que vacía un segundo hilo
+	 * de escritura propio de la sesión.
+	 * 
+	 * No usa bloques synchronized alrededor de E/S bloqueante, de modo que un
+	 * hilo virtual detenido en el socket libera su hilo portador.
 	 */
-	private class ServerThreadForClient extends Thread {
+	private class ServerThreadForClient extends ClientSession implements Runnable {
 		
-		/** ID del cliente. */
-		private int id;
-		/** Nombre de usuario del cliente. */
-		private String username;
-		/** Puerto de conexión del cliente (no se usa actualmente). */
-		private int port;
+		/** Hilo que ejecuta la sesión. */
+		private Thread thread;
+		/** Hilo que escribe la cola de salida en el socket. */
+		private volatile Thread writer;
 		/** Socket de conexión con el cliente. */
-		private Socket socket;
+		private final Socket socket;
+		/** Protocolo negociado con el cliente. */
+		private WireProtocol protocol;
 		/** Flujo de entrada desde el cliente. */
-		private ObjectInputStream inputStream;
+		private InputStream in;
+		/** Lector de tramas, con su array reutilizable (solo en el protocolo binario). */
+		private ChatMessageCodec.Reader frames;
 		/** Flujo de salida hacia el cliente. */
-	    private ObjectOutputStream outputStream;
+		private OutputStream out;
+		/** Flujo de objetos de entrada (solo en el protocolo serializado). */
+		private ObjectInputStream inputStream;
+		
+		/**
+		 * Crea la sesión de un cliente recién aceptado y le asigna su ID.
+		 * 
+		 * @param socket Socket del cliente.
+		 */
+		ServerThreadForClient(Socket socket) {
+			
+			this.socket = socket;
+			this.address = socket.getInetAddress();
+			assignId(this);
+		}
 		
 	    /**
 	     * Ejecuta el ciclo de recepción de mensajes del cliente.
@@ -218,62 +188,86 @@ public class ChatServerImpl implements ChatServer {
 			
 			try {
 				
-				// Obtener el socket del cliente aceptado por el servidor
-	            socket = clientSocket;
-	            // Asignar un ID al cliente
-	            this.id = clientId;
-	           
-	            outputStream = new ObjectOutputStream(socket.getOutputStream());
-	            inputStream = new ObjectInputStream(socket.getInputStream());
-	            
-	            // Enviar el ID al cliente
-	            outputStream.writeInt(id);
-	            outputStream.flush();
-	            clients.put(clientId,this);
-	            ++clientId;
-	            
-	            ChatMessage msg;
-	            
-	            // Recibir el primer mensaje con el nombre del usuario
-	            ChatMessage firstMessage = (ChatMessage) inputStream.readObject();
-	            this.username = firstMessage.getMessage();
-	            clientUsernames.put(id,username);
+	            in = new BufferedInputStream(new CountingInputStream(socket.getInputStream(), metrics.bytesIn));
+	            out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
 	            
+	            // Averiguar el protocolo por el primer byte del cliente
+	            in.mark(1);
+	            protocol = WireProtocol.detect(in.read());
+	            in.reset();
 	            
+	            // Enviar el ID al cliente
+	            if (protocol == WireProtocol.BINARY) {
+	            	
+	            	for (byte b : ChatMessageCodec.MAGIC) {
+	            		if (in.read() != (b & 0xFF)) {
+	            			throw new StreamCorruptedException("Cabecera binaria no válida");
+	            		}
+	            	}
+	            	out.write(ChatMessageCodec.handshake(id));
+	            	out.flush();
+	            	frames = new ChatMessageCodec.Reader(in);
+	            	
+	            } else if (protocol == WireProtocol.SERIALIZED) {
+	            	
+	            	// Cabecera del flujo de objetos con el ID, como haría writeInt
+	            	ByteBuffer handshake = SerializedFrames.handshake(id);
+	            	out.write(handshake.array(), 0, handshake.limit());
+	            	out.flush();
+	            	inputStream = new ObjectInputStream(in);
+	            	
+	            } else {
+	            	
+	            	throw new StreamCorruptedException("Protocolo desconocido");
+	            }
 	            
+	            // Lanzar el hilo de escritura antes de empezar a recibir difusiones
+	            writer = sessionThreads.newThread(new Runnable() {
+	            	@Override
+	            	public void run() {
+	            		writeLoop();
+	            	}
+	            });
+	            writer.start();
+	            register(this);
 	            
-	            System.out.println("[LOG] Cliente " + username + " conectado con ID: " + id);
-
+	            ChatMessage msg;
 	            
 	            while (alive) {
 	            	
 	            	// Leer el mensaje del cliente
-	                msg = (ChatMessage) inputStream.readObject();
+	                msg = (protocol == WireProtocol.BINARY)
+	                		? frames.read()
+	                		: (ChatMessage) inputStream.readObject();
 	                
-	                // Si el cliente envía LOGOUT, eliminarlo y cerrar su conexión
-	                if (msg.getType() == ChatMessage.MessageType.LOGOUT || !alive) {
-	                	
-	                	System.out.println("[LOG] Cliente " + username + " se ha desconectado.");
-	                    remove(id);
-	                    break;
-	                    
-	                } else if (msg.getMessage().contains("ha bloquedo a") || msg.getMessage().contains("ha desbloquedo a")) {
-	                	
-	                	System.out.println("[LOG] " + msg.getMessage());
+	                long verdict = admit(this, msg);
+	                if (verdict == RateLimiter.DISCONNECTED) {
+	                	break;
+	                }
+	                if (verdict == RateLimiter.DROPPED) {
 	                	continue;
 	                }
-	                
-	                // Si es un mensaje normal, enviarlo a todos los clientes
-	                System.out.println(username + ": " + msg.getMessage());
-	                broadcast(msg);
-	                
+	                if (!process(this, msg)) {
+	                	break;
+	                }
+	                if (verdict > 0) {
+	                	
+	                	// Por encima del límite: no leer más hasta que haya fichas; TCP frena al cliente
+	                	try {
+	                		TimeUnit.NANOSECONDS.sleep(verdict);
+	                	} catch (InterruptedException e) {
+	                		Thread.currentThread().interrupt();
+	                		break;
+	                	}
+	                }
 	            }
 				
 			} catch (IOException | ClassNotFoundException e) {
 				
-				if (alive) {
+				// Si la conexión la ha cerrado el servidor (p. ej. por inactividad) no es un error
+				if (alive && !idleDone) {
 					
-		            System.err.println("[ERR] Error en la comunicación con " + username);
+		            ServerLog.error("Error en la comunicación con " + username);
 		        }
 				
 				
@@ -282,18 +276,206 @@ public class ChatServerImpl implements ChatServer {
 				remove(id);
 			}
 		}
+
+		/**
+		 * Vacía la cola de salida en el socket hasta que se cierre. Los mensajes
+		 * salen por lotes (ver {@link Batching}): cada lote se copia en el búfer
+		 * del flujo y se envía con un único flush, tras el cual se mide la
+		 * latencia de escritura del mensaje más antiguo del lote.
+		 * Al terminar cierra la conexión, lo que también desbloquea al hilo lector.
+		 */
+		private void writeLoop() {
+			
+			try {
+				
+				EncodedMessage[] batch = new EncodedMessage[Batching.MAX_MESSAGES];
+				int count;
+				while ((count = queue.take(batch, Batching.LINGER_NANOS)) > 0) {
+					
+					long oldest = batch[0].created;
+					long bytes = 0;
+					for (int i = 0; i < count; i++) {
+						
+						bytes += batch[i].writeTo(out, protocol, sequenced, compressed, senderField);
+						batch[i] = null;
+					}
+					out.flush();
+					metrics.writeLatency.record(System.nanoTime() - oldest);
+					metrics.messagesOut.add(count);
+					metrics.bytesOut.add(bytes);
+				}
+				
+			} catch (IOException e) {
+				
+				if (alive) {
+					
+					ServerLog.error("Error al enviar mensaje a " + username);
+				}
+				
+			} catch (InterruptedException e) {
+				
+				Thread.currentThread().interrupt();
+				
+			} finally {
+				
+				closeSocket();
+			}
+		}
+
+		/**
+		 * Encola el mensaje; el hilo de escritura lo enviará.
+		 *
+		 * @param msg Mensaje a enviar.
+		 */
+		@Override
+		void send(EncodedMessage msg) {
+			
+			offer(this, msg);
+		}
+
+		/**
+		 * Cierra la cola de salida; el hilo de escritura envía lo pendiente y
+		 * después cierra la conexión.
+		 */
+		@Override
+		void close() {
+			
+			queue.close();
+			if (writer == null) {
+				closeSocket();
+			}
+		}
+
+		/**
+		 * Descarta lo pendiente y cierra la conexión inmediatamente.
+		 */
+		@Override
+		void abort() {
+			
+			queue.close();
+			queue.clear();
+			closeSocket();
+		}
+
+		/**
+		 * Cierra el socket y los flujos del cliente.
+		 */
+		private void closeSocket() {
+			
+			release(this);
+			try {
+				
+				if (socket != null) socket.close();
+				if (in != null) in.close();
+	            if (out != null) out.close();
+				
+			} catch (IOException e) {
+				
+				 ServerLog.error("Error al cerrar conexión con el cliente " + id);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Flujo de entrada que suma a un contador los bytes leídos del socket.
+	 * Va debajo del búfer, así que cuenta una vez por lectura del socket y no
+	 * por cada byte que consume la sesión.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		
+		/** Contador de bytes. */
+		private final LongAdder bytes;
+		
+		CountingInputStream(InputStream in, LongAdder bytes) {
+			
+			super(in);
+			this.bytes = bytes;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			int b = super.read();
+			if (b >= 0) {
+				bytes.increment();
+			}
+			return b;
+		}
 		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			
+			int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				bytes.add(n);
+			}
+			return n;
+		}
 	}
 	
 	/**
 	 * Método principal. Arranca el servidor en un hilo independiente
 	 * y permite apagarlo manualmente mediante comandos por consola.
 	 * 
-	 * @param args Argumentos de la línea de comandos.
+	 * Uso: mvn exec:java@run-server [-Dexec.args="nio|virtual"]
+	 * (con -Dchat.port para otro puerto, -Dchat.cluster.* para formar un clúster,
+	 * ver {@link ClusterNode}, -Dchat.log.* para guardar el historial, ver {@link MessageLog},
+	 * y -Dchat.metrics.port para consultar las métricas por HTTP, ver {@link ServerMetrics})
+	 * 
+	 * @param args Argumentos de la línea de comandos ("nio" para usar el motor NIO,
+	 *        "virtual" para atender cada cliente en un hilo virtual).
 	 */
 	public static void main(String[] args) {
 		
-		final ChatServerImpl server = new ChatServerImpl(1500); // Instanciar el servidor
+		final AbstractChatServer server; // Instanciar el servidor con el motor elegido
+		int port = Integer.getInteger("chat.port", DEFAULT_PORT);
+		
+		if (args.length > 0 && args[0].equalsIgnoreCase("nio")) {
+			
+			server = new ChatServerNioImpl(port);
+			
+		} else if (args.length > 0 && args[0].equalsIgnoreCase("virtual")) {
+			
+			server = new ChatServerImpl(port, true);
+			
+		} else {
+			
+			server = new ChatServerImpl(port);
+		}
+		
+		try {
+			
+			// Abrir el historial si se ha configurado (-Dchat.log.dir)
+			server.openHistory();
+			
+		} catch (IOException e) {
+			
+			ServerLog.error("No se pudo abrir el historial: " + e.getMessage());
+			return;
+		}
+		
+		try {
+			
+			// Unirse al clúster si se ha configurado (-Dchat.cluster.*)
+			server.joinCluster();
+			
+		} catch (IOException e) {
+			
+			ServerLog.error("No se pudo unir el servidor al clúster: " + e.getMessage());
+			return;
+		}
+		
+		try {
+			
+			// Publicar las métricas por JMX y, si se ha configurado, por HTTP (-Dchat.metrics.port)
+			server.exposeMetrics();
+			
+		} catch (IOException e) {
+			
+			ServerLog.error("No se pudo abrir el puerto de las métricas: " + e.getMessage());
+			return;
+		}
 		
 		// Iniciar el servidor en un hilo separado usando Runnable en Java 7
 	    Thread serverThread = new Thread(new Runnable() {
@@ -307,13 +489,21 @@ public class ChatServerImpl implements ChatServer {
 
 		// Permitir apagar el servidor manualmente desde la consola
 	    Scanner scanner = new Scanner(System.in);
-	    System.out.println("Escribe 'shutdown' para apagar el servidor.");
+	    System.out.println("Escribe 'shutdown' para apagar el servidor, 'stats' para ver las colas de salida, 'history' para ver el historial, 'metrics' para ver las métricas o 'users' para ver los usuarios conectados.");
 	  
 	    while (scanner.hasNext()) {
 	        String command = scanner.nextLine();
 	        if (command.equalsIgnoreCase("shutdown")) {
 	            server.shutdown();
 	            break;
+	        } else if (command.equalsIgnoreCase("stats")) {
+	        	System.out.println(server.queueStats());
+	        } else if (command.equalsIgnoreCase("history")) {
+	        	System.out.println(server.historyStats());
+	        } else if (command.equalsIgnoreCase("metrics")) {
+	        	System.out.print(server.metricsText());
+	        } else if (command.equalsIgnoreCase("users")) {
+	        	System.out.println(server.usersSummary());
 	        }
 	    }
 	    
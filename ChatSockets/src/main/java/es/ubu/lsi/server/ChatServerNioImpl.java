@@ -0,0 +1,927 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.ubu.lsi.common.Batching;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.WireProtocol;
+
+/**
+ * Motor del servidor de chat basado en {@link Selector}: en lugar de un hilo por
+ * cliente, un número fijo de bucles de E/S atienden todas las conexiones.
+ *
+ * El hilo que llama a {@link #startup()} acepta conexiones y las reparte por
+ * turnos entre los bucles. Cada bucle lee los mensajes de sus clientes, los
+ * trata con la lógica común de {@link AbstractChatServer} y vacía las colas de
+ * salida acotadas de cada sesión cuando el socket admite escritura, agrupando
+ * los mensajes de cada conexión en lotes (ver {@link Batching}).
+ *
+ * Habla los mismos protocolos que {@link ChatServerImpl} (binario y de objetos
+ * serializados), por lo que los clientes {@link es.ubu.lsi.client.ChatClientImpl}
+ * se conectan sin cambios.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public class ChatServerNioImpl extends AbstractChatServer {
+
+	/** Número de bucles de E/S (por defecto, uno por núcleo). */
+	private static final int IO_LOOPS = Integer.getInteger("chat.nio.loops",
+			Runtime.getRuntime().availableProcessors());
+	/** Tamaño del búfer de lectura compartido por cada bucle. */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	/** Tamaño máximo de un mensaje entrante pendiente de completar. */
+	private static final int MAX_PENDING = 1024 * 1024;
+	/** Cola de conexiones pendientes de aceptar en el socket de escucha. */
+	private static final int ACCEPT_BACKLOG = 4096;
+
+	/** Canal de escucha del servidor. */
+	private ServerSocketChannel serverChannel;
+	/** Bucles de E/S. */
+	private IoLoop[] loops;
+
+	/**
+	 * Constructor del servidor de chat NIO.
+	 * @param port Puerto en el que se ejecutará el servidor.
+	 */
+	public ChatServerNioImpl(int port) {
+
+		super(port);
+	}
+
+	/**
+	 * Inicia los bucles de E/S y acepta conexiones, repartiéndolas entre ellos.
+	 */
+	@Override
+	public void startup() {
+
+		try {
+
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+			loops = new IoLoop[Math.max(1, IO_LOOPS)];
+			for (int i = 0; i < loops.length; i++) {
+
+				loops[i] = new IoLoop(i);
+				loops[i].thread.start();
+			}
+			ServerLog.info("Servidor NIO iniciado en el puerto " + port + " con " + loops.length + " bucles de E/S");
+
+			// Bucle principal para aceptar clientes
+			int next = 0;
+			while (alive) {
+
+				SocketChannel channel = serverChannel.accept();
+				if (!alive) {
+					channel.close();
+					break;
+				}
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				// Que el sistema detecte a los clientes caídos que no envían latidos
+				channel.socket().setKeepAlive(true);
+
+				loops[next].accept(channel);
+				next = (next + 1) % loops.length;
+			}
+
+		} catch (IOException e) {
+
+			if (alive) {
+
+				ServerLog.error("Error aceptando conexión: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Apaga el servidor: notifica a los clientes, cierra el canal de escucha y
+	 * detiene los bucles de E/S.
+	 */
+	@Override
+	public void shutdown() {
+
+		try {
+
+			disconnectAll();
+
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+			if (loops != null) {
+				for (IoLoop loop : loops) {
+					loop.stop();
+				}
+			}
+
+			ServerLog.info("Servidor apagado correctamente.");
+
+		} catch (IOException e) {
+
+			ServerLog.error("Error al apagar el servidor: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Bucle de E/S: un hilo con su propio selector que atiende un subconjunto de
+	 * las conexiones. El resto de hilos solo le encargan tareas a través de la cola.
+	 */
+	private final class IoLoop implements Runnable {
+
+		/** Hilo del bucle. */
+		private final Thread thread;
+		/** Selector de las conexiones del bucle. */
+		private final Selector selector;
+		/** Tareas pendientes, encargadas desde otros hilos o aplazadas por el propio bucle. */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/** Búfer de lectura compartido por todas las conexiones del bucle. */
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		/** Mensajes sacados de la cola de una sesión para escribirlos juntos. */
+		private final EncodedMessage[] drained = new EncodedMessage[Batching.MAX_MESSAGES];
+		/** Búferes de la escritura agrupada en curso. */
+		private final ByteBuffer[] gather = new ByteBuffer[Batching.MAX_MESSAGES];
+		/** Sesiones con un lote esperando, por orden de vencimiento de su ventana. */
+		private final ArrayDeque<NioSession> lingering = new ArrayDeque<>();
+		/** Sesiones que han dejado de leer por superar su límite de ritmo, por orden de reanudación. */
+		private final PriorityQueue<NioSession> throttled = new PriorityQueue<>(16, new Comparator<NioSession>() {
+			@Override
+			public int compare(NioSession a, NioSession b) {
+				return Long.signum(a.resumeAt - b.resumeAt);
+			}
+		});
+		/** Indica si el bucle sigue activo. */
+		private volatile boolean running = true;
+
+		/**
+		 * Crea el bucle y su selector.
+		 * @param index Número del bucle, para el nombre del hilo.
+		 * @throws IOException si no se puede abrir el selector.
+		 */
+		IoLoop(int index) throws IOException {
+
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "chat-io-" + index);
+		}
+
+		/**
+		 * Entrega una conexión aceptada al bucle.
+		 * @param channel Canal del cliente, ya en modo no bloqueante.
+		 */
+		void accept(final SocketChannel channel) {
+
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					open(channel);
+				}
+			});
+		}
+
+		/**
+		 * Ejecuta una tarea en el hilo del bucle.
+		 * @param task Tarea a ejecutar.
+		 */
+		void execute(Runnable task) {
+
+			if (Thread.currentThread() == thread) {
+
+				task.run();
+
+			} else {
+
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Encola una tarea para la siguiente vuelta del bucle, aunque se llame
+		 * desde el propio bucle. Así las escrituras que provoca una misma vuelta
+		 * (por ejemplo, todas las difusiones de una lectura) se agrupan.
+		 * @param task Tarea a ejecutar.
+		 */
+		void defer(Runnable task) {
+
+			tasks.add(task);
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Deja una sesión esperando a que venza la ventana de su lote. Si ya
+		 * estaba en la lista se mantiene su vencimiento anterior.
+		 * @param session Sesión con un lote incompleto.
+		 */
+		void linger(NioSession session) {
+
+			if (!session.waiting) {
+
+				session.waiting = true;
+				session.flushDeadline = System.nanoTime() + Batching.LINGER_NANOS;
+				lingering.add(session);
+			}
+		}
+
+		/**
+		 * Deja de leer de una sesión durante un tiempo.
+		 * @param session Sesión por encima de su límite de ritmo.
+		 * @param nanos Nanosegundos sin leer.
+		 */
+		void throttle(NioSession session, long nanos) {
+
+			session.resumeAt = System.nanoTime() + nanos;
+			session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+			throttled.add(session);
+		}
+
+		/**
+		 * Detiene el bucle tras intentar vaciar lo pendiente.
+		 */
+		void stop() {
+
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+
+			try {
+
+				while (running) {
+
+					select();
+					runTasks();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioSession session = (NioSession) key.attachment();
+
+						if (!key.isValid()) continue;
+						if (key.isReadable()) session.onReadable();
+						if (key.isValid() && key.isWritable()) session.flush();
+					}
+
+					flushExpired();
+					resumeExpired();
+				}
+
+				// Últimas tareas (mensajes de apagado y cierres) antes de salir
+				runTasks();
+
+			} catch (IOException | ClosedSelectorException e) {
+
+				ServerLog.error("Error en el bucle de E/S " + thread.getName() + ": " + e.getMessage());
+
+			} finally {
+
+				for (SelectionKey key : selector.keys()) {
+					((NioSession) key.attachment()).closeNow();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					ServerLog.error("Error al cerrar el selector: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Espera eventos de E/S, sin bloquear si hay tareas y como mucho hasta
+		 * que venza la primera ventana de lote o la primera sesión frenada
+		 * deba volver a leer.
+		 */
+		private void select() throws IOException {
+
+			if (!tasks.isEmpty()) {
+
+				selector.selectNow();
+				return;
+			}
+
+			NioSession first = lingering.peek();
+			NioSession next = throttled.peek();
+			if (first == null && next == null) {
+
+				selector.select();
+				return;
+			}
+
+			long now = System.nanoTime();
+			long wait = (first != null) ? first.flushDeadline - now : Long.MAX_VALUE;
+			if (next != null) {
+				wait = Math.min(wait, next.resumeAt - now);
+			}
+			if (wait <= 0) {
+				selector.selectNow();
+			} else {
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+			}
+		}
+
+		/**
+		 * Escribe los lotes cuya ventana ha vencido.
+		 */
+		private void flushExpired() {
+
+			long now = System.nanoTime();
+			NioSession session;
+			while ((session = lingering.peek()) != null && session.flushDeadline - now <= 0) {
+
+				lingering.poll();
+				session.waiting = false;
+				if (session.lingering.compareAndSet(true, false)) {
+					session.flush();
+				}
+			}
+		}
+
+		/**
+		 * Vuelve a leer de las sesiones frenadas cuyo plazo ha vencido.
+		 */
+		private void resumeExpired() {
+
+			long now = System.nanoTime();
+			NioSession session;
+			while ((session = throttled.peek()) != null && session.resumeAt - now <= 0) {
+
+				throttled.poll();
+				session.resumeReading();
+			}
+		}
+
+		/**
+		 * Ejecuta las tareas pendientes.
+		 */
+		private void runTasks() {
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		/**
+		 * Registra una conexión nueva y le asigna un ID, que se le envía cuando
+		 * se sepa qué protocolo usa.
+		 * @param channel Canal del cliente.
+		 */
+		private void open(SocketChannel channel) {
+
+			NioSession session = new NioSession(this, channel);
+
+			try {
+
+				session.key = channel.register(selector, SelectionKey.OP_READ, session);
+
+			} catch (IOException e) {
+
+				ServerLog.error("Error registrando la conexión: " + e.getMessage());
+				session.closeNow();
+				return;
+			}
+
+			assignId(session);
+		}
+	}
+
+	/**
+	 * Sesión de un cliente atendida por un bucle de E/S.
+	 *
+	 * Lo recibido se analiza directamente en el búfer compartido del bucle; solo
+	 * si queda un mensaje a medias se copia a un búfer propio, de forma que una
+	 * conexión inactiva apenas ocupa memoria.
+	 */
+	private final class NioSession extends ClientSession {
+
+		/** Bucle que atiende la sesión. */
+		private final IoLoop loop;
+		/** Canal del cliente. */
+		private final SocketChannel channel;
+		/** Clave de registro en el selector. */
+		private SelectionKey key;
+		/** Bytes recibidos de un mensaje aún incompleto (null si no hay). */
+		private ByteBuffer pending;
+		/** Protocolo del cliente (null hasta recibir su primer byte). */
+		private WireProtocol protocol;
+		/** Analizador que delimita los objetos serializados del cliente. */
+		private SerializedStreamScanner scanner;
+		/** Origen de bytes del flujo de objetos. */
+		private ByteBufferInputStream source;
+		/** Flujo de objetos del cliente (se crea al recibir su cabecera). */
+		private ObjectInputStream inputStream;
+		/** Bytes que no cupieron en el socket en la última escritura (null si no hay). */
+		private ByteBuffer[] backlog;
+		/** Indica si ya hay un vaciado de la cola encargado al bucle. */
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		/** Indica que hay un lote esperando a completarse o a que venza su ventana. */
+		private final AtomicBoolean lingering = new AtomicBoolean();
+		/** Instante en el que vence la ventana del lote (solo en el hilo del bucle). */
+		private long flushDeadline;
+		/** Indica si la sesión está en la lista de espera del bucle (solo en el hilo del bucle). */
+		private boolean waiting;
+		/** Instante en el que vuelve a leer tras superar su límite de ritmo (solo en el hilo del bucle). */
+		private long resumeAt;
+		/** Indica que ha dejado de leer hasta {@link #resumeAt} (solo en el hilo del bucle). */
+		private boolean throttled;
+		/** Tarea que empieza un lote. */
+		private final Runnable startBatch = new Runnable() {
+			@Override
+			public void run() {
+				startBatch();
+			}
+		};
+		/** Tarea que escribe un lote completo antes de que venza su ventana. */
+		private final Runnable flushBatch = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		/** Indica que la sesión debe cerrarse en cuanto vacíe su cola. */
+		private volatile boolean closing;
+
+		/**
+		 * Crea la sesión.
+		 * @param loop Bucle que la atiende.
+		 * @param channel Canal del cliente.
+		 */
+		NioSession(IoLoop loop, SocketChannel channel) {
+
+			this.loop = loop;
+			this.channel = channel;
+			this.address = channel.socket().getInetAddress();
+		}
+
+		/**
+		 * Lee lo disponible en el socket y trata los mensajes completos.
+		 */
+		void onReadable() {
+
+			ByteBuffer in = loop.readBuffer;
+			in.clear();
+
+			try {
+
+				int read = channel.read(in);
+				if (read < 0) {
+					terminate();
+					return;
+				}
+				metrics.bytesIn.add(read);
+				in.flip();
+
+				if (pending != null) {
+
+					pending = append(pending, in);
+					in = pending;
+				}
+				consume(in);
+
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+
+				failed(e);
+			}
+		}
+
+		/**
+		 * Vuelve a leer tras el plazo de su límite de ritmo, empezando por los
+		 * mensajes que ya se habían recibido.
+		 */
+		void resumeReading() {
+
+			throttled = false;
+			if (!key.isValid()) {
+				return;
+			}
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+			if (pending != null) {
+
+				try {
+					consume(pending);
+				} catch (IOException | ClassNotFoundException | ClassCastException e) {
+					failed(e);
+				}
+			}
+		}
+
+		/**
+		 * Trata los mensajes completos del búfer y guarda lo que quede, sea un
+		 * mensaje incompleto o lo recibido tras superar el límite de ritmo.
+		 *
+		 * @param in Búfer en modo lectura: el compartido del bucle o {@link #pending}.
+		 */
+		private void consume(ByteBuffer in) throws IOException, ClassNotFoundException {
+
+			if (!decode(in)) {
+				return;
+			}
+
+			if (!in.hasRemaining()) {
+
+				pending = null;
+
+			} else if (in != pending) {
+
+				pending = append(null, in);
+
+			} else {
+
+				pending.compact().flip();
+			}
+		}
+
+		/**
+		 * Cierra la sesión tras un error de comunicación.
+		 *
+		 * @param e Error.
+		 */
+		private void failed(Exception e) {
+
+			if (alive) {
+
+				ServerLog.error("Error en la comunicación con " + username + ": " + e.getMessage());
+			}
+			terminate();
+		}
+
+		/**
+		 * Aplica los límites de ritmo a un mensaje y lo trata. Si supera el
+		 * límite con la acción de retrasar, deja de leer de la sesión.
+		 *
+		 * @param msg Mensaje recibido.
+		 * @return false si la sesión ha terminado.
+		 */
+		private boolean admitAndProcess(ChatMessage msg) {
+
+			long verdict = admit(this, msg);
+			if (verdict == RateLimiter.DISCONNECTED) {
+				return false;
+			}
+			if (verdict == RateLimiter.DROPPED) {
+				return true;
+			}
+			if (!process(this, msg)) {
+				return false;
+			}
+			if (verdict > 0) {
+
+				throttled = true;
+				loop.throttle(this, verdict);
+			}
+			return true;
+		}
+
+		/**
+		 * Extrae y trata los mensajes completos del búfer.
+		 *
+		 * @param in Búfer en modo lectura.
+		 * @return false si la sesión ha terminado.
+		 */
+		private boolean decode(ByteBuffer in) throws IOException, ClassNotFoundException {
+
+			if (protocol == null && !negotiate(in)) {
+				return true;
+			}
+
+			if (protocol == WireProtocol.BINARY) {
+
+				ChatMessage msg;
+				while (!throttled && (msg = ChatMessageCodec.decode(in)) != null) {
+
+					if (!admitAndProcess(msg)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			while (!throttled && in.hasRemaining()) {
+
+				int length = scanner.scan(in);
+				if (length < 0) {
+
+					if (in.remaining() > MAX_PENDING) {
+						throw new StreamCorruptedException("Mensaje demasiado grande");
+					}
+					return true;
+				}
+
+				ByteBuffer frame = in.duplicate();
+				frame.limit(in.position() + length);
+				source.setSource(frame);
+				ChatMessage msg = (ChatMessage) inputStream.readObject();
+				in.position(in.position() + length);
+
+				if (!admitAndProcess(msg)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Identifica el protocolo del cliente, consume su cabecera y le envía su ID.
+		 *
+		 * @param in Búfer en modo lectura.
+		 * @return true si ya se conoce el protocolo, false si faltan bytes.
+		 */
+		private boolean negotiate(ByteBuffer in) throws IOException {
+
+			if (!in.hasRemaining()) {
+				return false;
+			}
+
+			WireProtocol detected = WireProtocol.detect(in.get(in.position()) & 0xFF);
+
+			if (detected == WireProtocol.BINARY) {
+
+				if (in.remaining() < ChatMessageCodec.MAGIC.length) {
+					return false;
+				}
+				for (byte b : ChatMessageCodec.MAGIC) {
+					if (in.get() != b) {
+						throw new StreamCorruptedException("Cabecera binaria no válida");
+					}
+				}
+				backlog = new ByteBuffer[] { ByteBuffer.wrap(ChatMessageCodec.handshake(id)) };
+
+			} else if (detected == WireProtocol.SERIALIZED) {
+
+				if (in.remaining() < SerializedFrames.STREAM_HEADER_LENGTH) {
+					return false;
+				}
+				scanner = new SerializedStreamScanner();
+				source = new ByteBufferInputStream();
+				source.setSource(in);
+				inputStream = new ObjectInputStream(source);
+				backlog = new ByteBuffer[] { SerializedFrames.handshake(id) };
+
+			} else {
+
+				throw new StreamCorruptedException("Protocolo desconocido");
+			}
+
+			protocol = detected;
+			scheduleFlush();
+			register(this);
+			return true;
+		}
+
+		/**
+		 * Añade los bytes de {@code src} a un búfer propio, ampliándolo si hace falta.
+		 *
+		 * @param dst Búfer propio en modo lectura, o null.
+		 * @param src Bytes a añadir.
+		 * @return Búfer en modo lectura con ambos contenidos.
+		 */
+		private ByteBuffer append(ByteBuffer dst, ByteBuffer src) {
+
+			int existing = (dst == null) ? 0 : dst.remaining();
+			ByteBuffer result = ByteBuffer.allocate(Math.max(256, Integer.highestOneBit(existing + src.remaining()) << 1));
+			if (dst != null) {
+				result.put(dst);
+			}
+			result.put(src);
+			result.flip();
+			return result;
+		}
+
+		/**
+		 * Encola el mensaje y encarga su escritura al bucle. Si con él se completa
+		 * un lote que estaba esperando, o es una trama de control, se adelanta su envío.
+		 *
+		 * @param msg Mensaje a enviar.
+		 */
+		@Override
+		void send(EncodedMessage msg) {
+
+			if (!offer(this, msg)) {
+				return;
+			}
+
+			if (flushScheduled.compareAndSet(false, true)) {
+
+				loop.defer(msg.control ? flushBatch : startBatch);
+
+			} else if ((msg.control || queue.size() >= Batching.MAX_MESSAGES) && lingering.compareAndSet(true, false)) {
+
+				loop.defer(flushBatch);
+			}
+		}
+
+		/**
+		 * Encarga un vaciado de la cola si no hay ya uno pendiente.
+		 */
+		private void scheduleFlush() {
+
+			if (flushScheduled.compareAndSet(false, true)) {
+				loop.defer(startBatch);
+			}
+		}
+
+		/**
+		 * Empieza un lote: si aún no está completo, lo deja esperando a que venza
+		 * su ventana; si no, lo escribe ya. Solo se ejecuta en el hilo del bucle.
+		 */
+		private void startBatch() {
+
+			if (backlog == null && !closing && Batching.LINGER_NANOS > 0
+					&& queue.size() < Batching.MAX_MESSAGES && !queue.hasControl()) {
+
+				lingering.set(true);
+				loop.linger(this);
+
+			} else {
+
+				flush();
+			}
+		}
+
+		/**
+		 * Escribe lo encolado hasta vaciar la cola o llenar el búfer del socket.
+		 * Los mensajes salen de la cola por lotes y cada lote se escribe con una
+		 * sola escritura agrupada ({@link java.nio.channels.GatheringByteChannel}).
+		 * Lo que no cabe en el socket queda en {@link #backlog}, fuera de la cola,
+		 * así que descartar el más antiguo nunca corta una trama a medias.
+		 * La latencia de escritura se mide con el mensaje más antiguo de cada
+		 * lote sacado de la cola, al pasarlo al socket.
+		 * Solo se ejecuta en el hilo del bucle.
+		 */
+		void flush() {
+
+			if (key == null || !key.isValid()) {
+				return;
+			}
+
+			ByteBuffer[] buffers = loop.gather;
+			EncodedMessage[] drained = loop.drained;
+
+			try {
+
+				while (true) {
+
+					int count;
+					boolean polled = false;
+					long oldest = 0;
+					if (backlog != null) {
+
+						buffers = backlog;
+						count = backlog.length;
+						backlog = null;
+
+					} else {
+
+						count = queue.poll(drained);
+						if (count == 0) {
+							break;
+						}
+						polled = true;
+						oldest = drained[0].created;
+						buffers = loop.gather;
+						for (int i = 0; i < count; i++) {
+							buffers[i] = drained[i].view(protocol, sequenced, compressed, senderField);
+							drained[i] = null;
+						}
+					}
+
+					metrics.bytesOut.add(channel.write(buffers, 0, count));
+					if (polled) {
+						metrics.writeLatency.record(System.nanoTime() - oldest);
+						metrics.messagesOut.add(count);
+					}
+
+					int written = 0;
+					while (written < count && !buffers[written].hasRemaining()) {
+						written++;
+					}
+					if (written < count) {
+						backlog = Arrays.copyOfRange(buffers, written, count);
+					}
+					if (buffers == loop.gather) {
+						Arrays.fill(buffers, 0, count, null);
+					}
+
+					if (backlog != null) {
+
+						// El socket no admite más: esperar a que se pueda escribir
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				flushScheduled.set(false);
+
+				if (closing) {
+
+					closeNow();
+
+				} else if (!queue.isEmpty()) {
+
+					scheduleFlush();
+				}
+
+			} catch (IOException e) {
+
+				Arrays.fill(loop.gather, null);
+				Arrays.fill(drained, null);
+				terminate();
+			}
+		}
+
+		/**
+		 * Cierra la sesión después de escribir lo que ya tenga encolado.
+		 */
+		@Override
+		void close() {
+
+			closing = true;
+			queue.close();
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (backlog != null || !queue.isEmpty()) {
+						flush();
+					} else {
+						closeNow();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Cierra la sesión inmediatamente, descartando lo encolado.
+		 */
+		@Override
+		void abort() {
+
+			queue.close();
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeNow();
+				}
+			});
+		}
+
+		/**
+		 * Termina la sesión tras un error o el cierre del cliente, esté ya
+		 * registrada o no.
+		 */
+		private void terminate() {
+
+			remove(id);
+			closeNow();
+		}
+
+		/**
+		 * Cierra el canal inmediatamente.
+		 */
+		void closeNow() {
+
+			release(this);
+			closing = true;
+			queue.close();
+			queue.clear();
+			lingering.set(false);
+			backlog = null;
+			pending = null;
+
+			try {
+
+				if (key != null) key.cancel();
+				channel.close();
+
+			} catch (IOException e) {
+
+				ServerLog.error("Error al cerrar conexión con el cliente " + id);
+			}
+		}
+	}
+}
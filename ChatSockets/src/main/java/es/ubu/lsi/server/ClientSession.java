@@ -0,0 +1,73 @@
+package es.ubu.lsi.server;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sesión de un cliente conectado al servidor, independiente del motor de E/S
+ * que la gestione (un hilo por cliente o bucles NIO).
+ *
+ * El servidor solo necesita poder enviarle mensajes y cerrarla; la forma de
+ * escribir en el socket queda a cargo de cada motor. Los mensajes pasan por
+ * una cola de salida acotada que vacía el escritor de la sesión, de modo que
+ * quien difunde nunca espera a un cliente lento.
+ *
+ * @author Ivan Nebreda Camara
+ */
+abstract class ClientSession {
+
+	/** ID del cliente (-1 hasta que el servidor lo registra). */
+	protected int id = -1;
+	/** Dirección IP del cliente (null si no se conoce). */
+	protected InetAddress address;
+	/** Nombre de usuario del cliente (null hasta recibir el primer mensaje). */
+	protected volatile String username;
+	/** Mensajes pendientes de escribir al cliente. */
+	protected final OutboundQueue queue = new OutboundQueue();
+	/** IDs de los remitentes cuyos mensajes no se entregan a este cliente. */
+	protected final BlockedSenders blocked = new BlockedSenders();
+	/** Sala en la que está el cliente (null hasta que se registra). */
+	protected volatile Room room;
+	/** Indica si el cliente recibe los números de secuencia de las difusiones (entró con RESUME). */
+	protected volatile boolean sequenced;
+	/** Indica si el cliente admite tramas comprimidas (lo ha pedido con COMPRESS). */
+	protected volatile boolean compressed;
+	/** Indica si el cliente recibe el remitente de las difusiones aparte del texto (lo ha pedido con SENDER). */
+	protected volatile boolean senderField;
+	/** Nombres de usuario que ha bloqueado este cliente. */
+	protected final Set<String> blockedNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Instante (nanoTime) del último mensaje recibido del cliente. */
+	protected volatile long lastSeen = System.nanoTime();
+	/** Indica si el cliente envía latidos (PING), y por tanto se le puede expulsar si calla. */
+	protected volatile boolean heartbeat;
+	/** Comprobación de inactividad programada (null si no se vigila la sesión). */
+	protected volatile TimingWheel.Timeout idleCheck;
+	/** Indica si se ha dejado de vigilar la inactividad de la sesión (ya cerrada). */
+	protected volatile boolean idleDone;
+	/** Indica si la conexión se ha cerrado definitivamente. */
+	protected volatile boolean closed;
+	/** Límite de ritmo de la sesión (null si no hay). */
+	protected RateLimiter.Bucket rate;
+	/** Límite de ritmo de la dirección IP del cliente, compartido con sus otras sesiones (null si no hay). */
+	protected volatile RateLimiter.Bucket addressRate;
+
+	/**
+	 * Envía un mensaje a este cliente, usando la codificación compartida
+	 * del protocolo de la sesión.
+	 *
+	 * @param msg Mensaje a enviar, ya preparado para todos sus destinatarios.
+	 */
+	abstract void send(EncodedMessage msg);
+
+	/**
+	 * Cierra la conexión con el cliente después de escribir lo que tenga en cola.
+	 */
+	abstract void close();
+
+	/**
+	 * Cierra la conexión inmediatamente, descartando lo que tenga en cola.
+	 */
+	abstract void abort();
+}
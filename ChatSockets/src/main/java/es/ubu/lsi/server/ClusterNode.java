@@ -0,0 +1,618 @@
+package es.ubu.lsi.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Nodo de un clúster de servidores de chat.
+ *
+ * Varios servidores, cada uno con sus propios clientes, se unen en una malla
+ * completa: cada nodo abre un enlace TCP de salida hacia cada uno de los demás
+ * (por el que solo escribe, salvo la respuesta a su presentación) y acepta los
+ * enlaces de entrada de los demás (por los que solo lee). Lo que se difunde en una sala se reenvía una vez a cada
+ * nodo, y cada nodo lo reparte solo entre sus clientes locales de esa sala;
+ * ningún nodo reenvía lo que recibe de otro. Así, añadir nodos reparte las
+ * conexiones y el coste de la difusión, a cambio de un envío por nodo.
+ *
+ * Además, cada nodo anuncia las altas y bajas de sus usuarios, con lo que
+ * todos tienen la lista de usuarios de todo el clúster. Al conectarse un
+ * enlace se envía primero la lista completa de usuarios locales. El nodo que
+ * acepta un enlace responde a la presentación con su nombre, para que el
+ * enlace de salida sepa a qué nodo llega y los mensajes privados vayan solo
+ * al nodo del destinatario.
+ *
+ * Los eventos viajan en tramas de {@link DataOutputStream}: un byte de tipo
+ * seguido de sus campos de texto, cada uno con su longitud en bytes (int) y
+ * el texto en UTF-8. Cada evento se codifica una vez para todos
+ * los nodos. Mientras un enlace está caído, sus eventos se descartan; al
+ * reconectar, la lista de usuarios vuelve a enviarse entera.
+ *
+ * Un enlace de salida sin eventos envía cada {@link #KEEPALIVE_MILLIS} un
+ * latido, y un enlace de entrada que pasa {@link #LINK_TIMEOUT_MILLIS} sin
+ * recibir nada se da por muerto. Cada nodo tiene un único enlace de entrada
+ * vigente (el último que se ha presentado): si uno antiguo muere tarde, ya no
+ * borra los usuarios que ha anunciado el nuevo.
+ *
+ * Configuración (propiedades del sistema):
+ * <ul>
+ * <li>chat.cluster.port: puerto de los enlaces entre nodos (activa el clúster).</li>
+ * <li>chat.cluster.peers: lista host:puerto de los demás nodos, separada por comas
+ * (las entradas mal formadas se avisan y se ignoran).</li>
+ * <li>chat.cluster.node: nombre del nodo (por defecto, el puerto de clientes).</li>
+ * </ul>
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class ClusterNode {
+
+	/** Presentación del nodo, y su respuesta: nombre. */
+	private static final byte HELLO = 1;
+	/** Alta de un usuario: nombre. */
+	private static final byte USER_ON = 2;
+	/** Baja de un usuario: nombre. */
+	private static final byte USER_OFF = 3;
+	/** Mensaje en una sala: sala, remitente y texto. */
+	private static final byte ROOM = 4;
+	/** Mensaje privado: destinatario, remitente y texto. */
+	private static final byte PRIVATE = 5;
+	/** Latido de un enlace sin eventos: sin campos. */
+	private static final byte KEEPALIVE = 6;
+
+	/** Eventos pendientes por enlace antes de empezar a descartar. */
+	private static final int LINK_QUEUE_CAPACITY = 16 * 1024;
+	/** Espera entre intentos de conexión con un nodo. */
+	private static final long RECONNECT_MILLIS = 1000;
+	/** Tiempo sin eventos tras el que un enlace de salida envía un latido. */
+	private static final long KEEPALIVE_MILLIS = 1000;
+	/** Tiempo sin recibir nada tras el que un enlace de entrada se da por muerto. */
+	private static final int LINK_TIMEOUT_MILLIS = (int) (5 * KEEPALIVE_MILLIS);
+	/** Bytes máximos de un campo de un evento. */
+	private static final int MAX_FIELD_BYTES = ChatMessageCodec.MAX_FRAME_LENGTH;
+	/** Latido ya codificado. */
+	private static final byte[] KEEPALIVE_EVENT = { KEEPALIVE };
+
+	/** Servidor local. */
+	private final AbstractChatServer server;
+	/** Nombre de este nodo. */
+	private final String nodeId;
+	/** Puerto de los enlaces de entrada. */
+	private final int port;
+	/** Enlaces de salida, uno por nodo. */
+	private final List<PeerLink> links = new ArrayList<>();
+	/** Usuarios de los demás nodos (nombre → nodo). */
+	private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+	/** Enlace de entrada vigente de cada nodo (nodo → socket). */
+	private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+	/** Hilos de los enlaces. */
+	private final ThreadFactory threads = Threads.factory("chat-cluster", false);
+	/** Eventos descartados por enlaces caídos o saturados. */
+	private final AtomicLong dropped = new AtomicLong();
+	/** Socket de los enlaces de entrada. */
+	private ServerSocket serverSocket;
+	/** Indica si el nodo sigue activo. */
+	private volatile boolean running = true;
+
+	/**
+	 * Crea el nodo.
+	 *
+	 * @param server Servidor local.
+	 * @param nodeId Nombre de este nodo.
+	 * @param port Puerto de los enlaces de entrada.
+	 * @param peers Direcciones de los demás nodos.
+	 */
+	ClusterNode(AbstractChatServer server, String nodeId, int port, List<InetSocketAddress> peers) {
+
+		this.server = server;
+		this.nodeId = nodeId;
+		this.port = port;
+		for (InetSocketAddress peer : peers) {
+			links.add(new PeerLink(peer));
+		}
+	}
+
+	/**
+	 * Crea el nodo a partir de las propiedades del sistema.
+	 *
+	 * @param server Servidor local.
+	 * @return Nodo sin arrancar, o null si no se ha configurado un clúster.
+	 */
+	static ClusterNode fromSystemProperties(AbstractChatServer server) {
+
+		Integer port = Integer.getInteger("chat.cluster.port");
+		if (port == null) {
+			return null;
+		}
+
+		List<InetSocketAddress> peers = new ArrayList<>();
+		String list = System.getProperty("chat.cluster.peers", "");
+		for (String peer : list.split(",")) {
+
+			peer = peer.trim();
+			if (peer.isEmpty()) {
+				continue;
+			}
+			int colon = peer.lastIndexOf(':');
+			try {
+				int peerPort = (colon < 1) ? -1 : Integer.parseInt(peer.substring(colon + 1).trim());
+				if (peerPort < 1 || peerPort > 65535) {
+					throw new NumberFormatException();
+				}
+				peers.add(new InetSocketAddress(peer.substring(0, colon).trim(), peerPort));
+			} catch (NumberFormatException e) {
+				ServerLog.error("Nodo no válido en chat.cluster.peers: " + peer + " (se espera host:puerto); se ignora");
+			}
+		}
+
+		String nodeId = System.getProperty("chat.cluster.node", String.valueOf(server.port));
+		return new ClusterNode(server, nodeId, port, peers);
+	}
+
+	/**
+	 * Abre el puerto de los enlaces de entrada y empieza a conectar con los demás nodos.
+	 *
+	 * @throws IOException si no se puede abrir el puerto.
+	 */
+	void start() throws IOException {
+
+		serverSocket = new ServerSocket(port);
+		threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLinks();
+			}
+		}).start();
+
+		for (PeerLink link : links) {
+			threads.newThread(link).start();
+		}
+		ServerLog.info("Nodo " + nodeId + " del clúster escuchando en el puerto " + port + " con " + links.size() + " nodos vecinos");
+	}
+
+	/**
+	 * Cierra todos los enlaces.
+	 */
+	void stop() {
+
+		running = false;
+		try {
+			if (serverSocket != null) serverSocket.close();
+		} catch (IOException e) {
+			ServerLog.error("Error al cerrar el puerto del clúster: " + e.getMessage());
+		}
+		for (PeerLink link : links) {
+			link.close();
+		}
+	}
+
+	/**
+	 * Reenvía a los demás nodos un mensaje difundido en una sala local.
+	 *
+	 * @param room Sala.
+	 * @param sender Nombre del remitente.
+	 * @param text Texto del mensaje.
+	 */
+	void publishRoom(String room, String sender, String text) {
+
+		publish(encode(ROOM, room, sender, text));
+	}
+
+	/**
+	 * Reenvía a los demás nodos un mensaje privado para un usuario remoto.
+	 *
+	 * @param target Destinatario.
+	 * @param sender Nombre del remitente.
+	 * @param text Texto del mensaje.
+	 * @return false si el destinatario no está en ningún otro nodo, no hay
+	 *         enlace con el suyo o el mensaje no se puede codificar.
+	 */
+	boolean publishPrivate(String target, String sender, String text) {
+
+		String node = remoteUsers.get(target);
+		if (node == null) {
+			return false;
+		}
+		for (PeerLink link : links) {
+
+			if (node.equals(link.node)) {
+
+				byte[] event = encode(PRIVATE, target, sender, text);
+				if (event == null) {
+					return false;
+				}
+				link.offer(event);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Anuncia a los demás nodos que un usuario se ha conectado aquí.
+	 *
+	 * @param name Nombre del usuario.
+	 */
+	void userOn(String name) {
+
+		publish(encode(USER_ON, name));
+	}
+
+	/**
+	 * Anuncia a los demás nodos que un usuario de aquí se ha desconectado.
+	 *
+	 * @param name Nombre del usuario.
+	 */
+	void userOff(String name) {
+
+		publish(encode(USER_OFF, name));
+	}
+
+	/**
+	 * Resume los usuarios conectados en todo el clúster, agrupados por nodo.
+	 *
+	 * @return Línea de log con los usuarios.
+	 */
+	String usersSummary() {
+
+		Map<String, TreeSet<String>> byNode = new TreeMap<>();
+		byNode.put(nodeId, new TreeSet<>(server.localUsernames()));
+		for (Map.Entry<String, String> user : remoteUsers.entrySet()) {
+
+			TreeSet<String> names = byNode.get(user.getValue());
+			if (names == null) {
+				names = new TreeSet<>();
+				byNode.put(user.getValue(), names);
+			}
+			names.add(user.getKey());
+		}
+
+		int connected = 0;
+		for (PeerLink link : links) {
+			if (link.connected) connected++;
+		}
+		return "[LOG] Usuarios del clúster por nodo: " + byNode + " (enlaces activos " + connected + "/" + links.size()
+				+ ", " + dropped.get() + " eventos descartados)";
+	}
+
+	/**
+	 * Entrega un evento ya codificado a todos los enlaces de salida.
+	 */
+	private void publish(byte[] event) {
+
+		if (event == null) {
+			return;
+		}
+		for (PeerLink link : links) {
+			link.offer(event);
+		}
+	}
+
+	/**
+	 * Codifica un evento: su tipo seguido de sus campos.
+	 *
+	 * @return Bytes del evento, o null si algún campo es demasiado largo.
+	 */
+	private static byte[] encode(byte kind, String... fields) {
+
+		try {
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(kind);
+			for (String field : fields) {
+
+				byte[] text = (field == null) ? new byte[0] : field.getBytes(StandardCharsets.UTF_8);
+				if (text.length > MAX_FIELD_BYTES) {
+					ServerLog.error("Evento del clúster demasiado grande: campo de " + text.length + " bytes");
+					return null;
+				}
+				out.writeInt(text.length);
+				out.write(text);
+			}
+			return bytes.toByteArray();
+
+		} catch (IOException e) {
+
+			ServerLog.error("Error al codificar un evento del clúster: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Lee un campo de texto de un evento.
+	 *
+	 * @return Texto.
+	 * @throws IOException si el enlace falla o la longitud no es válida.
+	 */
+	private static String readField(DataInputStream in) throws IOException {
+
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FIELD_BYTES) {
+			throw new StreamCorruptedException("Longitud de campo del clúster no válida: " + length);
+		}
+		byte[] text = new byte[length];
+		in.readFully(text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Acepta los enlaces de entrada de los demás nodos.
+	 */
+	private void acceptLinks() {
+
+		try {
+
+			while (running) {
+
+				final Socket socket = serverSocket.accept();
+				threads.newThread(new Runnable() {
+					@Override
+					public void run() {
+						readLink(socket);
+					}
+				}).start();
+			}
+
+		} catch (IOException e) {
+
+			if (running) {
+				ServerLog.error("Error aceptando enlace del clúster: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Lee los eventos de un enlace de entrada hasta que se cierra o deja de
+	 * recibir latidos. Al cerrarse, los usuarios de ese nodo dejan de
+	 * considerarse conectados, salvo que el nodo ya haya abierto otro enlace.
+	 */
+	private void readLink(Socket socket) {
+
+		String peer = null;
+
+		try {
+
+			socket.setSoTimeout(LINK_TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (running) {
+
+				byte kind = in.readByte();
+				if (peer == null && kind != HELLO) {
+					throw new StreamCorruptedException("El enlace no empieza con la presentación del nodo");
+				}
+
+				switch (kind) {
+
+				case HELLO:
+					peer = readField(in);
+					socket.getOutputStream().write(encode(HELLO, nodeId));
+					Socket previous = inbound.put(peer, socket);
+					if (previous != null) {
+						// El enlace anterior del nodo está medio abierto: su lista de usuarios ya no vale
+						closeQuietly(previous);
+					}
+					forgetUsersOf(peer);
+					ServerLog.info("Nodo " + peer + " conectado al clúster");
+					break;
+
+				case USER_ON:
+					remoteUsers.put(readField(in), peer);
+					break;
+
+				case USER_OFF:
+					remoteUsers.remove(readField(in));
+					break;
+
+				case ROOM:
+					server.deliverFromPeer(readField(in), readField(in), readField(in));
+					break;
+
+				case PRIVATE:
+					server.deliverPrivateFromPeer(readField(in), readField(in), readField(in));
+					break;
+
+				case KEEPALIVE:
+					break;
+
+				default:
+					throw new StreamCorruptedException("Evento del clúster desconocido: " + kind);
+				}
+			}
+
+		} catch (EOFException e) {
+
+			// El otro nodo ha cerrado el enlace
+
+		} catch (IOException e) {
+
+			// Un enlace sustituido por otro más reciente se cierra sin que sea un error
+			if (running && (peer == null || inbound.get(peer) == socket)) {
+				ServerLog.error("Error en el enlace con el nodo " + peer + ": " + e.getMessage());
+			}
+
+		} finally {
+
+			closeQuietly(socket);
+			// Si el nodo ya se ha vuelto a presentar por otro enlace, sus usuarios son los de ese
+			if (peer != null && inbound.remove(peer, socket)) {
+				forgetUsersOf(peer);
+				ServerLog.info("Nodo " + peer + " desconectado del clúster");
+			}
+		}
+	}
+
+	/**
+	 * Cierra un enlace de entrada.
+	 */
+	private static void closeQuietly(Socket socket) {
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			ServerLog.error("Error al cerrar un enlace del clúster: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Olvida los usuarios de un nodo.
+	 */
+	private void forgetUsersOf(String peer) {
+
+		remoteUsers.values().removeAll(Collections.singleton(peer));
+	}
+
+	/**
+	 * Enlace de salida hacia otro nodo. Su hilo conecta (y reconecta si se
+	 * cae), envía la presentación, espera la del otro nodo para saber su
+	 * nombre, envía la lista de usuarios locales y después
+	 * escribe los eventos según se encolan, con un flush cuando no quedan más,
+	 * y un latido cuando pasa {@link #KEEPALIVE_MILLIS} sin ninguno.
+	 */
+	private final class PeerLink implements Runnable {
+
+		/** Dirección del otro nodo. */
+		private final InetSocketAddress address;
+		/** Eventos pendientes de enviar. */
+		private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+		/** Indica si el enlace está conectado; si no, los eventos se descartan. */
+		private volatile boolean connected;
+		/** Socket del enlace. */
+		private volatile Socket socket;
+		/** Nombre del otro nodo, según su respuesta a la presentación (null hasta entonces). */
+		private volatile String node;
+
+		/**
+		 * Crea el enlace.
+		 *
+		 * @param address Dirección del otro nodo.
+		 */
+		PeerLink(InetSocketAddress address) {
+
+			this.address = address;
+		}
+
+		/**
+		 * Encola un evento si el enlace está conectado.
+		 *
+		 * @param event Bytes del evento.
+		 */
+		void offer(byte[] event) {
+
+			if (!connected || !queue.offer(event)) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Cierra el enlace.
+		 */
+		void close() {
+
+			connected = false;
+			Socket current = socket;
+			try {
+				if (current != null) current.close();
+			} catch (IOException e) {
+				ServerLog.error("Error al cerrar el enlace con " + address);
+			}
+		}
+
+		@Override
+		public void run() {
+
+			boolean warned = false;
+
+			while (running) {
+
+				try {
+
+					socket = new Socket(address.getHostString(), address.getPort());
+					socket.setTcpNoDelay(true);
+					OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+					warned = false;
+
+					queue.clear();
+					connected = true;
+					out.write(encode(HELLO, nodeId));
+					out.flush();
+					socket.setSoTimeout(LINK_TIMEOUT_MILLIS);
+					DataInputStream reply = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					if (reply.readByte() != HELLO) {
+						throw new StreamCorruptedException("El nodo no ha respondido a la presentación");
+					}
+					node = readField(reply);
+					for (String name : server.localUsernames()) {
+						out.write(encode(USER_ON, name));
+					}
+					out.flush();
+
+					while (running) {
+
+						byte[] event = queue.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+						if (event == null) {
+							out.write(KEEPALIVE_EVENT);
+							out.flush();
+							continue;
+						}
+						out.write(event);
+						if (queue.isEmpty()) {
+							out.flush();
+						}
+					}
+
+				} catch (IOException e) {
+
+					if (running && !warned) {
+						ServerLog.error("Sin enlace con el nodo " + address + ": " + e.getMessage());
+						warned = true;
+					}
+
+				} catch (InterruptedException e) {
+
+					Thread.currentThread().interrupt();
+					return;
+
+				} finally {
+
+					connected = false;
+					try {
+						if (socket != null) socket.close();
+					} catch (IOException e) {
+						ServerLog.error("Error al cerrar el enlace con " + address);
+					}
+				}
+
+				try {
+					Thread.sleep(RECONNECT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageCodec;
+import es.ubu.lsi.common.WireProtocol;
+
+/**
+ * Mensaje de salida codificado una sola vez para todos sus destinatarios.
+ *
+ * Cada protocolo se codifica la primera vez que un destinatario lo necesita y
+ * el resultado se comparte: los motores de flujo escriben el mismo array y el
+ * motor NIO encola vistas {@link ByteBuffer#duplicate()} del mismo búfer, sin
+ * copiar los bytes. Nadie escribe en esos búferes una vez codificados.
+ *
+ * Una difusión puede tener varias tramas binarias, según lo que haya pedido
+ * cada destinatario: con o sin el número de secuencia, con el remitente
+ * aparte o delante del texto y, para los textos largos, comprimida o no (la
+ * compresión también se hace una sola vez). Cada combinación se codifica
+ * como mucho una vez.
+ *
+ * Si dos hilos piden a la vez un protocolo aún no codificado, ambos lo codifican
+ * y se queda uno de los resultados; son idénticos, así que no hace falta bloquear.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class EncodedMessage {
+
+	/** Índice de las tramas con número de secuencia. */
+	private static final int SEQ = 1;
+	/** Índice de las tramas comprimidas. */
+	private static final int PACKED = 2;
+	/** Índice de las tramas con el remitente aparte. */
+	private static final int SENDER = 4;
+
+	/** Bytes de cabecera que, como mucho, añade cada codificación al texto. */
+	private static final int FRAME_OVERHEAD = 256;
+
+	/** Mensaje original. */
+	private final ChatMessage message;
+	/** Instante (nanoTime) de creación, para medir cuánto tarda en salir hacia cada cliente. */
+	final long created = System.nanoTime();
+	/** Indica si es una trama de control, que adelanta a los mensajes de chat en las colas de salida. */
+	final boolean control;
+	/**
+	 * Tramas binarias (null hasta que se necesiten), indexadas por los campos
+	 * opcionales: {@link #SEQ}, {@link #PACKED} y {@link #SENDER}.
+	 */
+	private final AtomicReferenceArray<ByteBuffer> binary = new AtomicReferenceArray<>(8);
+	/** Objeto serializado autocontenido (null hasta que se necesite). */
+	private volatile ByteBuffer serialized;
+
+	/**
+	 * Crea el mensaje de salida.
+	 *
+	 * @param message Mensaje a enviar.
+	 */
+	EncodedMessage(ChatMessage message) {
+
+		this.message = message;
+		this.control = isControl(message.getType());
+	}
+
+	/**
+	 * Indica si un tipo de mensaje es de control: el aviso de apagado, los
+	 * latidos y la respuesta a la negociación de compresión. Ninguno depende
+	 * del orden respecto a los mensajes de chat.
+	 *
+	 * @param type Tipo del mensaje.
+	 * @return true si sale por el carril de control.
+	 */
+	private static boolean isControl(ChatMessage.MessageType type) {
+
+		switch (type) {
+
+		case SHUTDOWN:
+		case PING:
+		case PONG:
+		case COMPRESS:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Devuelve el mensaje original.
+	 *
+	 * @return Mensaje.
+	 */
+	ChatMessage message() {
+
+		return message;
+	}
+
+	/**
+	 * Cota de la memoria que puede llegar a retener el mensaje con todas sus
+	 * codificaciones: el texto y el remitente (hasta 2 bytes por carácter) y
+	 * cada trama binaria y el objeto serializado (hasta 3 bytes por carácter
+	 * en UTF-8, más la cabecera). Sirve para acotar lo que se guarda durante
+	 * mucho tiempo, aunque casi nunca se lleguen a codificar todas.
+	 *
+	 * @return Bytes.
+	 */
+	long maxRetainedBytes() {
+
+		String text = message.getMessage();
+		String sender = message.getSender();
+		long chars = ((text == null) ? 0 : text.length()) + ((sender == null) ? 0 : sender.length());
+		int encodings = binary.length() + 1;
+		return 2 * chars + encodings * (3 * chars + FRAME_OVERHEAD);
+	}
+
+	/**
+	 * Devuelve una vista propia de los bytes del mensaje en un protocolo, con su
+	 * posición y límite independientes de las del resto de destinatarios.
+	 *
+	 * @param protocol Protocolo del destinatario.
+	 * @param withSeq true si el destinatario recibe los números de secuencia.
+	 * @param compress true si el destinatario admite tramas comprimidas.
+	 * @param withSender true si el destinatario recibe el remitente aparte.
+	 * @return Vista de los bytes (su contenido no debe modificarse).
+	 * @throws IOException si el mensaje no se puede codificar.
+	 */
+	ByteBuffer view(WireProtocol protocol, boolean withSeq, boolean compress, boolean withSender) throws IOException {
+
+		return encoded(protocol, withSeq, compress, withSender).duplicate();
+	}
+
+	/**
+	 * Escribe los bytes del mensaje en un flujo (sin hacer flush).
+	 *
+	 * @param out Flujo de salida.
+	 * @param protocol Protocolo del destinatario.
+	 * @param withSeq true si el destinatario recibe los números de secuencia.
+	 * @param compress true si el destinatario admite tramas comprimidas.
+	 * @param withSender true si el destinatario recibe el remitente aparte.
+	 * @return Bytes escritos.
+	 * @throws IOException si falla la codificación o la escritura.
+	 */
+	int writeTo(OutputStream out, WireProtocol protocol, boolean withSeq, boolean compress, boolean withSender)
+			throws IOException {
+
+		ByteBuffer bytes = view(protocol, withSeq, compress, withSender);
+		int length = bytes.remaining();
+		if (bytes.hasArray()) {
+
+			out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+
+		} else {
+
+			byte[] copy = new byte[length];
+			bytes.get(copy);
+			out.write(copy);
+		}
+		return length;
+	}
+
+	/**
+	 * Codifica el mensaje en un protocolo, o devuelve la codificación ya hecha.
+	 */
+	private ByteBuffer encoded(WireProtocol protocol, boolean withSeq, boolean compress, boolean withSender)
+			throws IOException {
+
+		if (protocol == WireProtocol.BINARY) {
+
+			boolean packed = compress && ChatMessageCodec.compressible(message.getMessage());
+			int index = ((withSeq && message.getSeq() != 0) ? SEQ : 0) | (packed ? PACKED : 0)
+					| ((withSender && message.getSender() != null) ? SENDER : 0);
+			ByteBuffer bytes = binary.get(index);
+			if (bytes == null) {
+				bytes = ByteBuffer.wrap(ChatMessageCodec.encode(message, withSeq, packed, withSender));
+				binary.set(index, bytes);
+			}
+			return bytes;
+		}
+
+		ByteBuffer bytes = serialized;
+		if (bytes == null) {
+			bytes = ByteBuffer.wrap(SerializedFrames.encode(legacy()));
+			serialized = bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Devuelve el mensaje con el remitente delante del texto, para los
+	 * objetos serializados, que no llevan el remitente aparte.
+	 */
+	private ChatMessage legacy() {
+
+		return (message.getSender() == null) ? message
+				: new ChatMessage(message.getId(), message.getType(), message.getDisplayText(), message.getSeq());
+	}
+}
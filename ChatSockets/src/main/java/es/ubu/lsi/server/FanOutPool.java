@@ -0,0 +1,271 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Reparto en paralelo de las difusiones grandes: en lugar de recorrer todos
+ * los destinatarios en el hilo de quien envía, la difusión se entrega a un
+ * grupo fijo de trabajadores, uno por núcleo, y quien envía vuelve enseguida
+ * a leer lo suyo.
+ *
+ * Cada destinatario pertenece siempre a la misma partición (por su ID), y
+ * cada trabajador atiende una partición en el orden en que le llegan las
+ * difusiones; así cada cliente recibe las difusiones en el orden en que se
+ * publicaron. Al publicarla, los destinatarios se reparten una sola vez en
+ * un trozo por partición, y cada trabajador recibe y recorre solo el suyo.
+ *
+ * Las colas de los trabajadores están acotadas. Si una se llena, quien
+ * publica espera a que haya sitio (contrapresión): un trozo no se puede
+ * saltar la cola sin desordenar las difusiones de sus destinatarios, y que
+ * el reparto vaya lento no es culpa de ellos. Los trabajadores nunca se
+ * bloquean (solo encolan en las colas de los clientes, que aplican su
+ * propia política de desbordamiento), así que la espera es corta. Tras
+ * {@link #stop(long)} lo que no cabe se reparte en el hilo de quien publica.
+ *
+ * Opciones (-D):
+ * - chat.fanout.parallel: destinatarios a partir de los que se reparte en
+ *   paralelo (1024; 0 lo desactiva).
+ * - chat.fanout.workers: trabajadores (por defecto, uno por núcleo).
+ * - chat.fanout.queue: difusiones pendientes por trabajador (1024).
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class FanOutPool {
+
+	/** Destinatarios a partir de los que una difusión se reparte en paralelo. */
+	static final int THRESHOLD = Integer.getInteger("chat.fanout.parallel", 1024);
+	/** Número de trabajadores. */
+	private static final int WORKERS = Math.max(1, Integer.getInteger("chat.fanout.workers",
+			Runtime.getRuntime().availableProcessors()));
+	/** Difusiones pendientes que admite la cola de cada trabajador. */
+	private static final int QUEUE_CAPACITY = Math.max(1, Integer.getInteger("chat.fanout.queue", 1024));
+	/** Cada cuánto (ms) comprueba quien espera sitio si se han detenido los trabajadores. */
+	private static final long WAIT_MILLIS = 100;
+
+	/**
+	 * Trozo de una difusión pendiente de repartir, con los destinatarios de
+	 * una partición.
+	 */
+	static final class Broadcast {
+
+		/** Destinatarios de la partición en el momento de publicarla. */
+		final ClientSession[] recipients;
+		/** Sala de la difusión (null para los avisos a todos los clientes). */
+		final Room room;
+		/** ID del remitente. */
+		final int senderId;
+		/** Nombre del remitente. */
+		final String senderUsername;
+		/** Mensaje, codificado una sola vez. */
+		final EncodedMessage message;
+
+		Broadcast(ClientSession[] recipients, Room room, int senderId, String senderUsername, EncodedMessage message) {
+
+			this.recipients = recipients;
+			this.room = room;
+			this.senderId = senderId;
+			this.senderUsername = senderUsername;
+			this.message = message;
+		}
+	}
+
+	/** Servidor que entrega los mensajes. */
+	private final AbstractChatServer server;
+	/** Difusiones pendientes de cada trabajador. */
+	private final List<BlockingQueue<Broadcast>> queues;
+	/** Hilos de los trabajadores. */
+	private final Thread[] threads;
+	/** Trozos de difusiones aún sin repartir, para esperar a que terminen. */
+	private final AtomicLong pending = new AtomicLong();
+	/** Indica que los trabajadores se han detenido. */
+	private volatile boolean stopped;
+
+	/**
+	 * Crea los trabajadores y los arranca.
+	 *
+	 * @param server Servidor que entrega los mensajes.
+	 * @param workers Número de trabajadores.
+	 */
+	private FanOutPool(AbstractChatServer server, int workers) {
+
+		this.server = server;
+		this.queues = new ArrayList<>(workers);
+		this.threads = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+
+			final BlockingQueue<Broadcast> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+			queues.add(queue);
+			threads[i] = Threads.factory("chat-fanout-" + i, false).newThread(new Runnable() {
+				@Override
+				public void run() {
+					work(queue);
+				}
+			});
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Crea el reparto en paralelo configurado con las propiedades chat.fanout.*.
+	 *
+	 * @param server Servidor que entrega los mensajes.
+	 * @return Reparto en paralelo, o null si está desactivado.
+	 */
+	static FanOutPool fromSystemProperties(AbstractChatServer server) {
+
+		return (THRESHOLD > 0) ? new FanOutPool(server, WORKERS) : null;
+	}
+
+	/**
+	 * Reparte los destinatarios de una difusión entre las particiones y
+	 * entrega a cada trabajador los suyos. Se llama con el cerrojo de la sala
+	 * tomado, así que los trozos de difusiones seguidas llegan en orden.
+	 *
+	 * @param recipients Destinatarios, ya copiados.
+	 * @param room Sala de la difusión (null para los avisos a todos los clientes).
+	 * @param senderId ID del remitente.
+	 * @param senderUsername Nombre del remitente.
+	 * @param message Mensaje, codificado una sola vez.
+	 */
+	void submit(ClientSession[] recipients, Room room, int senderId, String senderUsername, EncodedMessage message) {
+
+		int partitions = queues.size();
+		if (partitions == 1) {
+
+			enqueue(queues.get(0), new Broadcast(recipients, room, senderId, senderUsername, message));
+			return;
+		}
+
+		int[] counts = new int[partitions];
+		for (ClientSession client : recipients) {
+			counts[partition(client, partitions)]++;
+		}
+		ClientSession[][] slices = new ClientSession[partitions][];
+		for (int i = 0; i < partitions; i++) {
+			slices[i] = new ClientSession[counts[i]];
+			counts[i] = 0;
+		}
+		for (ClientSession client : recipients) {
+
+			int partition = partition(client, partitions);
+			slices[partition][counts[partition]++] = client;
+		}
+
+		for (int i = 0; i < partitions; i++) {
+
+			if (slices[i].length > 0) {
+				enqueue(queues.get(i), new Broadcast(slices[i], room, senderId, senderUsername, message));
+			}
+		}
+	}
+
+	/**
+	 * Partición de un destinatario, siempre la misma para el mismo ID.
+	 */
+	private static int partition(ClientSession client, int partitions) {
+
+		return (client.id & Integer.MAX_VALUE) % partitions;
+	}
+
+	/**
+	 * Entrega un trozo a su trabajador, esperando a que haya sitio en su cola.
+	 * Si los trabajadores ya se han detenido, lo reparte aquí mismo.
+	 */
+	private void enqueue(BlockingQueue<Broadcast> queue, Broadcast slice) {
+
+		pending.incrementAndGet();
+		try {
+
+			if (queue.offer(slice)) {
+				return;
+			}
+			while (!stopped) {
+
+				if (queue.offer(slice, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+		}
+		deliver(slice);
+	}
+
+	/**
+	 * Espera a que se repartan las difusiones pendientes y detiene los trabajadores.
+	 *
+	 * @param timeoutMillis Espera máxima.
+	 */
+	void stop(long timeoutMillis) {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (pending.get() > 0 && System.nanoTime() < deadline) {
+
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		stopped = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Bucle de un trabajador: entrega cada trozo a sus destinatarios.
+	 *
+	 * @param queue Cola del trabajador.
+	 */
+	private void work(BlockingQueue<Broadcast> queue) {
+
+		while (true) {
+
+			try {
+				deliver(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Entrega un trozo a sus destinatarios.
+	 *
+	 * @param broadcast Trozo de la difusión.
+	 */
+	private void deliver(Broadcast broadcast) {
+
+		try {
+
+			for (ClientSession client : broadcast.recipients) {
+
+				// Quien ya ha dejado la sala no recibe lo que quedaba por repartir
+				if (broadcast.room != null && client.room != broadcast.room) {
+					continue;
+				}
+				server.deliver(client, broadcast.senderId, broadcast.senderUsername, broadcast.message);
+			}
+
+		} catch (RuntimeException e) {
+
+			ServerLog.error("Error repartiendo una difusión: " + e);
+
+		} finally {
+
+			pending.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,742 @@
+package es.ubu.lsi.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Registro persistente de los mensajes del chat, solo de añadido.
+ *
+ * Los mensajes se guardan en segmentos de tamaño fijo proyectados en memoria
+ * ({@link MappedByteBuffer}), uno detrás de otro: la escritura es secuencial
+ * y nunca se fuerza a disco por mensaje, solo al cambiar de segmento y al
+ * cerrar. Cuando un registro no cabe en el segmento actual se abre uno nuevo,
+ * y al pasar de {@link #MAX_SEGMENTS} se borran los más antiguos.
+ *
+ * Cada mensaje recibe un desplazamiento (offset) consecutivo en todo el
+ * registro. Cada segmento se llama como el offset de su primer mensaje y
+ * mantiene en memoria un índice offset → posición y, por cada sala, la lista
+ * de sus mensajes en el segmento; ambos se reconstruyen recorriendo el
+ * fichero al arrancar. Así una consulta solo decodifica los mensajes de su
+ * sala, aunque sea una sala tranquila entre muchas con tráfico.
+ *
+ * Formato de un registro:
+ * <pre>
+ *   longitud del cuerpo (int) | offset (long) |
+ *   longitud de la sala (int) | sala | longitud del remitente (int) | remitente | texto
+ * </pre>
+ * Los textos van en UTF-8 y el texto ocupa el resto del cuerpo, así que
+ * cabe cualquier mensaje que admita el protocolo. La longitud se escribe la
+ * última, así que un registro a medias (por una caída) se ve como el final
+ * del segmento. Una longitud 0 marca el final.
+ *
+ * Difundir un mensaje solo lo encola; un hilo propio lo escribe en el
+ * segmento. Si la cola se llena, el mensaje no se guarda y se cuenta.
+ *
+ * Las consultas solo toman el cerrojo para anotar qué registros leer; los
+ * decodifican después, sin hacer esperar al hilo de escritura. Los registros
+ * ya escritos no cambian, y un segmento borrado entretanto sigue proyectado
+ * mientras alguien lo lea. Las peticiones de los clientes se atienden en un
+ * hilo de lectura propio ({@link #query(Runnable)}), para no ocupar el de
+ * sus sesiones (en el motor NIO, el bucle que atiende a muchas más).
+ *
+ * Al borrar un segmento se suelta su proyección, pero Java no permite
+ * deshacerla explícitamente: el sistema no recupera su espacio en disco hasta
+ * que el recolector de basura libera el búfer. Por eso el disco ocupado puede
+ * superar durante un tiempo los {@link #MAX_SEGMENTS} segmentos.
+ *
+ * Configuración (propiedades del sistema):
+ * <ul>
+ * <li>chat.log.dir: directorio del registro (activa el historial).</li>
+ * <li>chat.log.segment: tamaño de cada segmento en bytes (16 MB por defecto).</li>
+ * <li>chat.log.segments: segmentos que se conservan (8 por defecto).</li>
+ * </ul>
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class MessageLog {
+
+	/** Tamaño de cada segmento. */
+	static final int SEGMENT_SIZE = Integer.getInteger("chat.log.segment", 16 * 1024 * 1024);
+	/** Segmentos que se conservan. */
+	static final int MAX_SEGMENTS = Math.max(1, Integer.getInteger("chat.log.segments", 8));
+	/** Máximo de mensajes que se devuelven en una consulta del historial. */
+	static final int MAX_HISTORY = 1000;
+	/** Mensajes pendientes de escribir antes de empezar a descartar. */
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	/** Consultas pendientes antes de empezar a rechazarlas. */
+	private static final int QUERY_CAPACITY = 1024;
+	/** Bytes de la cabecera de cada registro. */
+	private static final int HEADER = 4 + 8;
+	/** Extensión de los ficheros de segmento. */
+	private static final String SUFFIX = ".log";
+
+	/**
+	 * Mensaje del registro.
+	 */
+	static final class Entry {
+
+		/** Offset del mensaje (-1 hasta que se escribe). */
+		final long offset;
+		/** Sala en la que se difundió. */
+		final String room;
+		/** Nombre del remitente. */
+		final String sender;
+		/** Texto del mensaje. */
+		final String text;
+
+		/**
+		 * Crea un mensaje del registro.
+		 *
+		 * @param offset Offset del mensaje.
+		 * @param room Sala.
+		 * @param sender Remitente.
+		 * @param text Texto.
+		 */
+		Entry(long offset, String room, String sender, String text) {
+
+			this.offset = offset;
+			this.room = room;
+			this.sender = sender;
+			this.text = text;
+		}
+	}
+
+	/** Directorio del registro. */
+	private final File dir;
+	/** Segmentos conservados, del más antiguo al actual. */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	/** Cerrojo de los segmentos (escritura y consultas). */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Mensajes pendientes de escribir. */
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	/** Mensajes descartados por tener la cola llena. */
+	private final AtomicLong dropped = new AtomicLong();
+	/** Hilo que escribe los mensajes. */
+	private final Thread appender;
+	/** Consultas pendientes del hilo de lectura. */
+	private final BlockingQueue<Runnable> queries = new ArrayBlockingQueue<>(QUERY_CAPACITY);
+	/** Hilo que atiende las consultas. */
+	private final Thread reader;
+	/** Offset del siguiente mensaje. */
+	private long nextOffset;
+	/** Indica si el registro sigue abierto. */
+	private volatile boolean open = true;
+
+	/**
+	 * Abre (o crea) el registro en un directorio, recuperando los segmentos existentes.
+	 *
+	 * @param dir Directorio del registro.
+	 * @throws IOException si no se puede crear el directorio o leer los segmentos.
+	 */
+	MessageLog(File dir) throws IOException {
+
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("No se puede crear el directorio " + dir);
+		}
+
+		File[] files = dir.listFiles();
+		List<Long> bases = new ArrayList<>();
+		for (File file : (files == null) ? new File[0] : files) {
+
+			String name = file.getName();
+			if (name.endsWith(SUFFIX)) {
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// No es un segmento
+				}
+			}
+		}
+		Collections.sort(bases);
+
+		for (long base : bases) {
+
+			Segment segment = new Segment(base);
+			segment.recover();
+			segments.addLast(segment);
+			nextOffset = segment.base + segment.count;
+		}
+		if (segments.isEmpty()) {
+			segments.addLast(new Segment(nextOffset));
+		}
+		trim();
+
+		appender = Threads.factory("chat-log", false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				appendLoop();
+			}
+		});
+		// Lo pendiente se escribe en close(); no debe impedir que termine la JVM
+		appender.setDaemon(true);
+		appender.start();
+
+		reader = Threads.factory("chat-log-lectura", false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				queryLoop();
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Abre el registro configurado con -Dchat.log.dir, si lo hay.
+	 *
+	 * @return Registro abierto, o null si no se ha configurado.
+	 * @throws IOException si no se puede abrir.
+	 */
+	static MessageLog fromSystemProperties() throws IOException {
+
+		String dir = System.getProperty("chat.log.dir");
+		return (dir == null) ? null : new MessageLog(new File(dir));
+	}
+
+	/**
+	 * Encola un mensaje para guardarlo. No espera a que se escriba.
+	 *
+	 * @param room Sala.
+	 * @param sender Remitente.
+	 * @param text Texto.
+	 */
+	void append(String room, String sender, String text) {
+
+		if (!open || !queue.offer(new Entry(-1, room, sender, text))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Encola una consulta para el hilo de lectura. No espera a que se haga.
+	 *
+	 * @param query Consulta, que usa {@link #tail} o {@link #since} y envía el resultado.
+	 * @return false si hay demasiadas pendientes o el registro está cerrado.
+	 */
+	boolean query(Runnable query) {
+
+		return open && queries.offer(query);
+	}
+
+	/**
+	 * Devuelve los últimos mensajes de una sala.
+	 *
+	 * @param room Sala.
+	 * @param count Número de mensajes (como mucho {@link #MAX_HISTORY}).
+	 * @param skipSenders Remitentes cuyos mensajes se omiten.
+	 * @return Mensajes, del más antiguo al más reciente.
+	 */
+	List<Entry> tail(String room, int count, Set<String> skipSenders) {
+
+		count = Math.min(count, MAX_HISTORY);
+		List<Entry> result = new ArrayList<>();
+
+		List<Slice> slices = new ArrayList<>();
+		lock.lock();
+		try {
+
+			Iterator<Segment> it = segments.descendingIterator();
+			while (it.hasNext()) {
+
+				Slice slice = it.next().slice(room);
+				if (slice != null) {
+					slices.add(slice);
+				}
+			}
+
+		} finally {
+
+			lock.unlock();
+		}
+
+		for (Iterator<Slice> it = slices.iterator(); it.hasNext() && result.size() < count;) {
+
+			Slice slice = it.next();
+			for (int i = slice.size - 1; i >= 0 && result.size() < count; i--) {
+
+				Entry entry = slice.read(i);
+				if (!skipSenders.contains(entry.sender)) {
+					result.add(entry);
+				}
+			}
+		}
+
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Devuelve los mensajes de una sala a partir de un offset.
+	 *
+	 * @param room Sala.
+	 * @param from Primer offset que interesa.
+	 * @param skipSenders Remitentes cuyos mensajes se omiten.
+	 * @return Mensajes (como mucho {@link #MAX_HISTORY}), del más antiguo al más reciente.
+	 */
+	List<Entry> since(String room, long from, Set<String> skipSenders) {
+
+		List<Entry> result = new ArrayList<>();
+
+		List<Slice> slices = new ArrayList<>();
+		lock.lock();
+		try {
+
+			for (Segment segment : segments) {
+
+				Slice slice = (segment.base + segment.count <= from) ? null : segment.slice(room);
+				if (slice != null) {
+					slices.add(slice);
+				}
+			}
+
+		} finally {
+
+			lock.unlock();
+		}
+
+		for (Iterator<Slice> it = slices.iterator(); it.hasNext() && result.size() < MAX_HISTORY;) {
+
+			Slice slice = it.next();
+			for (int i = slice.first(from); i < slice.size && result.size() < MAX_HISTORY; i++) {
+
+				Entry entry = slice.read(i);
+				if (!skipSenders.contains(entry.sender)) {
+					result.add(entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Resume el estado del registro.
+	 *
+	 * @return Resumen, sin prefijo.
+	 */
+	String stats() {
+
+		lock.lock();
+		try {
+
+			return "Historial: siguiente offset " + nextOffset + ", " + segments.size() + " segmentos desde el offset "
+					+ segments.peekFirst().base + ", " + queue.size() + " pendientes, " + dropped.get() + " descartados";
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Escribe lo pendiente, fuerza los segmentos a disco y detiene el hilo de escritura.
+	 */
+	void close() {
+
+		open = false;
+		reader.interrupt();
+		appender.interrupt();
+		try {
+			appender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		lock.lock();
+		try {
+			segments.peekLast().buffer.force();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cuerpo del hilo de escritura: saca los mensajes de la cola y los escribe.
+	 * Al interrumpirse escribe lo que quede y termina.
+	 */
+	private void appendLoop() {
+
+		List<Entry> batch = new ArrayList<>();
+
+		while (true) {
+
+			try {
+
+				batch.add(queue.take());
+
+			} catch (InterruptedException e) {
+
+				if (!open) {
+					queue.drainTo(batch);
+					write(batch);
+					return;
+				}
+				continue;
+			}
+			queue.drainTo(batch);
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Cuerpo del hilo de lectura: atiende las consultas según llegan.
+	 */
+	private void queryLoop() {
+
+		while (open) {
+
+			Runnable query;
+			try {
+				query = queries.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				query.run();
+			} catch (RuntimeException e) {
+				ServerLog.error("Error al consultar el historial: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Escribe un lote de mensajes en el segmento actual, cambiando de segmento si hace falta.
+	 */
+	private void write(List<Entry> batch) {
+
+		lock.lock();
+		try {
+
+			for (Entry entry : batch) {
+
+				byte[] body = encode(entry);
+				if (HEADER + body.length + 4 > SEGMENT_SIZE) {
+					ServerLog.error("Mensaje demasiado grande para el historial");
+					dropped.incrementAndGet();
+					continue;
+				}
+				if (!segments.peekLast().append(nextOffset, entry.room, body)) {
+					roll();
+					segments.peekLast().append(nextOffset, entry.room, body);
+				}
+				nextOffset++;
+			}
+
+		} catch (IOException e) {
+
+			ServerLog.error("Error al escribir el historial: " + e.getMessage());
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cierra el segmento actual, abre uno nuevo y borra los que sobran.
+	 * Se llama con el cerrojo tomado.
+	 */
+	private void roll() throws IOException {
+
+		segments.peekLast().buffer.force();
+		segments.addLast(new Segment(nextOffset));
+		trim();
+	}
+
+	/**
+	 * Borra los segmentos más antiguos que sobran. Se llama con el cerrojo tomado.
+	 */
+	private void trim() {
+
+		while (segments.size() > MAX_SEGMENTS) {
+
+			Segment oldest = segments.removeFirst();
+			// Las consultas en curso conservan su propia referencia al búfer
+			oldest.retire();
+			if (!oldest.file.delete()) {
+				ServerLog.error("No se pudo borrar el segmento " + oldest.file);
+			}
+		}
+	}
+
+	/**
+	 * Codifica el cuerpo de un registro.
+	 */
+	private static byte[] encode(Entry entry) {
+
+		byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+		byte[] sender = (entry.sender == null ? "" : entry.sender).getBytes(StandardCharsets.UTF_8);
+		byte[] text = (entry.text == null ? "" : entry.text).getBytes(StandardCharsets.UTF_8);
+
+		ByteBuffer body = ByteBuffer.allocate(4 + room.length + 4 + sender.length + text.length);
+		body.putInt(room.length).put(room);
+		body.putInt(sender.length).put(sender);
+		body.put(text);
+		return body.array();
+	}
+
+	/**
+	 * Decodifica un texto UTF-8 de la posición actual de un búfer.
+	 */
+	private static String utf8(ByteBuffer view, int length) {
+
+		byte[] bytes = new byte[length];
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Mensajes de una sala en un segmento, anotados con el cerrojo tomado para
+	 * leerlos después sin él. Lo anotado ya está escrito y no cambia.
+	 */
+	private static final class Slice {
+
+		/** Offset del primer mensaje del segmento. */
+		final long base;
+		/** Contenido del segmento. */
+		final ByteBuffer buffer;
+		/** Posición de cada mensaje del segmento (índice = offset - base). */
+		final int[] positions;
+		/** Índices de los mensajes de la sala, en orden. */
+		final int[] indices;
+		/** Número de mensajes de la sala. */
+		final int size;
+
+		Slice(long base, ByteBuffer buffer, int[] positions, int[] indices, int size) {
+
+			this.base = base;
+			this.buffer = buffer;
+			this.positions = positions;
+			this.indices = indices;
+			this.size = size;
+		}
+
+		/**
+		 * Busca el primer mensaje de la sala con offset igual o posterior a uno dado.
+		 *
+		 * @param from Offset.
+		 * @return Posición en {@link #indices}, o {@link #size} si no hay ninguno.
+		 */
+		int first(long from) {
+
+			long index = from - base;
+			if (index <= 0) {
+				return 0;
+			}
+			int found = Arrays.binarySearch(indices, 0, size, (int) Math.min(index, Integer.MAX_VALUE));
+			return (found >= 0) ? found : -found - 1;
+		}
+
+		/**
+		 * Lee un mensaje de la sala.
+		 *
+		 * @param i Posición en {@link #indices}.
+		 * @return Mensaje.
+		 */
+		Entry read(int i) {
+
+			int index = indices[i];
+			int position = positions[index];
+			ByteBuffer view = buffer.duplicate();
+			view.limit(position + HEADER + buffer.getInt(position));
+			view.position(position + HEADER);
+
+			try {
+
+				String room = utf8(view, view.getInt());
+				String sender = utf8(view, view.getInt());
+				return new Entry(base + index, room, sender, utf8(view, view.remaining()));
+
+			} catch (RuntimeException e) {
+
+				// Los registros indexados están completos
+				throw new IllegalStateException("Registro dañado en el segmento " + base + " posición " + position, e);
+			}
+		}
+	}
+
+	/**
+	 * Mensajes de una sala en un segmento: sus índices (offset - base), en orden.
+	 */
+	private static final class Postings {
+
+		/** Índices. */
+		int[] indices = new int[16];
+		/** Número de índices. */
+		int size;
+
+		void add(int index) {
+
+			if (size == indices.length) {
+				indices = Arrays.copyOf(indices, size * 2);
+			}
+			indices[size++] = index;
+		}
+	}
+
+	/**
+	 * Segmento del registro: un fichero de tamaño fijo proyectado en memoria.
+	 */
+	private final class Segment {
+
+		/** Offset del primer mensaje del segmento. */
+		final long base;
+		/** Fichero del segmento. */
+		final File file;
+		/** Contenido del fichero proyectado en memoria (null una vez borrado). */
+		MappedByteBuffer buffer;
+		/** Posición de cada mensaje (índice = offset - base). */
+		int[] positions = new int[256];
+		/** Mensajes de cada sala. */
+		Map<String, Postings> rooms = new HashMap<>();
+		/** Número de mensajes del segmento. */
+		int count;
+		/** Posición en la que se escribirá el siguiente mensaje. */
+		int end;
+
+		/**
+		 * Abre o crea el fichero del segmento y lo proyecta en memoria.
+		 *
+		 * @param base Offset del primer mensaje.
+		 * @throws IOException si no se puede abrir.
+		 */
+		Segment(long base) throws IOException {
+
+			this.base = base;
+			this.file = new File(dir, String.format("%020d", base) + SUFFIX);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+			}
+		}
+
+		/**
+		 * Reconstruye los índices recorriendo los registros del fichero.
+		 */
+		void recover() {
+
+			while (end + HEADER <= SEGMENT_SIZE) {
+
+				int length = buffer.getInt(end);
+				if (length <= 0 || end + HEADER + length > SEGMENT_SIZE
+						|| buffer.getLong(end + 4) != base + count) {
+					break;
+				}
+				String room = roomAt(end);
+				if (room == null) {
+					break;
+				}
+				index(end, room);
+				end += HEADER + length;
+			}
+		}
+
+		/**
+		 * Lee la sala de un registro completo.
+		 *
+		 * @return Sala, o null si el registro no es válido.
+		 */
+		private String roomAt(int position) {
+
+			ByteBuffer view = buffer.duplicate();
+			view.limit(position + HEADER + buffer.getInt(position));
+			view.position(position + HEADER);
+			try {
+
+				int length = view.getInt();
+				return (length < 0 || length > view.remaining()) ? null : utf8(view, length);
+
+			} catch (RuntimeException e) {
+
+				return null;
+			}
+		}
+
+		/**
+		 * Añade un registro al final del segmento.
+		 *
+		 * @param offset Offset del mensaje.
+		 * @param room Sala del mensaje.
+		 * @param body Cuerpo del registro.
+		 * @return false si no cabe.
+		 */
+		boolean append(long offset, String room, byte[] body) {
+
+			// Hay que dejar sitio para la marca de final (longitud 0)
+			if (end + HEADER + body.length + 4 > SEGMENT_SIZE) {
+				return false;
+			}
+
+			buffer.putLong(end + 4, offset);
+			ByteBuffer view = buffer.duplicate();
+			view.position(end + HEADER);
+			view.put(body);
+			buffer.putInt(end, body.length);
+
+			index(end, room);
+			end += HEADER + body.length;
+			return true;
+		}
+
+		/**
+		 * Anota los mensajes de una sala en el segmento. Se llama con el cerrojo tomado.
+		 *
+		 * @param room Sala.
+		 * @return Mensajes de la sala, o null si no hay ninguno.
+		 */
+		Slice slice(String room) {
+
+			Postings postings = rooms.get(room);
+			return (postings == null) ? null
+					: new Slice(base, buffer, positions, postings.indices, postings.size);
+		}
+
+		/**
+		 * Suelta el búfer y los índices del segmento al borrarlo.
+		 */
+		void retire() {
+
+			buffer = null;
+			positions = null;
+			rooms = null;
+		}
+
+		/**
+		 * Apunta la posición del siguiente mensaje en los índices.
+		 */
+		private void index(int position, String room) {
+
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+			}
+			Postings postings = rooms.get(room);
+			if (postings == null) {
+				postings = new Postings();
+				rooms.put(room, postings);
+			}
+			postings.add(count);
+			positions[count++] = position;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.ubu.lsi.common.Batching;
+
+/**
+ * Cola acotada de mensajes pendientes de escribir a un cliente.
+ *
+ * Quien difunde solo encola, de modo que un cliente lento no retrasa a los
+ * demás; el escritor de la sesión (su hilo propio o el bucle NIO) la vacía.
+ * Cuando se llena se aplica la {@link OverflowPolicy} configurada. El escritor
+ * saca los mensajes por lotes para enviar varios en una sola escritura.
+ *
+ * Las tramas de control (apagado, latidos, negociación) van por un carril
+ * aparte que se vacía antes que el de chat, de modo que no esperan detrás de
+ * los mensajes acumulados de un cliente lento. Ese carril es pequeño y, si se
+ * llena, descarta las nuevas: solo lo llenaría un cliente que no lee.
+ *
+ * Usa un {@link ReentrantLock} en lugar de monitores para que los escritores
+ * en hilos virtuales puedan esperar sin ocupar su hilo portador.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class OutboundQueue {
+
+	/** Capacidad por defecto (-Dchat.queue.capacity). */
+	static final int DEFAULT_CAPACITY = Integer.getInteger("chat.queue.capacity", 1024);
+	/** Política por defecto (-Dchat.queue.policy). */
+	static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.fromName(System.getProperty("chat.queue.policy"));
+	/** Capacidad del carril de control. */
+	static final int CONTROL_CAPACITY = 64;
+
+	/**
+	 * Resultado de encolar un mensaje.
+	 */
+	enum Offer {
+		/** Mensaje encolado. */
+		ACCEPTED,
+		/** Cola llena: se ha descartado un mensaje (el nuevo o el más antiguo). */
+		DROPPED,
+		/** Cola llena con la política {@link OverflowPolicy#DISCONNECT}. */
+		OVERFLOW,
+		/** La cola está cerrada y ya no admite mensajes. */
+		CLOSED
+	}
+
+	/** Mensajes pendientes. */
+	private final ArrayDeque<EncodedMessage> items = new ArrayDeque<>(8);
+	/** Tramas de control pendientes, que salen antes que los mensajes. */
+	private final ArrayDeque<EncodedMessage> control = new ArrayDeque<>(2);
+	/** Número máximo de mensajes pendientes. */
+	private final int capacity;
+	/** Política al llenarse. */
+	private final OverflowPolicy policy;
+	/** Cerrojo de la cola. */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Condición de cola no vacía (o cerrada). */
+	private final Condition notEmpty = lock.newCondition();
+	/** Indica si la cola está cerrada. */
+	private boolean closed;
+	/** Mayor número de mensajes pendientes alcanzado. */
+	private int highWater;
+	/** Mensajes descartados por falta de espacio. */
+	private long dropped;
+
+	/**
+	 * Crea una cola con la capacidad y la política por defecto.
+	 */
+	OutboundQueue() {
+
+		this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+	}
+
+	/**
+	 * Crea una cola.
+	 *
+	 * @param capacity Número máximo de mensajes pendientes.
+	 * @param policy Política al llenarse.
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy) {
+
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Encola un mensaje aplicando la política si la cola está llena.
+	 *
+	 * @param msg Mensaje a encolar.
+	 * @return Resultado de la operación.
+	 */
+	Offer offer(EncodedMessage msg) {
+
+		lock.lock();
+		try {
+
+			if (closed) {
+				return Offer.CLOSED;
+			}
+
+			if (msg.control) {
+
+				if (control.size() >= CONTROL_CAPACITY) {
+					dropped++;
+					return Offer.DROPPED;
+				}
+				control.addLast(msg);
+				highWater = Math.max(highWater, items.size() + control.size());
+				notEmpty.signal();
+				return Offer.ACCEPTED;
+			}
+
+			Offer result = Offer.ACCEPTED;
+			if (items.size() >= capacity) {
+
+				if (policy == OverflowPolicy.DISCONNECT) {
+					return Offer.OVERFLOW;
+				}
+				dropped++;
+				if (policy == OverflowPolicy.DROP_NEWEST) {
+					return Offer.DROPPED;
+				}
+				items.pollFirst();
+				result = Offer.DROPPED;
+			}
+
+			items.addLast(msg);
+			highWater = Math.max(highWater, items.size());
+			// Despertar al escritor al llegar el primer mensaje y al completarse un lote
+			if (items.size() == 1 || items.size() == Batching.MAX_MESSAGES) {
+				notEmpty.signal();
+			}
+			return result;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Saca un lote de mensajes. Espera a que haya al menos uno y, desde ese
+	 * momento, hasta que se complete el lote o pase la ventana indicada; una
+	 * trama de control corta la espera.
+	 *
+	 * @param batch Array donde dejar los mensajes; su longitud es el tamaño del lote.
+	 * @param lingerNanos Espera máxima para completar el lote.
+	 * @return Número de mensajes sacados, o 0 si la cola se ha cerrado y ya no quedan.
+	 * @throws InterruptedException si se interrumpe la espera.
+	 */
+	int take(EncodedMessage[] batch, long lingerNanos) throws InterruptedException {
+
+		lock.lock();
+		try {
+
+			while (items.isEmpty() && control.isEmpty() && !closed) {
+				notEmpty.await();
+			}
+
+			long wait = lingerNanos;
+			while (control.isEmpty() && items.size() < batch.length && !closed && wait > 0) {
+				wait = notEmpty.awaitNanos(wait);
+			}
+			return drain(batch);
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Saca los mensajes pendientes que quepan en el array, sin esperar.
+	 *
+	 * @param batch Array donde dejar los mensajes.
+	 * @return Número de mensajes sacados.
+	 */
+	int poll(EncodedMessage[] batch) {
+
+		lock.lock();
+		try {
+
+			return drain(batch);
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Saca mensajes hasta llenar el array o vaciar la cola, primero los de
+	 * control. Se llama con el cerrojo tomado.
+	 */
+	private int drain(EncodedMessage[] batch) {
+
+		int count = 0;
+		while (count < batch.length && !control.isEmpty()) {
+			batch[count++] = control.pollFirst();
+		}
+		while (count < batch.length && !items.isEmpty()) {
+			batch[count++] = items.pollFirst();
+		}
+		return count;
+	}
+
+	/**
+	 * Cierra la cola: no admite más mensajes, pero los pendientes se pueden sacar.
+	 */
+	void close() {
+
+		lock.lock();
+		try {
+
+			closed = true;
+			notEmpty.signalAll();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Descarta todos los mensajes pendientes.
+	 */
+	void clear() {
+
+		lock.lock();
+		try {
+
+			items.clear();
+			control.clear();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Devuelve el número de mensajes pendientes.
+	 *
+	 * @return Mensajes en la cola.
+	 */
+	int size() {
+
+		lock.lock();
+		try {
+
+			return items.size() + control.size();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indica si hay tramas de control pendientes.
+	 *
+	 * @return true si el carril de control no está vacío.
+	 */
+	boolean hasControl() {
+
+		lock.lock();
+		try {
+
+			return !control.isEmpty();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indica si la cola está vacía.
+	 *
+	 * @return true si no hay mensajes pendientes.
+	 */
+	boolean isEmpty() {
+
+		return size() == 0;
+	}
+
+	/**
+	 * Devuelve el mayor número de mensajes pendientes alcanzado.
+	 *
+	 * @return Máximo histórico de la cola.
+	 */
+	int highWater() {
+
+		lock.lock();
+		try {
+
+			return highWater;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Devuelve los mensajes descartados por falta de espacio.
+	 *
+	 * @return Mensajes descartados.
+	 */
+	long dropped() {
+
+		lock.lock();
+		try {
+
+			return dropped;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package es.ubu.lsi.server;
+
+/**
+ * Qué hacer cuando la cola de salida de un cliente está llena porque no lee
+ * sus mensajes al ritmo al que se le envían.
+ *
+ * @author Ivan Nebreda Camara
+ */
+enum OverflowPolicy {
+
+	/** Descartar el mensaje más antiguo de la cola para hacer sitio al nuevo. */
+	DROP_OLDEST,
+	/** Descartar el mensaje nuevo. */
+	DROP_NEWEST,
+	/** Desconectar al cliente. */
+	DISCONNECT;
+
+	/**
+	 * Obtiene la política indicada por nombre (por ejemplo, en -Dchat.queue.policy).
+	 *
+	 * @param name "drop-oldest", "drop-newest" o "disconnect", sin distinguir mayúsculas.
+	 * @return Política indicada, o {@link #DISCONNECT} si no se reconoce.
+	 */
+	static OverflowPolicy fromName(String name) {
+
+		if ("drop-oldest".equalsIgnoreCase(name)) {
+			return DROP_OLDEST;
+		}
+		if ("drop-newest".equalsIgnoreCase(name)) {
+			return DROP_NEWEST;
+		}
+		return DISCONNECT;
+	}
+}
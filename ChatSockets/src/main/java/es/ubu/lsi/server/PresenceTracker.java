@@ -0,0 +1,338 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.Presence;
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Presencia de los usuarios conectados, para los clientes que la piden con
+ * {@link ChatMessage.MessageType#PRESENCE}.
+ *
+ * Quien se suscribe recibe una instantánea de la lista y, a partir de ahí,
+ * solo los cambios, agrupados por ventanas de chat.presence.window ms: al
+ * final de cada ventana se envía un único mensaje con el resultado neto de
+ * las entradas y salidas (quien entra y sale dentro de la misma ventana no
+ * aparece), el mismo para todos los suscriptores. Así el coste de una
+ * conexión no depende del número de usuarios, salvo la instantánea.
+ *
+ * La instantánea refleja la lista tal como quedó en el último envío de
+ * cambios, de modo que el siguiente envío la pone al día exactamente. Se
+ * codifica una vez por ventana y la comparten todos los que se suscriben
+ * mientras tanto, aunque entren miles a la vez.
+ *
+ * Las entradas, salidas y suscripciones se dejan en una cola y las atiende
+ * un único hilo, el único que toca la lista y los suscriptores; así ningún
+ * suscriptor recibe un cambio antes que su instantánea, y quien avisa nunca
+ * espera, aunque lo haga con el cerrojo de una sala tomado.
+ *
+ * Opciones (-D):
+ * - chat.presence.window: ventana (ms) en la que se agrupan los cambios
+ *   (1000; 0 desactiva la presencia).
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class PresenceTracker {
+
+	/** Ventana (ms) en la que se agrupan los cambios. */
+	static final long WINDOW_MILLIS = Long.getLong("chat.presence.window", 1000);
+	/** Caracteres a partir de los que un mensaje de presencia se parte en varios. */
+	private static final int CHUNK_CHARS = 64 * 1024;
+
+	/** Tareas pendientes, de cualquier hilo. */
+	private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+	/** Usuarios conectados ahora (solo en el hilo de la presencia). */
+	private final Set<String> online = new HashSet<>();
+	/**
+	 * Usuarios que han cambiado desde el último envío, con su estado entonces
+	 * (true si estaba conectado). Solo en el hilo de la presencia.
+	 */
+	private final Map<String, Boolean> changed = new LinkedHashMap<>();
+	/** Sesiones suscritas (solo en el hilo de la presencia). */
+	private final Set<ClientSession> subscribers = new HashSet<>();
+	/** Instantánea de la lista en el último envío (null si hay que volver a construirla). */
+	private List<EncodedMessage> snapshot;
+	/** Hilo de la presencia. */
+	private final Thread thread;
+	/** Indica si el seguimiento sigue en marcha. */
+	private volatile boolean running = true;
+
+	/**
+	 * Crea el seguimiento y arranca su hilo.
+	 */
+	private PresenceTracker() {
+
+		thread = Threads.factory("chat-presence", false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Crea el seguimiento de la presencia configurado con chat.presence.window.
+	 *
+	 * @return Seguimiento, o null si está desactivado.
+	 */
+	static PresenceTracker fromSystemProperties() {
+
+		return (WINDOW_MILLIS > 0) ? new PresenceTracker() : null;
+	}
+
+	/**
+	 * Anota que un usuario se ha conectado. Se puede llamar desde cualquier hilo.
+	 *
+	 * @param name Nombre del usuario.
+	 */
+	void online(final String name) {
+
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				if (online.add(name)) {
+					changed(name, false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Anota que un usuario se ha desconectado. Se puede llamar desde cualquier hilo.
+	 *
+	 * @param name Nombre del usuario.
+	 */
+	void offline(final String name) {
+
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				if (online.remove(name)) {
+					changed(name, true);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Guarda el estado de un usuario en el último envío, si es su primer
+	 * cambio desde entonces.
+	 */
+	private void changed(String name, boolean wasOnline) {
+
+		if (!changed.containsKey(name)) {
+			changed.put(name, wasOnline);
+		}
+	}
+
+	/**
+	 * Suscribe una sesión: recibe la instantánea y, desde ahora, los cambios.
+	 * Suscribirse de nuevo no tiene efecto. Se puede llamar desde cualquier hilo.
+	 *
+	 * @param session Sesión que se suscribe.
+	 */
+	void subscribe(final ClientSession session) {
+
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				if (!session.closed && subscribers.add(session)) {
+					for (EncodedMessage message : snapshot()) {
+						session.send(message);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Quita una sesión de los suscriptores, si lo era. Se puede llamar desde cualquier hilo.
+	 *
+	 * @param session Sesión.
+	 */
+	void unsubscribe(final ClientSession session) {
+
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				subscribers.remove(session);
+			}
+		});
+	}
+
+	/**
+	 * Detiene el hilo de la presencia; los cambios pendientes ya no se envían.
+	 */
+	void stop() {
+
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * Devuelve la instantánea del último envío, construyéndola si hace falta:
+	 * los usuarios conectados ahora, deshaciendo los cambios aún no enviados.
+	 */
+	private List<EncodedMessage> snapshot() {
+
+		if (snapshot == null) {
+
+			Chunks chunks = new Chunks();
+			chunks.line(Presence.RESET);
+			for (String name : online) {
+				if (!changed.containsKey(name)) {
+					chunks.add(Presence.ONLINE, name);
+				}
+			}
+			for (Map.Entry<String, Boolean> entry : changed.entrySet()) {
+				if (entry.getValue()) {
+					chunks.add(Presence.ONLINE, entry.getKey());
+				}
+			}
+			snapshot = chunks.messages();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Envía a los suscriptores los cambios netos desde el último envío.
+	 */
+	private void flush() {
+
+		Chunks chunks = new Chunks();
+		for (Map.Entry<String, Boolean> entry : changed.entrySet()) {
+
+			boolean now = online.contains(entry.getKey());
+			if (now != entry.getValue()) {
+				chunks.add(now ? Presence.ONLINE : Presence.OFFLINE, entry.getKey());
+			}
+		}
+		changed.clear();
+
+		List<EncodedMessage> messages = chunks.messages();
+		if (messages.isEmpty()) {
+			return;
+		}
+		snapshot = null;
+		for (ClientSession session : subscribers) {
+			for (EncodedMessage message : messages) {
+				session.send(message);
+			}
+		}
+	}
+
+	/**
+	 * Bucle del hilo de la presencia: atiende las tareas según llegan y, desde
+	 * el primer cambio, deja pasar la ventana y envía los cambios juntos.
+	 */
+	private void work() {
+
+		boolean window = false;
+		long deadline = 0;
+		while (running) {
+
+			Runnable task;
+			try {
+
+				long wait = deadline - System.nanoTime();
+				task = !window ? tasks.take() : (wait > 0) ? tasks.poll(wait, TimeUnit.NANOSECONDS) : tasks.poll();
+
+			} catch (InterruptedException e) {
+
+				return;
+			}
+
+			try {
+
+				if (task != null) {
+					task.run();
+				}
+				if (!window && !changed.isEmpty()) {
+					window = true;
+					deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS);
+				}
+				if (window && System.nanoTime() - deadline >= 0) {
+					window = false;
+					flush();
+				}
+
+			} catch (RuntimeException e) {
+
+				ServerLog.error("Error en el seguimiento de la presencia: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Texto de uno o varios mensajes de presencia, partido en trozos de como
+	 * mucho {@link #CHUNK_CHARS} caracteres.
+	 */
+	private static final class Chunks {
+
+		/** Mensajes ya completos. */
+		private final List<EncodedMessage> messages = new ArrayList<>();
+		/** Texto del mensaje en curso. */
+		private final StringBuilder text = new StringBuilder();
+
+		/**
+		 * Añade el cambio de un usuario.
+		 *
+		 * @param op {@link Presence#ONLINE} o {@link Presence#OFFLINE}.
+		 * @param name Nombre del usuario.
+		 */
+		void add(char op, String name) {
+
+			if (text.length() + name.length() + 2 > CHUNK_CHARS) {
+				cut();
+			}
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(op).append(name);
+		}
+
+		/**
+		 * Añade una línea sin más.
+		 *
+		 * @param line Línea.
+		 */
+		void line(String line) {
+
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(line);
+		}
+
+		/**
+		 * Devuelve los mensajes, cerrando el que esté en curso.
+		 *
+		 * @return Mensajes (vacío si no se ha añadido nada).
+		 */
+		List<EncodedMessage> messages() {
+
+			cut();
+			return messages;
+		}
+
+		private void cut() {
+
+			if (text.length() > 0) {
+
+				messages.add(new EncodedMessage(new ChatMessage(-1, ChatMessage.MessageType.PRESENCE, text.toString())));
+				text.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package es.ubu.lsi.server;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Límites de ritmo de los mensajes entrantes, para que un cliente que envía
+ * sin parar no sature las difusiones de los demás: uno por sesión, otro por
+ * dirección IP de origen (compartido por todas sus sesiones) y otro global
+ * para todo el servidor.
+ *
+ * Cada límite es un cubo de fichas que se rellena a un ritmo fijo y admite
+ * ráfagas de unos segundos de ese ritmo. El cubo se guarda como un único
+ * instante, el momento en el que volvería a estar lleno, que se actualiza
+ * con un compareAndSet: comprobar un mensaje no reserva memoria ni toma
+ * cerrojos.
+ *
+ * Lo que se hace con un mensaje por encima del límite lo decide
+ * chat.rate.action: delay (por defecto) deja de leer de esa sesión hasta que
+ * vuelva a haber fichas, de modo que TCP frena al cliente; drop descarta el
+ * mensaje; disconnect desconecta al cliente. LOGOUT nunca se limita.
+ *
+ * Opciones (-D), en mensajes por segundo; 0 desactiva el límite:
+ * - chat.rate.session: por sesión (20).
+ * - chat.rate.address: por dirección IP (0).
+ * - chat.rate.global: para todo el servidor (0).
+ * - chat.rate.burst: segundos de ritmo que admite una ráfaga (2).
+ * - chat.rate.action: delay, drop o disconnect.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class RateLimiter {
+
+	/** Resultado de {@link AbstractChatServer#admit}: descartar el mensaje. */
+	static final long DROPPED = -1;
+	/** Resultado de {@link AbstractChatServer#admit}: la sesión ya se ha desconectado. */
+	static final long DISCONNECTED = -2;
+
+	/**
+	 * Qué hacer con un mensaje por encima del límite.
+	 */
+	enum Action {
+
+		/** Tratarlo y dejar de leer de la sesión hasta que haya fichas. */
+		DELAY,
+		/** Descartarlo. */
+		DROP,
+		/** Desconectar al cliente. */
+		DISCONNECT
+	}
+
+	/**
+	 * Cubo de fichas guardado como el instante (nanoTime) en el que volvería
+	 * a estar lleno, menos la ráfaga admitida: se puede tomar una ficha
+	 * mientras ese instante no esté más allá de la ráfaga.
+	 */
+	static final class Bucket {
+
+		/** Nanosegundos que tarda en llegar una ficha. */
+		private final long interval;
+		/** Nanosegundos de adelanto admitidos (la ráfaga menos una ficha). */
+		private final long tolerance;
+		/** Instante teórico de llegada de la siguiente ficha. */
+		private final AtomicLong due;
+		/** Sesiones que lo comparten (solo dentro de compute del mapa de direcciones). */
+		private int sessions;
+
+		/**
+		 * Crea un cubo lleno.
+		 *
+		 * @param rate Fichas por segundo.
+		 * @param burst Fichas que caben en el cubo.
+		 */
+		Bucket(double rate, long burst) {
+
+			this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+			this.tolerance = interval * (Math.max(1, burst) - 1);
+			this.due = new AtomicLong(System.nanoTime());
+		}
+
+		/**
+		 * Toma una ficha si la hay.
+		 *
+		 * @param now Instante actual (nanoTime).
+		 * @return 0 si la ha tomado, o los nanosegundos hasta que haya una.
+		 */
+		long tryTake(long now) {
+
+			while (true) {
+
+				long current = due.get();
+				long base = Math.max(current, now);
+				long wait = base - now - tolerance;
+				if (wait > 0) {
+					return wait;
+				}
+				if (due.compareAndSet(current, base + interval)) {
+					return 0;
+				}
+			}
+		}
+
+		/**
+		 * Toma una ficha aunque no la haya, a cuenta de las siguientes.
+		 *
+		 * @param now Instante actual (nanoTime).
+		 * @return Nanosegundos que hay que esperar para ajustarse al ritmo (0 si ninguno).
+		 */
+		long take(long now) {
+
+			while (true) {
+
+				long current = due.get();
+				long base = Math.max(current, now);
+				if (due.compareAndSet(current, base + interval)) {
+					return Math.max(0, base - now - tolerance);
+				}
+			}
+		}
+
+		/**
+		 * Devuelve una ficha tomada con {@link #tryTake}.
+		 */
+		void giveBack() {
+
+			due.addAndGet(-interval);
+		}
+	}
+
+	/** Qué hacer con los mensajes por encima del límite. */
+	final Action action;
+	/** Ritmo por sesión (0 sin límite). */
+	private final double sessionRate;
+	/** Ritmo por dirección IP (0 sin límite). */
+	private final double addressRate;
+	/** Ritmo global (0 sin límite). */
+	private final double globalRate;
+	/** Segundos de ritmo que admite una ráfaga. */
+	private final double burstSeconds;
+	/** Cubo global (null sin límite). */
+	private final Bucket global;
+	/** Cubos por dirección IP, mientras tengan alguna sesión. */
+	private final ConcurrentHashMap<InetAddress, Bucket> addresses = new ConcurrentHashMap<>();
+
+	/**
+	 * Crea los límites.
+	 *
+	 * @param sessionRate Mensajes por segundo por sesión (0 sin límite).
+	 * @param addressRate Mensajes por segundo por dirección IP (0 sin límite).
+	 * @param globalRate Mensajes por segundo en todo el servidor (0 sin límite).
+	 * @param burstSeconds Segundos de ritmo que admite una ráfaga.
+	 * @param action Qué hacer con los mensajes por encima del límite.
+	 */
+	RateLimiter(double sessionRate, double addressRate, double globalRate, double burstSeconds, Action action) {
+
+		this.sessionRate = sessionRate;
+		this.addressRate = addressRate;
+		this.globalRate = globalRate;
+		this.burstSeconds = burstSeconds;
+		this.action = action;
+		this.global = (globalRate > 0) ? bucket(globalRate) : null;
+	}
+
+	/**
+	 * Crea los límites configurados con las propiedades chat.rate.*.
+	 *
+	 * @return Límites, o null si no hay ninguno.
+	 */
+	static RateLimiter fromSystemProperties() {
+
+		double session = rate("chat.rate.session", 20);
+		double address = rate("chat.rate.address", 0);
+		double global = rate("chat.rate.global", 0);
+		if (session <= 0 && address <= 0 && global <= 0) {
+			return null;
+		}
+
+		String name = System.getProperty("chat.rate.action", "delay");
+		Action action;
+		try {
+			action = Action.valueOf(name.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			ServerLog.error("Acción de límite de ritmo no válida: " + name + "; se usa delay");
+			action = Action.DELAY;
+		}
+		return new RateLimiter(session, address, global, Math.max(0, rate("chat.rate.burst", 2)), action);
+	}
+
+	private static double rate(String property, double defaultValue) {
+
+		String value = System.getProperty(property);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			ServerLog.error("Valor no válido para " + property + ": " + value + "; se usa " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private Bucket bucket(double rate) {
+
+		return new Bucket(rate, (long) Math.ceil(rate * burstSeconds));
+	}
+
+	/**
+	 * Prepara los cubos de una sesión recién aceptada.
+	 *
+	 * @param session Sesión, con su dirección ya asignada.
+	 */
+	void open(ClientSession session) {
+
+		if (sessionRate > 0) {
+			session.rate = bucket(sessionRate);
+		}
+		if (addressRate > 0 && session.address != null) {
+
+			session.addressRate = addresses.compute(session.address, new BiFunction<InetAddress, Bucket, Bucket>() {
+				@Override
+				public Bucket apply(InetAddress address, Bucket bucket) {
+					if (bucket == null) {
+						bucket = bucket(addressRate);
+					}
+					bucket.sessions++;
+					return bucket;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Suelta el cubo de la dirección de una sesión cerrada; el último en
+	 * soltarlo lo elimina. Se puede llamar más de una vez.
+	 *
+	 * @param session Sesión cerrada.
+	 */
+	void close(ClientSession session) {
+
+		Bucket bucket;
+		synchronized (session) {
+			bucket = session.addressRate;
+			session.addressRate = null;
+		}
+		if (bucket == null) {
+			return;
+		}
+
+		final Bucket released = bucket;
+		addresses.computeIfPresent(session.address, new BiFunction<InetAddress, Bucket, Bucket>() {
+			@Override
+			public Bucket apply(InetAddress address, Bucket current) {
+				if (current != released) {
+					return current;
+				}
+				return (--current.sessions == 0) ? null : current;
+			}
+		});
+	}
+
+	/**
+	 * Toma una ficha de cada cubo de una sesión: el suyo, el de su dirección
+	 * y el global. Con {@link Action#DELAY} se toman siempre y se devuelve la
+	 * espera mayor; con el resto, si falta alguna se devuelven las ya tomadas.
+	 *
+	 * @param session Sesión que ha enviado un mensaje.
+	 * @return 0 si el mensaje está dentro de los límites, o los nanosegundos
+	 *         hasta que lo estaría.
+	 */
+	long acquire(ClientSession session) {
+
+		long now = System.nanoTime();
+		Bucket own = session.rate;
+		Bucket shared = session.addressRate;
+
+		if (action == Action.DELAY) {
+
+			long wait = 0;
+			if (own != null) {
+				wait = own.take(now);
+			}
+			if (shared != null) {
+				wait = Math.max(wait, shared.take(now));
+			}
+			if (global != null) {
+				wait = Math.max(wait, global.take(now));
+			}
+			return wait;
+		}
+
+		long wait;
+		if (own != null && (wait = own.tryTake(now)) > 0) {
+			return wait;
+		}
+		if (shared != null && (wait = shared.tryTake(now)) > 0) {
+
+			if (own != null) {
+				own.giveBack();
+			}
+			return wait;
+		}
+		if (global != null && (wait = global.tryTake(now)) > 0) {
+
+			if (own != null) {
+				own.giveBack();
+			}
+			if (shared != null) {
+				shared.giveBack();
+			}
+			return wait;
+		}
+		return 0;
+	}
+
+	/**
+	 * Resume los límites configurados.
+	 *
+	 * @return Línea de log con los límites.
+	 */
+	String describe() {
+
+		return "Límites de ritmo (mensajes/s): sesión " + limit(sessionRate) + ", dirección " + limit(addressRate)
+				+ ", global " + limit(globalRate)
+				+ "; ráfagas de " + burstSeconds + " s; acción " + action.name().toLowerCase(Locale.ROOT);
+	}
+
+	private static String limit(double rate) {
+
+		return (rate > 0) ? String.valueOf(rate) : "sin límite";
+	}
+}
@@ -0,0 +1,178 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Búfer circular con las últimas difusiones numeradas de una sala, para
+ * reenviar a un cliente que se reconecta lo que se perdió mientras tanto.
+ *
+ * Cada {@link Room} tiene el suyo y solo se usa con el cerrojo de la sala
+ * tomado (al difundir y al reanudar), así que no necesita cerrojo propio y
+ * una sala con mucho tráfico no frena a las demás.
+ *
+ * Guarda los mensajes ya codificados, así que reenviarlos no vuelve a
+ * codificar nada. Está acotado por número de mensajes y por la memoria que
+ * pueden retener sus codificaciones (ver {@link EncodedMessage#maxRetainedBytes()}):
+ * al pasarse de cualquiera de los dos se descartan los más antiguos, y un
+ * mensaje que por sí solo no cabe no se guarda. Para saber si una
+ * reanudación llega tarde se recuerda el mayor número descartado.
+ *
+ * Opciones (-D):
+ * - chat.resume.buffer: mensajes que se conservan por sala (1024).
+ * - chat.resume.bytes: memoria máxima retenida por sala, en bytes (8 MiB).
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class RecentMessages {
+
+	/** Mensajes que se conservan. */
+	static final int CAPACITY = Math.max(1, Integer.getInteger("chat.resume.buffer", 1024));
+	/** Memoria máxima que pueden retener los mensajes guardados. */
+	static final long MAX_BYTES = Math.max(1, Long.getLong("chat.resume.bytes", 8L * 1024 * 1024));
+
+	/**
+	 * Difusión guardada.
+	 */
+	static final class Entry {
+
+		/** Número de secuencia. */
+		final long seq;
+		/** Nombre del remitente. */
+		final String sender;
+		/** Mensaje codificado. */
+		final EncodedMessage message;
+		/** Memoria que puede llegar a retener. */
+		final long bytes;
+
+		/**
+		 * Crea una entrada.
+		 *
+		 * @param seq Número de secuencia.
+		 * @param sender Nombre del remitente.
+		 * @param message Mensaje codificado.
+		 */
+		Entry(long seq, String sender, EncodedMessage message) {
+
+			this.seq = seq;
+			this.sender = sender;
+			this.message = message;
+			this.bytes = message.maxRetainedBytes();
+		}
+	}
+
+	/** Entradas, en orden de llegada a partir de {@link #head}. */
+	private final Entry[] ring;
+	/** Memoria máxima que pueden retener las entradas. */
+	private final long maxBytes;
+	/** Posición de la entrada más antigua. */
+	private int head;
+	/** Número de entradas. */
+	private int size;
+	/** Memoria que pueden retener las entradas guardadas. */
+	private long bytes;
+	/** Mayor número de secuencia descartado o anterior al búfer (0 si ninguno). */
+	private long evicted;
+	/** Mayor número de secuencia guardado (se lee sin el cerrojo de la sala). */
+	private volatile long last;
+
+	/**
+	 * Crea el búfer con la capacidad configurada.
+	 */
+	RecentMessages() {
+
+		this(CAPACITY, MAX_BYTES);
+	}
+
+	/**
+	 * Crea el búfer.
+	 *
+	 * @param capacity Mensajes que se conservan.
+	 * @param maxBytes Memoria máxima que pueden retener.
+	 */
+	RecentMessages(int capacity, long maxBytes) {
+
+		this.ring = new Entry[Math.max(1, capacity)];
+		this.maxBytes = Math.max(1, maxBytes);
+	}
+
+	/**
+	 * Guarda una difusión, descartando las más antiguas que haga falta.
+	 *
+	 * @param entry Difusión.
+	 */
+	void add(Entry entry) {
+
+		last = entry.seq;
+		if (entry.bytes > maxBytes) {
+
+			evicted = Math.max(evicted, entry.seq);
+			return;
+		}
+
+		while (size == ring.length || (size > 0 && bytes + entry.bytes > maxBytes)) {
+
+			Entry oldest = ring[head];
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			size--;
+			bytes -= oldest.bytes;
+			evicted = Math.max(evicted, oldest.seq);
+		}
+
+		ring[(head + size++) % ring.length] = entry;
+		bytes += entry.bytes;
+	}
+
+	/**
+	 * Da por perdido todo lo anterior a un número de secuencia, para una sala
+	 * que se vuelve a crear tras eliminarse (lo de antes se fue con la anterior).
+	 *
+	 * @param seq Mayor número de secuencia que no se conserva.
+	 */
+	void forgetUpTo(long seq) {
+
+		evicted = Math.max(evicted, seq);
+	}
+
+	/**
+	 * Devuelve el mayor número de secuencia guardado. Se puede llamar sin el
+	 * cerrojo de la sala.
+	 *
+	 * @return Número de secuencia, o 0 si no se ha guardado nada.
+	 */
+	long last() {
+
+		return last;
+	}
+
+	/**
+	 * Devuelve las difusiones posteriores a un número de secuencia.
+	 *
+	 * @param seq Último número recibido.
+	 * @return Difusiones, en orden.
+	 */
+	List<Entry> after(long seq) {
+
+		List<Entry> result = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+
+			Entry entry = ring[(head + i) % ring.length];
+			if (entry.seq > seq) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Indica si se conserva todo lo posterior a un número de secuencia.
+	 *
+	 * @param seq Último número recibido.
+	 * @return false si se ha descartado alguna difusión posterior.
+	 */
+	boolean covers(long seq) {
+
+		return evicted <= seq;
+	}
+}
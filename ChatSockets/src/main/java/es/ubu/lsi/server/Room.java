@@ -0,0 +1,40 @@
+package es.ubu.lsi.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sala de chat: un nombre y el conjunto de sesiones que reciben sus mensajes.
+ *
+ * Las difusiones a la sala se numeran y reparten con su cerrojo tomado, de
+ * modo que todos los miembros las reciben en el orden de su número y quien
+ * entra con el cerrojo tomado sabe exactamente cuáles no ha recibido. Las
+ * últimas se guardan en la propia sala para reenviarlas al reanudar.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class Room {
+
+	/** Nombre de la sala. */
+	final String name;
+	/** Sesiones que están en la sala. */
+	final Set<ClientSession> members = Collections.newSetFromMap(new ConcurrentHashMap<ClientSession, Boolean>());
+	/** Cerrojo de las difusiones (no un monitor: al repartir se puede cerrar un socket). */
+	final ReentrantLock lock = new ReentrantLock();
+	/** Últimas difusiones, para las reanudaciones (solo con el cerrojo tomado). */
+	final RecentMessages recent = new RecentMessages();
+	/** Indica si sus difusiones se reparten en paralelo (solo con el cerrojo tomado). */
+	boolean parallel;
+
+	/**
+	 * Crea una sala vacía.
+	 *
+	 * @param name Nombre de la sala.
+	 */
+	Room(String name) {
+
+		this.name = name;
+	}
+}
@@ -0,0 +1,209 @@
+package es.ubu.lsi.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de las salas de chat del servidor.
+ *
+ * Cada sesión está en una sola sala a la vez y cada sala guarda sus miembros,
+ * de modo que difundir un mensaje recorre solo su sala y no a todos los
+ * clientes conectados. Las salas se crean al entrar el primero y desaparecen
+ * al salir el último, salvo {@link #DEFAULT_ROOM}, donde empieza todo cliente.
+ *
+ * Entrar y salir de salas es poco frecuente y se serializa con el monitor del
+ * registro (dentro no hay E/S), para que una sala no se elimine por vacía a
+ * la vez que alguien entra en ella. La excepción es la entrada inicial en la
+ * sala por defecto al conectarse, que nunca se elimina y por tanto no
+ * necesita el monitor: así una avalancha de conexiones no se serializa aquí.
+ * Difundir solo lee los miembros de la sala, sin cerrojos.
+ *
+ * Al eliminarse una sala se pierden sus últimas difusiones; se recuerda su
+ * último número de secuencia para que, si se vuelve a crear, quien reanude
+ * en ella sepa si se perdió algo. Se recuerdan como mucho
+ * {@link #RETIRED_ROOMS} salas; al olvidar una, las reanudaciones anteriores
+ * a lo olvidado se dan por incompletas en toda sala nueva, por si acaso.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class RoomRegistry {
+
+	/** Sala en la que entran los clientes al conectarse. */
+	static final String DEFAULT_ROOM = "general";
+	/** Salas eliminadas cuyo último número de secuencia se recuerda. */
+	private static final int RETIRED_ROOMS = 4096;
+
+	/** Salas existentes (nombre → sala). */
+	private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+	/** Sala por defecto, que nunca se elimina. */
+	private final Room lobby = new Room(DEFAULT_ROOM);
+	/** Último número de secuencia de las salas eliminadas, de la más antigua a la más reciente. */
+	private final Map<String, Long> retired = new LinkedHashMap<>();
+	/** Mayor número de secuencia de las salas olvidadas de {@link #retired} (0 si ninguna). */
+	private long forgotten;
+
+	/**
+	 * Crea el registro con la sala por defecto.
+	 */
+	RoomRegistry() {
+
+		rooms.put(DEFAULT_ROOM, lobby);
+	}
+
+	/**
+	 * Cambia una sesión de sala, creando la nueva si no existe.
+	 *
+	 * @param session Sesión que entra.
+	 * @param name Nombre de la sala.
+	 * @return Sala en la que ha entrado.
+	 */
+	synchronized Room join(ClientSession session, String name) {
+
+		Room previous = session.room;
+		if (previous != null && previous.name.equals(name)) {
+			return previous;
+		}
+
+		Room room = rooms.get(name);
+		if (room == null) {
+			room = new Room(name);
+			add(room);
+		}
+
+		enter(session, room);
+		return room;
+	}
+
+	/**
+	 * Mete en la sala por defecto a una sesión que aún no está en ninguna (al
+	 * conectarse), sin tomar el monitor del registro. Si la sesión ya tiene
+	 * sala, equivale a {@link #join(ClientSession, String)}.
+	 *
+	 * @param session Sesión que entra.
+	 * @return Sala por defecto.
+	 */
+	Room enterLobby(ClientSession session) {
+
+		if (session.room != null) {
+			return join(session, DEFAULT_ROOM);
+		}
+
+		session.room = lobby;
+		lobby.members.add(session);
+		// Si entretanto ha salido (se ha desconectado), no debe quedarse como miembro
+		if (session.room != lobby) {
+			lobby.members.remove(session);
+		}
+		return lobby;
+	}
+
+	/**
+	 * Cambia una sesión a una sala concreta, obtenida con {@link #open(String)}.
+	 * Sirve para entrar con el cerrojo de la sala ya tomado; si entretanto la
+	 * sala se ha eliminado y otra ocupa su nombre, no se entra.
+	 *
+	 * @param session Sesión que entra.
+	 * @param room Sala.
+	 * @return false si la sala ya no es la que tiene ese nombre.
+	 */
+	synchronized boolean join(ClientSession session, Room room) {
+
+		Room current = rooms.get(room.name);
+		if (current == null) {
+			add(room);
+		} else if (current != room) {
+			return false;
+		}
+
+		if (session.room != room) {
+			enter(session, room);
+		}
+		return true;
+	}
+
+	/**
+	 * Devuelve una sala existente o una nueva, que no se registra hasta que
+	 * alguien entra con {@link #join(ClientSession, Room)}.
+	 *
+	 * @param name Nombre de la sala.
+	 * @return Sala.
+	 */
+	Room open(String name) {
+
+		Room room = rooms.get(name);
+		return (room != null) ? room : new Room(name);
+	}
+
+	/**
+	 * Busca una sala.
+	 *
+	 * @param name Nombre de la sala.
+	 * @return Sala, o null si no tiene miembros en este servidor.
+	 */
+	Room find(String name) {
+
+		return rooms.get(name);
+	}
+
+	/**
+	 * Saca una sesión de su sala, sin meterla en otra (al desconectarse).
+	 *
+	 * @param session Sesión que sale.
+	 */
+	synchronized void leave(ClientSession session) {
+
+		Room room = session.room;
+		if (room != null) {
+
+			session.room = null;
+			leave(session, room);
+		}
+	}
+
+	/**
+	 * Registra una sala nueva, que no conserva nada de una eliminada con el
+	 * mismo nombre. Se llama con el monitor del registro tomado, y con el
+	 * cerrojo de la sala si ya es visible para otros hilos.
+	 */
+	private void add(Room room) {
+
+		Long last = retired.remove(room.name);
+		room.recent.forgetUpTo(Math.max(forgotten, (last != null) ? last : 0));
+		rooms.put(room.name, room);
+	}
+
+	/**
+	 * Añade una sesión a una sala y la saca de la anterior. Se llama con el
+	 * monitor del registro tomado.
+	 */
+	private void enter(ClientSession session, Room room) {
+
+		Room previous = session.room;
+		room.members.add(session);
+		session.room = room;
+		if (previous != null) {
+			leave(session, previous);
+		}
+	}
+
+	/**
+	 * Quita una sesión de una sala y elimina la sala si se ha quedado vacía.
+	 * Se llama con el monitor del registro tomado.
+	 */
+	private void leave(ClientSession session, Room room) {
+
+		room.members.remove(session);
+		if (room != lobby && room.members.isEmpty() && rooms.remove(room.name, room)) {
+
+			retired.put(room.name, room.recent.last());
+			if (retired.size() > RETIRED_ROOMS) {
+
+				Iterator<Long> oldest = retired.values().iterator();
+				forgotten = Math.max(forgotten, oldest.next());
+				oldest.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package es.ubu.lsi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Construcción de los bytes que espera un cliente que lee con
+ * {@link java.io.ObjectInputStream}, sin mantener un {@link ObjectOutputStream}
+ * abierto por conexión.
+ *
+ * Cada mensaje se codifica precedido de TC_RESET, de modo que no depende de
+ * lo enviado antes por la conexión y puede escribirse tal cual en cualquiera.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class SerializedFrames {
+
+	/** Cabecera de flujo (STREAM_MAGIC, STREAM_VERSION). */
+	static final int STREAM_HEADER_LENGTH = 4;
+	/** Marca de reinicio de la tabla de handles del flujo. */
+	private static final byte TC_RESET = 0x79;
+	/** Bloque de datos corto. */
+	private static final byte TC_BLOCKDATA = 0x77;
+
+	private SerializedFrames() {
+	}
+
+	/**
+	 * Bytes iniciales de la conexión: cabecera de flujo y el ID del cliente
+	 * escrito como con {@code writeInt} dentro de un bloque de datos.
+	 *
+	 * @param id ID asignado al cliente.
+	 * @return Búfer listo para escribir.
+	 */
+	static ByteBuffer handshake(int id) {
+
+		ByteBuffer buffer = ByteBuffer.allocate(STREAM_HEADER_LENGTH + 2 + 4);
+		buffer.putShort(ObjectOutputStream.STREAM_MAGIC);
+		buffer.putShort(ObjectOutputStream.STREAM_VERSION);
+		buffer.put(TC_BLOCKDATA).put((byte) 4).putInt(id);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Serializa un mensaje de forma autocontenida (TC_RESET + objeto).
+	 *
+	 * @param msg Mensaje a serializar.
+	 * @return Bytes del mensaje.
+	 * @throws IOException si el mensaje no se puede serializar.
+	 */
+	static byte[] encode(ChatMessage msg) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(msg);
+		out.flush();
+
+		byte[] raw = bytes.toByteArray();
+		byte[] frame = new byte[raw.length - STREAM_HEADER_LENGTH + 1];
+		frame[0] = TC_RESET;
+		System.arraycopy(raw, STREAM_HEADER_LENGTH, frame, 1, raw.length - STREAM_HEADER_LENGTH);
+		return frame;
+	}
+}
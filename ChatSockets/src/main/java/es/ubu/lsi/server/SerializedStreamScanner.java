@@ -0,0 +1,368 @@
+package es.ubu.lsi.server;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Analizador del formato de serialización de Java que, sin deserializar nada,
+ * determina si el búfer contiene un objeto completo y cuántos bytes ocupa.
+ *
+ * Lo usa el motor NIO para atender a los clientes que envían objetos
+ * {@link es.ubu.lsi.common.ChatMessage} serializados: un {@link java.io.ObjectInputStream}
+ * no puede reintentar una lectura a medias, así que solo se le entregan los bytes
+ * de un objeto cuando este ha llegado entero.
+ *
+ * Para resolver las referencias a descriptores de clase lleva la misma tabla
+ * de handles que el flujo del cliente, por lo que cada conexión necesita su
+ * propio analizador.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class SerializedStreamScanner {
+
+	/** Primer handle asignado por el flujo. */
+	private static final int BASE_HANDLE = 0x7e0000;
+
+	private static final byte TC_NULL = 0x70;
+	private static final byte TC_REFERENCE = 0x71;
+	private static final byte TC_CLASSDESC = 0x72;
+	private static final byte TC_OBJECT = 0x73;
+	private static final byte TC_STRING = 0x74;
+	private static final byte TC_ARRAY = 0x75;
+	private static final byte TC_CLASS = 0x76;
+	private static final byte TC_BLOCKDATA = 0x77;
+	private static final byte TC_ENDBLOCKDATA = 0x78;
+	private static final byte TC_RESET = 0x79;
+	private static final byte TC_BLOCKDATALONG = 0x7A;
+	private static final byte TC_LONGSTRING = 0x7C;
+	private static final byte TC_PROXYCLASSDESC = 0x7D;
+	private static final byte TC_ENUM = 0x7E;
+
+	private static final int SC_WRITE_METHOD = 0x01;
+	private static final int SC_SERIALIZABLE = 0x02;
+	private static final int SC_EXTERNALIZABLE = 0x04;
+	private static final int SC_BLOCK_DATA = 0x08;
+
+	/** Señal interna de que faltan bytes; se reutiliza para no crear excepciones. */
+	private static final Underflow UNDERFLOW = new Underflow();
+
+	/** Tabla de handles: descriptor de clase o null para el resto de objetos. */
+	private ArrayList<ClassDesc> handles = new ArrayList<>();
+	/** Búfer que se está analizando. */
+	private ByteBuffer buf;
+	/** Posición de lectura dentro del búfer. */
+	private int pos;
+
+	/**
+	 * Descriptor de clase reducido a lo necesario para saltar sus datos.
+	 */
+	private static final class ClassDesc {
+		/** Flags SC_* del descriptor. */
+		int flags;
+		/** Código de tipo de cada campo serializable, en orden de flujo. */
+		byte[] fieldTypes;
+		/** Tipo de los elementos si el descriptor es de un array. */
+		byte elementType;
+		/** Descriptor de la superclase. */
+		ClassDesc superDesc;
+	}
+
+	/**
+	 * Excepción de control para cuando el objeto aún no ha llegado entero.
+	 */
+	private static final class Underflow extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Underflow() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * Calcula la longitud del siguiente elemento de primer nivel del flujo
+	 * (incluidos los TC_RESET que lo preceden). No modifica la posición del búfer.
+	 *
+	 * @param in Búfer en modo lectura, posicionado al inicio del elemento.
+	 * @return Número de bytes del elemento, o -1 si todavía no está completo.
+	 * @throws StreamCorruptedException si los bytes no siguen el formato esperado.
+	 */
+	int scan(ByteBuffer in) throws StreamCorruptedException {
+
+		ArrayList<ClassDesc> saved = handles;
+		int mark = handles.size();
+		buf = in;
+		pos = in.position();
+
+		try {
+
+			while (pos < buf.limit() && buf.get(pos) == TC_RESET) {
+				pos++;
+				handles = new ArrayList<>();
+			}
+			readContent();
+			return pos - in.position();
+
+		} catch (Underflow u) {
+
+			// Deshacer los handles asignados en el intento
+			handles = saved;
+			while (handles.size() > mark) {
+				handles.remove(handles.size() - 1);
+			}
+			return -1;
+
+		} finally {
+
+			buf = null;
+		}
+	}
+
+	/**
+	 * Salta un elemento de contenido (objeto, cadena, bloque de datos...).
+	 */
+	private void readContent() throws StreamCorruptedException {
+
+		byte tc = u8();
+		switch (tc) {
+		case TC_NULL:
+			break;
+		case TC_REFERENCE:
+			skip(4);
+			break;
+		case TC_OBJECT:
+			ClassDesc desc = readClassDesc();
+			handles.add(null);
+			readClassData(desc);
+			break;
+		case TC_STRING:
+			skip(u16());
+			handles.add(null);
+			break;
+		case TC_LONGSTRING:
+			skip(i64());
+			handles.add(null);
+			break;
+		case TC_ENUM:
+			readClassDesc();
+			handles.add(null);
+			readContent();
+			break;
+		case TC_ARRAY:
+			readArray();
+			break;
+		case TC_CLASS:
+			readClassDesc();
+			handles.add(null);
+			break;
+		case TC_CLASSDESC:
+		case TC_PROXYCLASSDESC:
+			pos--;
+			readClassDesc();
+			break;
+		case TC_BLOCKDATA:
+			skip(u8() & 0xFF);
+			break;
+		case TC_BLOCKDATALONG:
+			skip(i32());
+			break;
+		default:
+			throw new StreamCorruptedException(String.format("Código de tipo no válido: %02X", tc));
+		}
+	}
+
+	/**
+	 * Lee un descriptor de clase nuevo, una referencia a uno anterior o null.
+	 */
+	private ClassDesc readClassDesc() throws StreamCorruptedException {
+
+		byte tc = u8();
+		switch (tc) {
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE:
+			int handle = i32() - BASE_HANDLE;
+			if (handle < 0 || handle >= handles.size() || handles.get(handle) == null) {
+				throw new StreamCorruptedException("Referencia a descriptor no válida: " + handle);
+			}
+			return handles.get(handle);
+		case TC_CLASSDESC:
+			ClassDesc desc = new ClassDesc();
+			int nameLength = u16();
+			if (nameLength > 1 && buf.get(check(pos, 1)) == '[') {
+				desc.elementType = buf.get(check(pos + 1, 1));
+			}
+			skip(nameLength);
+			skip(8); // serialVersionUID
+			handles.add(desc);
+			desc.flags = u8();
+			int fields = u16();
+			desc.fieldTypes = new byte[fields];
+			for (int i = 0; i < fields; i++) {
+				byte type = u8();
+				desc.fieldTypes[i] = type;
+				skip(u16());
+				if (type == 'L' || type == '[') {
+					readContent(); // nombre de la clase del campo
+				}
+			}
+			skipAnnotation();
+			desc.superDesc = readClassDesc();
+			return desc;
+		case TC_PROXYCLASSDESC:
+			ClassDesc proxy = new ClassDesc();
+			proxy.flags = SC_SERIALIZABLE;
+			proxy.fieldTypes = new byte[0];
+			handles.add(proxy);
+			int interfaces = i32();
+			for (int i = 0; i < interfaces; i++) {
+				skip(u16());
+			}
+			skipAnnotation();
+			proxy.superDesc = readClassDesc();
+			return proxy;
+		default:
+			throw new StreamCorruptedException(String.format("Descriptor de clase no válido: %02X", tc));
+		}
+	}
+
+	/**
+	 * Salta los datos de un objeto, desde la superclase más alta hasta su clase.
+	 */
+	private void readClassData(ClassDesc desc) throws StreamCorruptedException {
+
+		if (desc == null) {
+			throw new StreamCorruptedException("Objeto sin descriptor de clase");
+		}
+		if (desc.superDesc != null) {
+			readClassData(desc.superDesc);
+		}
+
+		if ((desc.flags & SC_EXTERNALIZABLE) != 0) {
+
+			if ((desc.flags & SC_BLOCK_DATA) == 0) {
+				throw new StreamCorruptedException("Objetos Externalizable en protocolo 1 no soportados");
+			}
+			skipAnnotation();
+
+		} else if ((desc.flags & SC_SERIALIZABLE) != 0) {
+
+			for (byte type : desc.fieldTypes) {
+				skipValue(type);
+			}
+			if ((desc.flags & SC_WRITE_METHOD) != 0) {
+				skipAnnotation();
+			}
+		}
+	}
+
+	/**
+	 * Salta un array: descriptor, handle, tamaño y elementos.
+	 */
+	private void readArray() throws StreamCorruptedException {
+
+		ClassDesc desc = readClassDesc();
+		handles.add(null);
+		int size = i32();
+		if (desc == null || size < 0) {
+			throw new StreamCorruptedException("Array no válido");
+		}
+		int width = primitiveSize(desc.elementType);
+		if (width > 0) {
+			skip((long) size * width);
+		} else {
+			for (int i = 0; i < size; i++) {
+				readContent();
+			}
+		}
+	}
+
+	/**
+	 * Salta el valor de un campo según su código de tipo.
+	 */
+	private void skipValue(byte type) throws StreamCorruptedException {
+
+		int width = primitiveSize(type);
+		if (width > 0) {
+			skip(width);
+		} else {
+			readContent();
+		}
+	}
+
+	/**
+	 * Salta contenidos hasta encontrar el TC_ENDBLOCKDATA que cierra una anotación.
+	 */
+	private void skipAnnotation() throws StreamCorruptedException {
+
+		while (buf.get(check(pos, 1)) != TC_ENDBLOCKDATA) {
+			readContent();
+		}
+		pos++;
+	}
+
+	/**
+	 * Tamaño en bytes de un tipo primitivo, o 0 si es un objeto.
+	 */
+	private static int primitiveSize(byte type) {
+
+		switch (type) {
+		case 'B': case 'Z':
+			return 1;
+		case 'C': case 'S':
+			return 2;
+		case 'I': case 'F':
+			return 4;
+		case 'J': case 'D':
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Comprueba que haya {@code n} bytes disponibles a partir de {@code at}.
+	 */
+	private int check(int at, long n) {
+
+		if (at + n > buf.limit()) {
+			throw UNDERFLOW;
+		}
+		return at;
+	}
+
+	private void skip(long n) throws StreamCorruptedException {
+
+		if (n < 0) {
+			throw new StreamCorruptedException("Longitud negativa");
+		}
+		check(pos, n);
+		pos += (int) n;
+	}
+
+	private byte u8() {
+
+		return buf.get(check(pos++, 1));
+	}
+
+	private int u16() {
+
+		int value = buf.getShort(check(pos, 2)) & 0xFFFF;
+		pos += 2;
+		return value;
+	}
+
+	private int i32() {
+
+		int value = buf.getInt(check(pos, 4));
+		pos += 4;
+		return value;
+	}
+
+	private long i64() {
+
+		long value = buf.getLong(check(pos, 8));
+		pos += 8;
+		return value;
+	}
+}
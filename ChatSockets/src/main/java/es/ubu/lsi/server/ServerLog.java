@@ -0,0 +1,391 @@
+package es.ubu.lsi.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Log del servidor sin esperas: quien registra una línea solo la encola en un
+ * búfer circular acotado, y un hilo aparte las escribe por lotes en la
+ * consola o, con -Dchat.logging.file, en un fichero que rota por tamaño.
+ *
+ * Si el búfer está lleno (la consola o el disco no dan abasto) la línea se
+ * descarta y se cuenta, en lugar de frenar a las sesiones; el escritor avisa
+ * de los descartes como mucho una vez por segundo.
+ *
+ * Opciones (-D):
+ * - chat.logging.level: error, info o chat (por defecto; incluye cada mensaje de las salas).
+ * - chat.logging.buffer: líneas que caben en el búfer (8192).
+ * - chat.logging.file: fichero del log (sin él, la consola).
+ * - chat.logging.size: bytes a partir de los que rota el fichero (10 MB).
+ * - chat.logging.files: ficheros que se conservan, contando el actual (5).
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class ServerLog {
+
+	/**
+	 * Niveles del log, de menos a más detallado.
+	 */
+	enum Level {
+
+		/** Errores, con el prefijo [ERR]. */
+		ERROR("[ERR] "),
+		/** Eventos del servidor, con el prefijo [LOG]. */
+		INFO("[LOG] "),
+		/** Cada mensaje difundido en las salas, sin prefijo. */
+		CHAT("");
+
+		/** Prefijo de las líneas del nivel. */
+		final String prefix;
+
+		Level(String prefix) {
+
+			this.prefix = prefix;
+		}
+	}
+
+	/** Nivel más detallado que se registra. */
+	private static final Level LEVEL = level(System.getProperty("chat.logging.level", "chat"));
+	/** Capacidad del búfer. */
+	private static final int CAPACITY = Integer.getInteger("chat.logging.buffer", 8192);
+	/** Fichero del log (null para la consola). */
+	private static final String FILE = System.getProperty("chat.logging.file");
+	/** Tamaño a partir del que rota el fichero. */
+	private static final long MAX_BYTES = Long.getLong("chat.logging.size", 10L * 1024 * 1024);
+	/** Ficheros conservados, contando el actual. */
+	private static final int FILES = Math.max(1, Integer.getInteger("chat.logging.files", 5));
+	/** Líneas que se escriben como mucho de una vez. */
+	private static final int BATCH = 512;
+	/** Intervalo mínimo entre avisos de líneas descartadas. */
+	private static final long DROP_REPORT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Líneas pendientes de escribir. */
+	private static final BlockingQueue<Line> lines = new ArrayBlockingQueue<>(Math.max(1, CAPACITY));
+	/** Líneas encoladas. */
+	private static final LongAdder enqueued = new LongAdder();
+	/** Líneas descartadas por tener el búfer lleno. */
+	private static final LongAdder dropped = new LongAdder();
+	/** Líneas ya escritas (solo lo actualiza el escritor). */
+	private static volatile long written;
+
+	static {
+
+		Thread writer = Threads.factory("chat-serverlog", false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+		// No debe impedir que termine la JVM; lo pendiente se vacía al apagarla
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush(1000);
+			}
+		}, "chat-serverlog-flush"));
+	}
+
+	private ServerLog() {
+	}
+
+	/**
+	 * Interpreta el nivel configurado; si no es válido, se registra todo.
+	 */
+	private static Level level(String name) {
+
+		try {
+			return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			System.err.println("[ERR] Nivel de log no válido: " + name + "; se usa chat");
+			return Level.CHAT;
+		}
+	}
+
+	/**
+	 * Línea pendiente de escribir.
+	 */
+	private static final class Line {
+
+		/** Nivel. */
+		final Level level;
+		/** Instante en milisegundos. */
+		final long time;
+		/** Texto, sin prefijo. */
+		final String text;
+
+		Line(Level level, long time, String text) {
+
+			this.level = level;
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Indica si se registran las líneas de un nivel, para no componer el
+	 * texto de las que se van a ignorar.
+	 *
+	 * @param level Nivel.
+	 * @return true si se registran.
+	 */
+	static boolean enabled(Level level) {
+
+		return level.compareTo(LEVEL) <= 0;
+	}
+
+	/**
+	 * Registra un error.
+	 *
+	 * @param text Texto sin prefijo.
+	 */
+	static void error(String text) {
+
+		log(Level.ERROR, text);
+	}
+
+	/**
+	 * Registra un evento del servidor.
+	 *
+	 * @param text Texto sin prefijo.
+	 */
+	static void info(String text) {
+
+		log(Level.INFO, text);
+	}
+
+	/**
+	 * Registra un mensaje difundido en una sala.
+	 *
+	 * @param text Texto.
+	 */
+	static void chat(String text) {
+
+		log(Level.CHAT, text);
+	}
+
+	/**
+	 * Encola una línea sin esperar; si el búfer está lleno, la descarta.
+	 *
+	 * @param level Nivel.
+	 * @param text Texto sin prefijo.
+	 */
+	static void log(Level level, String text) {
+
+		if (!enabled(level)) {
+			return;
+		}
+		if (lines.offer(new Line(level, System.currentTimeMillis(), text))) {
+			enqueued.increment();
+		} else {
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Líneas descartadas desde el arranque.
+	 *
+	 * @return Líneas descartadas.
+	 */
+	static long dropped() {
+
+		return dropped.sum();
+	}
+
+	/**
+	 * Espera a que se escriba lo encolado hasta ahora.
+	 *
+	 * @param timeoutMillis Espera máxima.
+	 */
+	static void flush(long timeoutMillis) {
+
+		long target = enqueued.sum();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (written < target && System.nanoTime() < deadline) {
+
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Bucle del escritor: espera a la primera línea, recoge las que haya
+	 * detrás y las escribe de una vez.
+	 */
+	private static void writeLoop() {
+
+		Sink sink = (FILE == null) ? new ConsoleSink() : new FileSink(new File(FILE));
+		List<Line> batch = new ArrayList<>(BATCH);
+		long reportedDrops = 0;
+		long lastReport = System.nanoTime() - DROP_REPORT_NANOS;
+
+		while (true) {
+
+			try {
+				batch.add(lines.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			lines.drainTo(batch, BATCH - 1);
+			int taken = batch.size();
+
+			long drops = dropped.sum();
+			long now = System.nanoTime();
+			if (drops > reportedDrops && now - lastReport >= DROP_REPORT_NANOS) {
+
+				batch.add(new Line(Level.INFO, System.currentTimeMillis(),
+						(drops - reportedDrops) + " líneas del log descartadas por tener el búfer lleno"));
+				reportedDrops = drops;
+				lastReport = now;
+			}
+
+			try {
+				sink.write(batch);
+			} catch (IOException e) {
+				System.err.println("[ERR] No se pudo escribir el log: " + e.getMessage());
+			}
+			written += taken;
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Destino de las líneas.
+	 */
+	private interface Sink {
+
+		/**
+		 * Escribe un lote de líneas.
+		 *
+		 * @param batch Líneas.
+		 * @throws IOException si falla la escritura.
+		 */
+		void write(List<Line> batch) throws IOException;
+	}
+
+	/**
+	 * Consola: los errores a la salida de errores y el resto a la estándar,
+	 * con una escritura por lote en cada una.
+	 */
+	private static final class ConsoleSink implements Sink {
+
+		/** Texto del lote para la salida estándar. */
+		private final StringBuilder out = new StringBuilder();
+		/** Texto del lote para la salida de errores. */
+		private final StringBuilder err = new StringBuilder();
+
+		@Override
+		public void write(List<Line> batch) {
+
+			for (Line line : batch) {
+				(line.level == Level.ERROR ? err : out).append(line.level.prefix).append(line.text).append(System.lineSeparator());
+			}
+			if (out.length() > 0) {
+				System.out.print(out);
+				System.out.flush();
+				out.setLength(0);
+			}
+			if (err.length() > 0) {
+				System.err.print(err);
+				System.err.flush();
+				err.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Fichero con fecha en cada línea, que rota al superar su tamaño máximo:
+	 * el actual pasa a ser .1, el .1 pasa a .2, etc., y el más antiguo se borra.
+	 */
+	private static final class FileSink implements Sink {
+
+		/** Fichero actual. */
+		private final File file;
+		/** Formato de la fecha de cada línea (solo se usa en el hilo del escritor). */
+		private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS ");
+		/** Texto del lote. */
+		private final StringBuilder text = new StringBuilder();
+		/** Flujo del fichero actual (null hasta la primera escritura). */
+		private OutputStream out;
+		/** Bytes del fichero actual. */
+		private long size;
+
+		FileSink(File file) {
+
+			this.file = file;
+		}
+
+		@Override
+		public void write(List<Line> batch) throws IOException {
+
+			for (Line line : batch) {
+				text.append(format.format(new Date(line.time))).append(line.level.prefix).append(line.text)
+						.append(System.lineSeparator());
+			}
+			byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+			text.setLength(0);
+
+			if (out == null) {
+				open();
+			} else if (size > 0 && size + bytes.length > MAX_BYTES) {
+				roll();
+			}
+			out.write(bytes);
+			size += bytes.length;
+		}
+
+		/**
+		 * Abre el fichero actual para añadir al final.
+		 */
+		private void open() throws IOException {
+
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("No se puede crear el directorio " + parent);
+			}
+			out = new FileOutputStream(file, true);
+			size = file.length();
+		}
+
+		/**
+		 * Cierra el fichero actual, desplaza los anteriores y abre uno nuevo.
+		 */
+		private void roll() throws IOException {
+
+			out.close();
+			for (int i = FILES - 1; i >= 1; i--) {
+
+				File from = (i == 1) ? file : new File(file.getPath() + "." + (i - 1));
+				if (from.exists()) {
+					Files.move(from.toPath(), new File(file.getPath() + "." + i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			if (FILES == 1) {
+				Files.delete(file.toPath());
+			}
+			open();
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import es.ubu.lsi.common.LatencyHistogram;
+
+/**
+ * Métricas de funcionamiento del servidor: conexiones, mensajes y bytes de
+ * entrada y salida, colas de salida, tiempo de reparto de las difusiones y
+ * latencia de escritura a los clientes.
+ *
+ * Los contadores son {@link LongAdder}, repartidos entre celdas para que los
+ * hilos de las sesiones no compitan por la misma línea de caché, y las
+ * latencias se acumulan en histogramas sin cerrojos; el estado de las colas
+ * se calcula al consultarlo. Se publican por JMX y, si se configura
+ * chat.metrics.port, en formato de texto de Prometheus por HTTP en
+ * {@code http://localhost:puerto/metrics}.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+	/** Puerto del punto de consulta HTTP (-Dchat.metrics.port; 0 lo desactiva). */
+	static final int HTTP_PORT = Integer.getInteger("chat.metrics.port", 0);
+	/** Percentiles publicados en el texto de las latencias. */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	/** Etiqueta de cada percentil, como cuantil. */
+	private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+
+	/** Conexiones aceptadas. */
+	final LongAdder accepted = new LongAdder();
+	/** Mensajes recibidos de los clientes. */
+	final LongAdder messagesIn = new LongAdder();
+	/** Mensajes escritos a los clientes. */
+	final LongAdder messagesOut = new LongAdder();
+	/** Bytes leídos de los clientes. */
+	final LongAdder bytesIn = new LongAdder();
+	/** Bytes escritos a los clientes. */
+	final LongAdder bytesOut = new LongAdder();
+	/** Sesiones expulsadas por inactividad. */
+	final LongAdder idleEvictions = new LongAdder();
+	/** Mensajes recibidos por encima de los límites de ritmo. */
+	final LongAdder rateLimited = new LongAdder();
+	/** Tiempo (ns) de encolar una difusión a todos sus destinatarios. */
+	final LatencyHistogram fanOut = new LatencyHistogram();
+	/** Tiempo (ns) desde que se crea un mensaje hasta que se escribe en el socket de un cliente. */
+	final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	/** Servidor medido. */
+	private final AbstractChatServer server;
+	/** Nombre JMX (null si no está publicado). */
+	private ObjectName name;
+	/** Punto de consulta HTTP (null si no está activo). */
+	private HttpServer http;
+
+	/**
+	 * Crea las métricas de un servidor.
+	 *
+	 * @param server Servidor medido.
+	 */
+	ServerMetrics(AbstractChatServer server) {
+
+		this.server = server;
+	}
+
+	/**
+	 * Publica las métricas por JMX y, si hay puerto configurado, por HTTP en
+	 * la interfaz de loopback.
+	 *
+	 * @throws IOException si no se puede abrir el puerto HTTP.
+	 */
+	synchronized void publish() throws IOException {
+
+		try {
+
+			name = new ObjectName("es.ubu.lsi.chat:type=ChatServer,port=" + server.port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+
+		} catch (JMException e) {
+
+			name = null;
+			ServerLog.error("No se pudieron publicar las métricas por JMX: " + e.getMessage());
+		}
+
+		if (HTTP_PORT > 0) {
+
+			http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+			http.createContext("/metrics", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				}
+			});
+			http.start();
+			ServerLog.info("Métricas en http://localhost:" + HTTP_PORT + "/metrics");
+		}
+	}
+
+	/**
+	 * Retira las métricas de JMX y cierra el punto de consulta HTTP.
+	 */
+	synchronized void close() {
+
+		if (name != null) {
+
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Ya no estaba registrado
+			}
+			name = null;
+		}
+		if (http != null) {
+
+			http.stop(0);
+			http = null;
+		}
+	}
+
+	/**
+	 * Devuelve las métricas en el formato de texto de Prometheus.
+	 *
+	 * @return Texto de las métricas.
+	 */
+	public String scrape() {
+
+		int deepest = 0;
+		long queued = 0;
+		for (ClientSession client : server.clients.values()) {
+
+			int depth = client.queue.size();
+			queued += depth;
+			deepest = Math.max(deepest, depth);
+		}
+
+		StringBuilder text = new StringBuilder(2048);
+		metric(text, "chat_connections_active", "gauge", "Clientes registrados.", server.clients.size());
+		metric(text, "chat_connections_accepted_total", "counter", "Conexiones aceptadas.", accepted.sum());
+		metric(text, "chat_messages_in_total", "counter", "Mensajes recibidos de los clientes.", messagesIn.sum());
+		metric(text, "chat_messages_out_total", "counter", "Mensajes escritos a los clientes.", messagesOut.sum());
+		metric(text, "chat_bytes_in_total", "counter", "Bytes leídos de los clientes.", bytesIn.sum());
+		metric(text, "chat_bytes_out_total", "counter", "Bytes escritos a los clientes.", bytesOut.sum());
+		metric(text, "chat_queue_messages", "gauge", "Mensajes pendientes en las colas de salida.", queued);
+		metric(text, "chat_queue_deepest", "gauge", "Mensajes pendientes en la cola de salida más larga.", deepest);
+		metric(text, "chat_queue_dropped_total", "counter", "Mensajes descartados por colas llenas.", server.droppedMessages.get());
+		metric(text, "chat_slow_consumer_disconnects_total", "counter", "Clientes desconectados por no consumir sus mensajes.",
+				server.slowConsumerDisconnects.get());
+		metric(text, "chat_idle_evictions_total", "counter", "Sesiones expulsadas por inactividad.", idleEvictions.sum());
+		metric(text, "chat_rate_limited_total", "counter", "Mensajes recibidos por encima de los límites de ritmo.",
+				rateLimited.sum());
+		metric(text, "chat_log_dropped_total", "counter", "Líneas del log descartadas por tener el búfer lleno.", ServerLog.dropped());
+		summary(text, "chat_fanout_seconds", "Tiempo de encolar una difusión a todos sus destinatarios.", fanOut);
+		summary(text, "chat_write_latency_seconds", "Tiempo desde que se crea un mensaje hasta que se escribe a un cliente.",
+				writeLatency);
+		return text.toString();
+	}
+
+	private static void metric(StringBuilder text, String name, String type, String help, long value) {
+
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" summary\n");
+		long[] values = histogram.percentiles(PERCENTILES);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			text.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+					.append(seconds(values[i])).append('\n');
+		}
+		text.append(name).append("_sum ").append(seconds(histogram.sum())).append('\n');
+		text.append(name).append("_count ").append(histogram.count()).append('\n');
+	}
+
+	private static double seconds(long nanos) {
+
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private static long micros(long nanos) {
+
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return server.clients.size();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return accepted.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getQueuedMessages() {
+
+		long queued = 0;
+		for (ClientSession client : server.clients.values()) {
+			queued += client.queue.size();
+		}
+		return queued;
+	}
+
+	@Override
+	public int getDeepestQueue() {
+
+		int deepest = 0;
+		for (ClientSession client : server.clients.values()) {
+			deepest = Math.max(deepest, client.queue.size());
+		}
+		return deepest;
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return server.droppedMessages.get();
+	}
+
+	@Override
+	public long getSlowConsumerDisconnects() {
+		return server.slowConsumerDisconnects.get();
+	}
+
+	@Override
+	public long getIdleEvictions() {
+		return idleEvictions.sum();
+	}
+
+	@Override
+	public long getRateLimitedMessages() {
+		return rateLimited.sum();
+	}
+
+	@Override
+	public long getDroppedLogLines() {
+		return ServerLog.dropped();
+	}
+
+	@Override
+	public long getFanOutP50Micros() {
+		return micros(fanOut.percentile(50));
+	}
+
+	@Override
+	public long getFanOutP99Micros() {
+		return micros(fanOut.percentile(99));
+	}
+
+	@Override
+	public long getWriteLatencyP50Micros() {
+		return micros(writeLatency.percentile(50));
+	}
+
+	@Override
+	public long getWriteLatencyP99Micros() {
+		return micros(writeLatency.percentile(99));
+	}
+
+	@Override
+	public long getWriteLatencyP999Micros() {
+		return micros(writeLatency.percentile(99.9));
+	}
+}
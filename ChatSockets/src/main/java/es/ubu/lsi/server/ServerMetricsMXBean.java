@@ -0,0 +1,102 @@
+package es.ubu.lsi.server;
+
+/**
+ * Métricas del servidor de chat publicadas por JMX (ver {@link ServerMetrics}).
+ *
+ * Los contadores son acumulados desde el arranque; las latencias, percentiles
+ * en microsegundos de todo lo registrado desde el arranque.
+ *
+ * @author Ivan Nebreda Camara
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return Clientes registrados en este momento.
+	 */
+	int getActiveConnections();
+
+	/**
+	 * @return Conexiones aceptadas.
+	 */
+	long getAcceptedConnections();
+
+	/**
+	 * @return Mensajes recibidos de los clientes.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return Mensajes escritos en los sockets de los clientes.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return Bytes leídos de los clientes.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return Bytes escritos a los clientes.
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return Mensajes pendientes en todas las colas de salida.
+	 */
+	long getQueuedMessages();
+
+	/**
+	 * @return Mensajes pendientes en la cola de salida más larga.
+	 */
+	int getDeepestQueue();
+
+	/**
+	 * @return Mensajes descartados por colas de salida llenas.
+	 */
+	long getDroppedMessages();
+
+	/**
+	 * @return Clientes desconectados por no consumir sus mensajes.
+	 */
+	long getSlowConsumerDisconnects();
+
+	/**
+	 * @return Sesiones expulsadas por inactividad.
+	 */
+	long getIdleEvictions();
+
+	/**
+	 * @return Mensajes recibidos por encima de los límites de ritmo.
+	 */
+	long getRateLimitedMessages();
+
+	/**
+	 * @return Líneas del log descartadas por tener el búfer lleno.
+	 */
+	long getDroppedLogLines();
+
+	/**
+	 * @return Mediana del tiempo de reparto de una difusión, en µs.
+	 */
+	long getFanOutP50Micros();
+
+	/**
+	 * @return Percentil 99 del tiempo de reparto de una difusión, en µs.
+	 */
+	long getFanOutP99Micros();
+
+	/**
+	 * @return Mediana de la latencia de escritura a un cliente, en µs.
+	 */
+	long getWriteLatencyP50Micros();
+
+	/**
+	 * @return Percentil 99 de la latencia de escritura a un cliente, en µs.
+	 */
+	long getWriteLatencyP99Micros();
+
+	/**
+	 * @return Percentil 99,9 de la latencia de escritura a un cliente, en µs.
+	 */
+	long getWriteLatencyP999Micros();
+}
@@ -0,0 +1,194 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import es.ubu.lsi.common.Threads;
+
+/**
+ * Rueda de temporización con dispersión (hashed timing wheel): un único hilo
+ * para los plazos de todas las sesiones, en lugar de un temporizador por
+ * conexión.
+ *
+ * La rueda tiene un número fijo de casillas y avanza una por tick. Cada plazo
+ * va a la casilla de su tick módulo el número de casillas, con las vueltas
+ * completas que le faltan; en cada tick solo se recorre la casilla actual.
+ * Programar y cancelar cuestan O(1) y la precisión es de un tick, más que
+ * suficiente para plazos de segundos.
+ *
+ * Los plazos nuevos se dejan en una cola concurrente y el hilo de la rueda los
+ * coloca en su casilla, así que las casillas solo las toca ese hilo. Cancelar
+ * solo marca el plazo; se quita al pasar por su casilla. Las tareas se
+ * ejecutan en el hilo de la rueda y deben ser breves.
+ *
+ * @author Ivan Nebreda Camara
+ */
+final class TimingWheel {
+
+	/**
+	 * Plazo programado en la rueda.
+	 */
+	static final class Timeout {
+
+		/** Tarea a ejecutar al vencer. */
+		private final Runnable task;
+		/** Instante (nanoTime) en el que vence. */
+		private final long deadline;
+		/** Vueltas completas que faltan (solo en el hilo de la rueda). */
+		private long rounds;
+		/** Indica si se ha cancelado. */
+		private volatile boolean cancelled;
+
+		Timeout(Runnable task, long deadline) {
+
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancela el plazo si aún no ha vencido.
+		 */
+		void cancel() {
+
+			cancelled = true;
+		}
+	}
+
+	/** Duración de un tick en nanosegundos. */
+	private final long tickNanos;
+	/** Casillas de la rueda (solo en el hilo de la rueda). */
+	private final List<ArrayDeque<Timeout>> slots;
+	/** Plazos pendientes de colocar en su casilla. */
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	/** Instante (nanoTime) del tick 0. */
+	private final long start = System.nanoTime();
+	/** Hilo de la rueda. */
+	private final Thread thread;
+	/** Indica si la rueda sigue girando. */
+	private volatile boolean running = true;
+	/** Último tick procesado (solo en el hilo de la rueda). */
+	private long tick;
+
+	/**
+	 * Crea la rueda y arranca su hilo.
+	 *
+	 * @param name Nombre del hilo.
+	 * @param tickMillis Duración de un tick en milisegundos.
+	 * @param slotCount Número de casillas.
+	 */
+	TimingWheel(String name, long tickMillis, int slotCount) {
+
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		this.slots = new ArrayList<>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ArrayDeque<Timeout>());
+		}
+
+		thread = Threads.factory(name, false).newThread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Programa una tarea. Se puede llamar desde cualquier hilo.
+	 *
+	 * @param task Tarea, breve.
+	 * @param delayMillis Milisegundos hasta que venza.
+	 * @return Plazo, para poder cancelarlo.
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+
+		Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Detiene la rueda; los plazos pendientes ya no vencen.
+	 */
+	void stop() {
+
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * Bucle del hilo de la rueda: espera al siguiente tick, coloca los plazos
+	 * nuevos y vence los de la casilla actual.
+	 */
+	private void turn() {
+
+		while (running) {
+
+			long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+			if (wait > 0) {
+
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			tick++;
+			place();
+			expire(slots.get((int) (tick % slots.size())));
+		}
+	}
+
+	/**
+	 * Coloca los plazos nuevos en su casilla. Los que ya han vencido van a la
+	 * casilla actual.
+	 */
+	private void place() {
+
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+
+			if (timeout.cancelled) {
+				continue;
+			}
+			long due = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos);
+			timeout.rounds = (due - tick) / slots.size();
+			slots.get((int) (due % slots.size())).add(timeout);
+		}
+	}
+
+	/**
+	 * Ejecuta los plazos de una casilla que están en su última vuelta.
+	 */
+	private void expire(ArrayDeque<Timeout> slot) {
+
+		Iterator<Timeout> it = slot.iterator();
+		while (it.hasNext()) {
+
+			Timeout timeout = it.next();
+			if (timeout.cancelled) {
+
+				it.remove();
+
+			} else if (timeout.rounds > 0) {
+
+				timeout.rounds--;
+
+			} else {
+
+				it.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					ServerLog.error("Error en una tarea programada: " + e);
+				}
+			}
+		}
+	}
+}